@@ -0,0 +1,143 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011, 2013 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+
+
+package org.geppetto.solver.sph;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free single producer / single consumer ring buffer of muscle
+ * activation frames.
+ *
+ * An upstream simulator pushes one frame (one activation value per muscle)
+ * per step with offer() while the solver thread takes them out with poll().
+ * Frames are copied into preallocated slots so neither side allocates or
+ * blocks.
+ */
+public class ActivationSignalQueue {
+
+	private final float[][] _frames;
+	private final int _mask;
+	private final int _muscleCount;
+
+	// next slot to read, only written by the consumer
+	private final AtomicLong _head = new AtomicLong();
+	// next slot to write, only written by the producer
+	private final AtomicLong _tail = new AtomicLong();
+
+	/**
+	 * @param capacity
+	 *            number of frames that can be queued, rounded up to a power
+	 *            of two
+	 * @param muscleCount
+	 *            number of values in a frame
+	 */
+	public ActivationSignalQueue(int capacity, int muscleCount) {
+		if (capacity <= 0 || muscleCount <= 0) {
+			throw new IllegalArgumentException(
+					"ActivationSignalQueue - capacity and muscle count must be positive");
+		}
+
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) {
+			size <<= 1;
+		}
+
+		_frames = new float[size][muscleCount];
+		_mask = size - 1;
+		_muscleCount = muscleCount;
+	}
+
+	/**
+	 * Queues a copy of the given frame, returns false without blocking if the
+	 * queue is full. Frames shorter than the muscle count are padded with 0
+	 * (inactive).
+	 */
+	public boolean offer(float[] activation) {
+		if (activation.length > _muscleCount) {
+			throw new IllegalArgumentException("ActivationSignalQueue - got "
+					+ activation.length + " activation values for "
+					+ _muscleCount + " muscles");
+		}
+
+		long tail = _tail.get();
+		if (tail - _head.get() > _mask) {
+			return false;
+		}
+
+		float[] frame = _frames[(int) tail & _mask];
+		System.arraycopy(activation, 0, frame, 0, activation.length);
+		for (int i = activation.length; i < _muscleCount; i++) {
+			frame[i] = 0f;
+		}
+
+		// publish the frame, lazySet is enough as only this thread writes
+		// the tail
+		_tail.lazySet(tail + 1);
+		return true;
+	}
+
+	/**
+	 * Copies the oldest queued frame into the given array, returns false if
+	 * there is nothing queued.
+	 */
+	public boolean poll(float[] activation) {
+		long head = _head.get();
+		if (head == _tail.get()) {
+			return false;
+		}
+
+		System.arraycopy(_frames[(int) head & _mask], 0, activation, 0,
+				_muscleCount);
+
+		// release the slot to the producer
+		_head.lazySet(head + 1);
+		return true;
+	}
+
+	/**
+	 * Drops every queued frame, must be called from the consumer side.
+	 */
+	public void clear() {
+		_head.lazySet(_tail.get());
+	}
+
+	public int size() {
+		return (int) (_tail.get() - _head.get());
+	}
+
+	public int getMuscleCount() {
+		return _muscleCount;
+	}
+}
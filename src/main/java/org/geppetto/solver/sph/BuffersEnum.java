@@ -45,9 +45,15 @@ public enum BuffersEnum {
     RHO("rho"),
     SORTED_POSITION("sortedPosition"),
     SORTED_VELOCITY("sortedVelocity"),
+    SORTED_TYPE_NORMAL("sortedTypeNormal"),
     VELOCITY("velocity"),
+    ELASTIC_CONNECTIONS_OFFSETS("elasticConnectionsOffsets"),
     ELASTIC_CONNECTIONS("elasticConnections"),
-    ELASTIC_BUNDLES("elasticBundles")
+    ELASTIC_CONNECTIONS_REST_LENGTH("elasticConnectionsRestLength"),
+    ELASTIC_SUBSTEP_STATE("elasticSubstepState"),
+    ELASTIC_BUNDLES("elasticBundles"),
+    GATHER_INDEX("gatherIndex"),
+    GATHER_OUTPUT("gatherOutput")
     ;
     
     private BuffersEnum(final String text) {
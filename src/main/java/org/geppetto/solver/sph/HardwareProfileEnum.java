@@ -35,7 +35,9 @@ package org.geppetto.solver.sph;
 
 public enum HardwareProfileEnum {
     CPU("cpu"),
-    GPU("gpu");
+    GPU("gpu"),
+    // fastest device found by SPHDeviceRanking, whatever its type
+    AUTO("auto");
     
     private HardwareProfileEnum(final String text) {
         this.text = text;
@@ -44,12 +44,17 @@ public enum KernelsEnum {
 	    COMPUTE_DENSITY("pcisph_computeDensity"),
 	    COMPUTE_FORCES_INIT_PRESSURE("pcisph_computeForcesAndInitPressure"),
 	    COMPUTE_ELASTIC_FORCES("pcisph_computeElasticForces"),
+	    INIT_ELASTIC_SUBSTEPS("pcisph_initElasticSubsteps"),
+	    INTEGRATE_ELASTIC_SUBSTEP("pcisph_integrateElasticSubstep"),
+	    FINISH_ELASTIC_SUBSTEPS("pcisph_finishElasticSubsteps"),
 	    PREDICT_POSITION("pcisph_predictPositions"),
 	    PREDICT_DENSITY("pcisph_predictDensity"),
 	    CORRECT_PRESSURE("pcisph_correctPressure"),
 	    COMPUTE_PRESSURE_FORCE_ACCELERATION("pcisph_computePressureForceAcceleration"),
 	    PREDICTIVE_LOOP("predictiveLoop"),
 	    INTEGRATE("pcisph_integrate"),
+	    GATHER_PARTICLES("gatherParticles"),
+	    COMPACT_MOVED_PARTICLES("compactMovedParticles"),
 	    ;
 	    
 	    private KernelsEnum(final String text) {
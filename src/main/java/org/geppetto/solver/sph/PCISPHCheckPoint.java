@@ -49,7 +49,10 @@ public class PCISPHCheckPoint {
 	public List<Float> rho = new ArrayList<Float>();
 	public List<Float> sortedPosition = new ArrayList<Float>();
 	public List<Float> sortedVelocity = new ArrayList<Float>();
+	public List<Float> sortedTypeNormal = new ArrayList<Float>();
 	public List<Float> velocity = new ArrayList<Float>();
-	public List<Float> elasticConnections = new ArrayList<Float>();
+	public List<Integer> elasticConnectionsOffsets = new ArrayList<Integer>();
+	public List<Integer> elasticConnections = new ArrayList<Integer>();
+	public List<Float> elasticConnectionsRestLength = new ArrayList<Float>();
 	
 }
@@ -0,0 +1,282 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011, 2013 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+
+package org.geppetto.solver.sph;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.nativelibs4java.opencl.CLContext;
+import com.nativelibs4java.opencl.CLDevice;
+import com.nativelibs4java.opencl.CLProgram;
+
+/**
+ * Cache of compiled OpenCL program binaries.
+ *
+ * Binaries are keyed by device, driver version, source hash and build options
+ * and are kept both in memory and on local disk so that a warm start never
+ * has to go through the OpenCL compiler. The cache directory defaults to
+ * ~/.geppetto/sph/programs and can be overridden with the
+ * geppetto.sph.programCache system property.
+ */
+public class ProgramBinaryCache {
+
+	private static Log logger = LogFactory.getLog(ProgramBinaryCache.class);
+
+	public static final String CACHE_DIR_PROPERTY = "geppetto.sph.programCache";
+
+	private static final String BINARY_EXTENSION = ".bin";
+
+	private static Map<String, byte[]> _binaries = new ConcurrentHashMap<String, byte[]>();
+
+	// set by configuration code, read by every solver building programs
+	private static volatile boolean _diskCacheEnabled = true;
+
+	private ProgramBinaryCache() {
+	}
+
+	/**
+	 * Returns a built program for the given device, loading it from a cached
+	 * binary when possible and compiling (then caching) it from source
+	 * otherwise.
+	 */
+	public static CLProgram getProgram(CLContext context, CLDevice device,
+			String source, String buildOptions) {
+		String key = getKey(device, source, buildOptions);
+
+		byte[] binary = _binaries.get(key);
+		if (binary == null) {
+			binary = readFromDisk(key);
+		}
+
+		if (binary != null) {
+			try {
+				CLProgram program = context.createProgram(
+						Collections.singletonMap(device, binary), source);
+				addBuildOptions(program, buildOptions);
+				program.build();
+				_binaries.put(key, binary);
+				logger.info("Loaded cached program binary " + key);
+				return program;
+			} catch (Exception e) {
+				// driver updates can invalidate binaries, drop the entry and
+				// fall back to the compiler
+				logger.warn("Cached program binary " + key
+						+ " was rejected, rebuilding from source", e);
+				evict(key);
+			}
+		}
+
+		long start = System.currentTimeMillis();
+		CLProgram program = context.createProgram(source);
+		addBuildOptions(program, buildOptions);
+		program.build();
+		logger.info("Built program from source, took "
+				+ (System.currentTimeMillis() - start) + "ms");
+
+		binary = program.getBinaries().get(device);
+		if (binary != null && binary.length > 0) {
+			_binaries.put(key, binary);
+			writeToDisk(key, binary);
+		}
+
+		return program;
+	}
+
+	/**
+	 * Enables or disables the on-disk tier, the in-memory tier is always on.
+	 */
+	public static void setDiskCacheEnabled(boolean enabled) {
+		_diskCacheEnabled = enabled;
+	}
+
+	/**
+	 * Drops the binaries cached in memory, the next builds go back to the
+	 * disk tier.
+	 */
+	public static void clear() {
+		_binaries.clear();
+	}
+
+	/**
+	 * Deletes the binaries of the on-disk tier. The directory is shared by
+	 * every process of the user (and every user pointing
+	 * geppetto.sph.programCache at it), all of them go back to the compiler.
+	 */
+	public static void deleteDiskCache() {
+		File[] files = getCacheDirectory().listFiles();
+		if (files != null) {
+			for (File f : files) {
+				if (f.getName().endsWith(BINARY_EXTENSION)) {
+					f.delete();
+				}
+			}
+		}
+	}
+
+	public static File getCacheDirectory() {
+		String dir = System.getProperty(CACHE_DIR_PROPERTY);
+		if (dir == null) {
+			dir = System.getProperty("user.home") + File.separator
+					+ ".geppetto" + File.separator + "sph" + File.separator
+					+ "programs";
+		}
+		return new File(dir);
+	}
+
+	/**
+	 * Key of the binary of a program built for the given device.
+	 */
+	public static String getKey(CLDevice device, String source,
+			String buildOptions) {
+		StringBuilder description = new StringBuilder();
+		description.append(device.getPlatform().getName()).append('|');
+		description.append(device.getPlatform().getVersion()).append('|');
+		description.append(device.getVendor()).append('|');
+		description.append(device.getName()).append('|');
+		description.append(device.getVersion());
+
+		return getKey(description.toString(), device.getDriverVersion(),
+				source, buildOptions);
+	}
+
+	/**
+	 * Key of the binary of a program built for a device described by its
+	 * platform, vendor, name and version.
+	 */
+	public static String getKey(String device, String driverVersion,
+			String source, String buildOptions) {
+		StringBuilder key = new StringBuilder();
+		key.append(device).append('|');
+		key.append(driverVersion).append('|');
+		key.append(sha1(source)).append('|');
+		key.append(buildOptions == null ? "" : buildOptions);
+
+		return sha1(key.toString());
+	}
+
+	private static void addBuildOptions(CLProgram program, String buildOptions) {
+		if (buildOptions != null && !buildOptions.isEmpty()) {
+			program.addBuildOption(buildOptions);
+		}
+	}
+
+	private static byte[] readFromDisk(String key) {
+		if (!_diskCacheEnabled) {
+			return null;
+		}
+
+		File file = new File(getCacheDirectory(), key + BINARY_EXTENSION);
+		if (!file.isFile()) {
+			return null;
+		}
+
+		try {
+			return Files.readAllBytes(file.toPath());
+		} catch (IOException e) {
+			logger.warn("Could not read program binary " + file, e);
+			return null;
+		}
+	}
+
+	private static void writeToDisk(String key, byte[] binary) {
+		if (!_diskCacheEnabled) {
+			return;
+		}
+
+		File dir = getCacheDirectory();
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			logger.warn("Could not create program cache directory " + dir);
+			return;
+		}
+
+		// write to a temporary file first so that concurrent readers never
+		// see a partially written binary
+		File file = new File(dir, key + BINARY_EXTENSION);
+		File tmp = new File(dir, key + "." + Thread.currentThread().getId()
+				+ ".tmp");
+		FileOutputStream stream = null;
+		try {
+			stream = new FileOutputStream(tmp);
+			stream.write(binary);
+			stream.close();
+			stream = null;
+			if (!tmp.renameTo(file)) {
+				tmp.delete();
+			}
+		} catch (IOException e) {
+			logger.warn("Could not write program binary " + file, e);
+			tmp.delete();
+		} finally {
+			if (stream != null) {
+				try {
+					stream.close();
+				} catch (IOException e) {
+					// nothing else we can do
+				}
+			}
+		}
+	}
+
+	private static void evict(String key) {
+		_binaries.remove(key);
+		new File(getCacheDirectory(), key + BINARY_EXTENSION).delete();
+	}
+
+	private static String sha1(String text) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			byte[] hash = digest.digest(text.getBytes("UTF-8"));
+			StringBuilder hex = new StringBuilder();
+			for (byte b : hash) {
+				hex.append(String.format("%02x", b));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,319 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011, 2013 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+
+package org.geppetto.solver.sph;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bridj.Pointer;
+
+import com.nativelibs4java.opencl.CLBuffer;
+import com.nativelibs4java.opencl.CLContext;
+import com.nativelibs4java.opencl.CLDevice;
+import com.nativelibs4java.opencl.CLKernel;
+import com.nativelibs4java.opencl.CLMem;
+import com.nativelibs4java.opencl.CLPlatform;
+import com.nativelibs4java.opencl.CLProgram;
+import com.nativelibs4java.opencl.CLQueue;
+import com.nativelibs4java.opencl.JavaCL;
+import com.nativelibs4java.util.IOUtils;
+
+/**
+ * Discovers the OpenCL devices of every platform and ranks them.
+ *
+ * Each device runs a short calibration (resource/deviceCalibration.cl) that
+ * measures global memory bandwidth with a copy kernel and launch latency
+ * with an empty kernel. Devices are ranked by the time they would take on a
+ * reference step made of REFERENCE_LAUNCHES launches moving REFERENCE_BYTES,
+ * which is roughly what a PCISPH step looks like for a mid sized scene. The
+ * ranking is computed once per JVM.
+ *
+ * A device can be forced with the geppetto.sph.device system property, set
+ * to (part of) the device name or to platformIndex:deviceIndex.
+ */
+public class SPHDeviceRanking {
+
+	private static Log logger = LogFactory.getLog(SPHDeviceRanking.class);
+
+	public static final String DEVICE_PROPERTY = "geppetto.sph.device";
+
+	// float4 elements moved by the copy kernel, 16MB each way
+	private static final int CALIBRATION_SIZE = 1 << 20;
+	private static final int COPY_RUNS = 5;
+	private static final int LAUNCH_RUNS = 50;
+
+	private static final int REFERENCE_LAUNCHES = 20;
+	private static final double REFERENCE_BYTES = 64.0 * 1024 * 1024;
+
+	private static List<DeviceScore> _ranking;
+
+	private SPHDeviceRanking() {
+	}
+
+	/**
+	 * Calibration result of a device.
+	 */
+	public static class DeviceScore implements Comparable<DeviceScore> {
+		private final CLDevice _device;
+		private final int _platformIndex;
+		private final int _deviceIndex;
+		private final double _bandwidth;
+		private final double _launchLatency;
+
+		DeviceScore(CLDevice device, int platformIndex, int deviceIndex,
+				double bandwidth, double launchLatency) {
+			_device = device;
+			_platformIndex = platformIndex;
+			_deviceIndex = deviceIndex;
+			_bandwidth = bandwidth;
+			_launchLatency = launchLatency;
+		}
+
+		public CLDevice getDevice() {
+			return _device;
+		}
+
+		public int getPlatformIndex() {
+			return _platformIndex;
+		}
+
+		public int getDeviceIndex() {
+			return _deviceIndex;
+		}
+
+		/**
+		 * Global memory bandwidth in bytes per second.
+		 */
+		public double getBandwidth() {
+			return _bandwidth;
+		}
+
+		/**
+		 * Seconds from enqueueing an empty kernel to its completion.
+		 */
+		public double getLaunchLatency() {
+			return _launchLatency;
+		}
+
+		/**
+		 * Estimated seconds for the reference step, lower is better.
+		 */
+		public double getReferenceStepTime() {
+			return REFERENCE_LAUNCHES * _launchLatency + REFERENCE_BYTES
+					/ _bandwidth;
+		}
+
+		public boolean isOfType(CLDevice.Type type) {
+			return _device.getType().contains(type);
+		}
+
+		@Override
+		public int compareTo(DeviceScore other) {
+			return Double.compare(getReferenceStepTime(),
+					other.getReferenceStepTime());
+		}
+
+		@Override
+		public String toString() {
+			return _platformIndex + ":" + _deviceIndex + " "
+					+ _device.getName() + " - "
+					+ String.format("%.1f", _bandwidth / 1e9) + " GB/s, "
+					+ String.format("%.1f", _launchLatency * 1e6)
+					+ " us launch";
+		}
+	}
+
+	/**
+	 * Every available device, fastest first. Devices that fail to calibrate
+	 * are left out.
+	 */
+	public static synchronized List<DeviceScore> getRanking() {
+		if (_ranking == null) {
+			List<DeviceScore> ranking = new ArrayList<DeviceScore>();
+			String source = null;
+			try {
+				source = IOUtils.readText(SPHDeviceRanking.class
+						.getResourceAsStream("/resource/deviceCalibration.cl"));
+			} catch (IOException e) {
+				throw new IllegalStateException(
+						"SPHDeviceRanking: could not load calibration kernels", e);
+			}
+
+			CLPlatform[] platforms = JavaCL.listPlatforms();
+			for (int p = 0; p < platforms.length; p++) {
+				CLDevice[] devices = platforms[p].listAllDevices(true);
+				for (int d = 0; d < devices.length; d++) {
+					try {
+						DeviceScore score = calibrate(platforms[p], devices[d],
+								p, d, source);
+						logger.info("calibrated " + score);
+						ranking.add(score);
+					} catch (Exception e) {
+						logger.warn("skipping device " + p + ":" + d + " "
+								+ devices[d].getName(), e);
+					}
+				}
+			}
+
+			Collections.sort(ranking);
+			_ranking = Collections.unmodifiableList(ranking);
+		}
+		return _ranking;
+	}
+
+	/**
+	 * The device solvers with the given profile should run on: the device
+	 * named by the geppetto.sph.device property if set, otherwise the
+	 * fastest device of the profile type (any type for AUTO). Falls back to
+	 * the fastest device if the profile is not available on this machine.
+	 */
+	public static CLDevice selectDevice(HardwareProfileEnum hwProfile) {
+		List<DeviceScore> ranking = getRanking();
+		if (ranking.isEmpty()) {
+			throw new IllegalStateException(
+					"SPHDeviceRanking: no usable OpenCL device found");
+		}
+
+		String selection = System.getProperty(DEVICE_PROPERTY);
+		if (selection != null && !selection.isEmpty()) {
+			DeviceScore selected = find(ranking, selection);
+			if (selected != null) {
+				return selected.getDevice();
+			}
+			logger.warn("device " + selection + " not found, selecting by "
+					+ hwProfile + " profile");
+		}
+
+		CLDevice.Type type = getDeviceType(hwProfile);
+		if (type != null) {
+			for (DeviceScore score : ranking) {
+				if (score.isOfType(type)) {
+					return score.getDevice();
+				}
+			}
+			logger.warn("no " + hwProfile + " device available, using "
+					+ ranking.get(0));
+		}
+		return ranking.get(0).getDevice();
+	}
+
+	private static DeviceScore find(List<DeviceScore> ranking, String selection) {
+		for (DeviceScore score : ranking) {
+			if (selection.equals(score.getPlatformIndex() + ":"
+					+ score.getDeviceIndex())) {
+				return score;
+			}
+		}
+		String name = selection.toLowerCase();
+		for (DeviceScore score : ranking) {
+			if (score.getDevice().getName().toLowerCase().contains(name)) {
+				return score;
+			}
+		}
+		return null;
+	}
+
+	private static CLDevice.Type getDeviceType(HardwareProfileEnum hwProfile) {
+		switch (hwProfile) {
+		case CPU:
+			return CLDevice.Type.CPU;
+		case GPU:
+			return CLDevice.Type.GPU;
+		default:
+			return null;
+		}
+	}
+
+	private static DeviceScore calibrate(CLPlatform platform, CLDevice device,
+			int platformIndex, int deviceIndex, String source) {
+		CLContext context = platform.createContext(null, device);
+		CLBuffer<Float> in = null;
+		CLBuffer<Float> out = null;
+		try {
+			CLQueue queue = context.createDefaultQueue();
+			CLProgram program = context.createProgram(source);
+			CLKernel copy = program.createKernel("calibration_copy");
+			CLKernel empty = program.createKernel("calibration_empty");
+
+			// stay well within what small devices can allocate
+			int size = (int) Math.min(CALIBRATION_SIZE,
+					device.getMaxMemAllocSize() / (4 * 4 * 4));
+			in = context.createFloatBuffer(CLMem.Usage.Input, size * 4);
+			out = context.createFloatBuffer(CLMem.Usage.Output, size * 4);
+			Pointer<Float> data = Pointer.allocateFloats(size * 4).order(
+					context.getByteOrder());
+			in.write(queue, data, true);
+
+			copy.setArgs(in, out, size);
+			empty.setArgs(out);
+
+			// first launches pay for lazy allocation and kernel upload
+			copy.enqueueNDRange(queue, new int[] { size });
+			empty.enqueueNDRange(queue, new int[] { 1 });
+			queue.finish();
+
+			long start = System.nanoTime();
+			for (int i = 0; i < COPY_RUNS; i++) {
+				copy.enqueueNDRange(queue, new int[] { size });
+			}
+			queue.finish();
+			double copySeconds = (System.nanoTime() - start) / 1e9;
+			double bandwidth = 2.0 * size * 4 * 4 * COPY_RUNS / copySeconds;
+
+			start = System.nanoTime();
+			for (int i = 0; i < LAUNCH_RUNS; i++) {
+				empty.enqueueNDRange(queue, new int[] { 1 });
+				queue.finish();
+			}
+			double launchLatency = (System.nanoTime() - start) / 1e9
+					/ LAUNCH_RUNS;
+
+			queue.release();
+			return new DeviceScore(device, platformIndex, deviceIndex,
+					bandwidth, launchLatency);
+		} finally {
+			if (in != null) {
+				in.release();
+			}
+			if (out != null) {
+				out.release();
+			}
+			context.release();
+		}
+	}
+}
@@ -0,0 +1,235 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011, 2013 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+
+package org.geppetto.solver.sph;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.nativelibs4java.opencl.CLContext;
+import com.nativelibs4java.opencl.CLDevice;
+import com.nativelibs4java.opencl.CLProgram;
+import com.nativelibs4java.opencl.CLQueue;
+import com.nativelibs4java.util.IOUtils;
+
+/**
+ * Process wide OpenCL resources for one device.
+ *
+ * Holds the context and the programs built for the device (one per set of
+ * build options) so that solvers only create their own queue, kernels and
+ * buffers. It also counts the buffer bytes allocated by all the solvers on
+ * the device, so that each solver plans against what the others already
+ * took. Solvers acquire the runtime and release it once disposed, the
+ * context and programs are released with the last solver.
+ */
+public class SPHDeviceRuntime {
+
+	private static Log logger = LogFactory.getLog(SPHDeviceRuntime.class);
+
+	private static Map<HardwareProfileEnum, SPHDeviceRuntime> _runtimes = new EnumMap<HardwareProfileEnum, SPHDeviceRuntime>(
+			HardwareProfileEnum.class);
+	private static Map<CLDevice, SPHDeviceRuntime> _deviceRuntimes = new HashMap<CLDevice, SPHDeviceRuntime>();
+
+	private static String _programSource;
+	// not the class lock, programs are built holding a runtime lock
+	private static final Object _programSourceLock = new Object();
+
+	private final CLContext _context;
+	private final CLDevice _device;
+	private final Map<String, CLProgram> _programs = new HashMap<String, CLProgram>();
+	private long _allocatedBytes = 0;
+	// guarded by the class lock
+	private int _solverCount = 0;
+	private boolean _released = false;
+
+	private SPHDeviceRuntime(CLDevice device) {
+		_device = device;
+		_context = device.getPlatform().createContext(null, device);
+		logger.info("created " + _context);
+
+		logger.info("Version " + _device.getOpenCLVersion());
+		logger.info("Version " + _device.getDriverVersion());
+		logger.info("using " + _device);
+		logger.info("max workgroup size: " + _device.getMaxWorkGroupSize());
+		logger.info("max workitems size: " + _device.getMaxWorkItemSizes()[0]);
+	}
+
+	/**
+	 * Returns the runtime for the given hardware profile, creating it on
+	 * first use, and counts the caller as one of its solvers. The device is
+	 * picked by SPHDeviceRanking, profiles that end up on the same device
+	 * share its runtime. Every call must be matched by a call to release().
+	 */
+	public static synchronized SPHDeviceRuntime acquire(
+			HardwareProfileEnum hwProfile) {
+		SPHDeviceRuntime runtime = _runtimes.get(hwProfile);
+		if (runtime == null) {
+			CLDevice device = SPHDeviceRanking.selectDevice(hwProfile);
+			runtime = _deviceRuntimes.get(device);
+			if (runtime == null) {
+				runtime = new SPHDeviceRuntime(device);
+				_deviceRuntimes.put(device, runtime);
+			}
+			_runtimes.put(hwProfile, runtime);
+		}
+		runtime._solverCount++;
+		return runtime;
+	}
+
+	/**
+	 * Called by a solver once disposed, the last one releases the programs
+	 * and the context.
+	 */
+	public void release() {
+		synchronized (SPHDeviceRuntime.class) {
+			if (_released) {
+				// already gone with shutdown()
+				return;
+			}
+			if (_solverCount == 0) {
+				throw new IllegalStateException(
+						"SPHDeviceRuntime - released more often than acquired");
+			}
+			if (--_solverCount == 0) {
+				_deviceRuntimes.remove(_device);
+				_runtimes.values().removeAll(Collections.singleton(this));
+				releaseContext();
+			}
+		}
+	}
+
+	/**
+	 * Releases every context, solvers still using them become unusable.
+	 */
+	public static synchronized void shutdown() {
+		for (SPHDeviceRuntime runtime : _deviceRuntimes.values()) {
+			runtime.releaseContext();
+		}
+		_deviceRuntimes.clear();
+		_runtimes.clear();
+	}
+
+	/**
+	 * Solvers holding the runtime.
+	 */
+	public int getSolverCount() {
+		synchronized (SPHDeviceRuntime.class) {
+			return _solverCount;
+		}
+	}
+
+	/**
+	 * True once the context was released, by the last solver or by
+	 * shutdown().
+	 */
+	public boolean isReleased() {
+		synchronized (SPHDeviceRuntime.class) {
+			return _released;
+		}
+	}
+
+	// called with the class lock held
+	private void releaseContext() {
+		synchronized (this) {
+			for (CLProgram program : _programs.values()) {
+				program.release();
+			}
+			_programs.clear();
+		}
+		_context.release();
+		_released = true;
+		logger.info("released " + _context);
+	}
+
+	public CLContext getContext() {
+		return _context;
+	}
+
+	public CLDevice getDevice() {
+		return _device;
+	}
+
+	/**
+	 * New command queue on the runtime device, queues are not shared between
+	 * solvers.
+	 */
+	public CLQueue createQueue() {
+		return _context.createDefaultQueue();
+	}
+
+	/**
+	 * Program built with the given options, built (or loaded from the binary
+	 * cache) the first time a given set of options is requested.
+	 */
+	public synchronized CLProgram getProgram(String buildOptions)
+			throws IOException {
+		CLProgram program = _programs.get(buildOptions);
+		if (program == null) {
+			program = ProgramBinaryCache.getProgram(_context, _device,
+					getProgramSource(), buildOptions);
+			_programs.put(buildOptions, program);
+		}
+		return program;
+	}
+
+	/**
+	 * Device memory taken by the buffers of all the solvers, in bytes.
+	 */
+	public synchronized long getAllocatedBytes() {
+		return _allocatedBytes;
+	}
+
+	/**
+	 * Called by solvers once they allocated (positive) or released (negative)
+	 * buffers.
+	 */
+	public synchronized void addAllocatedBytes(long bytes) {
+		_allocatedBytes += bytes;
+	}
+
+	private static String getProgramSource() throws IOException {
+		synchronized (_programSourceLock) {
+			if (_programSource == null) {
+				_programSource = IOUtils.readText(SPHDeviceRuntime.class
+						.getResourceAsStream("/resource/sphFluid.cl"));
+			}
+			return _programSource;
+		}
+	}
+}
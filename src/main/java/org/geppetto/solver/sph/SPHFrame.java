@@ -0,0 +1,155 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011, 2013 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+
+package org.geppetto.solver.sph;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * Positions of the moving particles after a step, in columnar layout.
+ *
+ * Positions hold x, y, z and particle type for each moving (non boundary)
+ * particle, particle ids map every entry back to its index in the scene.
+ * Velocities, when read, use the same layout. The ids array is shared by
+ * all frames of a scene and none of the arrays must be modified.
+ *
+ * Delta frames only hold the particles that moved noticeably since the
+ * last frame that carried them, with ids of their own. Applied in order on
+ * top of the last keyframe they give the current positions.
+ */
+public class SPHFrame {
+
+	public static final int POSITION_SIZE = 4;
+
+	private final long _step;
+	private final float[] _positions;
+	private final float[] _velocities;
+	private final int[] _particleIds;
+	private final boolean _keyframe;
+
+	public SPHFrame(long step, float[] positions, int[] particleIds) {
+		this(step, positions, null, particleIds);
+	}
+
+	public SPHFrame(long step, float[] positions, float[] velocities,
+			int[] particleIds) {
+		this(step, positions, velocities, particleIds, true);
+	}
+
+	private SPHFrame(long step, float[] positions, float[] velocities,
+			int[] particleIds, boolean keyframe) {
+		_step = step;
+		_positions = positions;
+		_velocities = velocities;
+		_particleIds = particleIds;
+		_keyframe = keyframe;
+	}
+
+	/**
+	 * Frame holding only the given particles, see isKeyframe().
+	 */
+	public static SPHFrame delta(long step, float[] positions,
+			int[] particleIds) {
+		return new SPHFrame(step, positions, null, particleIds, false);
+	}
+
+	/**
+	 * Number of steps computed before this frame, 0 for the initial scene.
+	 */
+	public long getStep() {
+		return _step;
+	}
+
+	public int getParticleCount() {
+		return _particleIds.length;
+	}
+
+	public float[] getPositions() {
+		return _positions;
+	}
+
+	/**
+	 * Read only view of the positions.
+	 */
+	public FloatBuffer getPositionBuffer() {
+		return FloatBuffer.wrap(_positions).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Velocities, null unless the solver was asked to read them.
+	 */
+	public float[] getVelocities() {
+		return _velocities;
+	}
+
+	/**
+	 * Read only view of the velocities, null if there are none.
+	 */
+	public FloatBuffer getVelocityBuffer() {
+		return _velocities == null ? null : FloatBuffer.wrap(_velocities)
+				.asReadOnlyBuffer();
+	}
+
+	public int[] getParticleIds() {
+		return _particleIds;
+	}
+
+	/**
+	 * False for delta frames, which only hold the particles that changed.
+	 */
+	public boolean isKeyframe() {
+		return _keyframe;
+	}
+
+	/**
+	 * Copies the positions of a delta frame over the positions of this
+	 * frame, the result is a keyframe at the step of the delta. Particle ids
+	 * of this frame must be in ascending order, as in solver frames.
+	 */
+	public SPHFrame apply(SPHFrame delta) {
+		float[] positions = _positions.clone();
+		int[] deltaIds = delta.getParticleIds();
+		float[] deltaPositions = delta.getPositions();
+		for (int i = 0; i < deltaIds.length; i++) {
+			int slot = Arrays.binarySearch(_particleIds, deltaIds[i]);
+			if (slot < 0) {
+				throw new IllegalArgumentException("SPHFrame:apply - particle "
+						+ deltaIds[i] + " is not in this frame");
+			}
+			System.arraycopy(deltaPositions, i * POSITION_SIZE, positions,
+					slot * POSITION_SIZE, POSITION_SIZE);
+		}
+		return new SPHFrame(delta.getStep(), positions, _particleIds);
+	}
+}
@@ -0,0 +1,140 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011, 2013 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+
+package org.geppetto.solver.sph;
+
+/**
+ * The last frames computed by a solver, kept in a primitive ring buffer.
+ *
+ * Once the ring is full every new frame evicts the oldest one, which is
+ * either dropped or moved to an off-heap SPHFrameSpillStore, so memory on
+ * the Java heap stays bounded however long a simulation runs. The spill
+ * store is bounded too and drops its oldest frames once full.
+ */
+public class SPHFrameHistory {
+
+	private final int _capacity;
+	private final int[] _particleIds;
+	private final int _frameSize;
+	private final float[] _ring;
+	private final long[] _steps;
+	private final SPHFrameSpillStore _spill;
+
+	// next slot to write, the oldest frame once the ring is full
+	private int _head = 0;
+	private int _count = 0;
+
+	/**
+	 * @param capacity
+	 *            frames kept on the heap
+	 * @param particleIds
+	 *            particle id index of the frames
+	 * @param spill
+	 *            whether evicted frames go to an off-heap store of
+	 *            SPHFrameSpillStore.DEFAULT_MAX_BYTES
+	 */
+	public SPHFrameHistory(int capacity, int[] particleIds, boolean spill) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException(
+					"SPHFrameHistory - capacity must be at least 1");
+		}
+		_capacity = capacity;
+		_particleIds = particleIds;
+		_frameSize = particleIds.length * SPHFrame.POSITION_SIZE;
+		_ring = new float[capacity * _frameSize];
+		_steps = new long[capacity];
+		_spill = spill ? new SPHFrameSpillStore(_frameSize) : null;
+	}
+
+	public synchronized void add(SPHFrame frame) {
+		if (_count == _capacity) {
+			if (_spill != null) {
+				_spill.add(_steps[_head], _ring, _head * _frameSize);
+			}
+		} else {
+			_count++;
+		}
+		System.arraycopy(frame.getPositions(), 0, _ring, _head * _frameSize,
+				_frameSize);
+		_steps[_head] = frame.getStep();
+		_head = (_head + 1) % _capacity;
+	}
+
+	/**
+	 * Frame of the given step, looked up in the ring first and then in the
+	 * spill store. Null if the frame is not kept anymore.
+	 */
+	public synchronized SPHFrame getFrame(long step) {
+		for (int i = 0; i < _count; i++) {
+			if (_steps[i] == step) {
+				float[] positions = new float[_frameSize];
+				System.arraycopy(_ring, i * _frameSize, positions, 0,
+						_frameSize);
+				return new SPHFrame(step, positions, _particleIds);
+			}
+		}
+		if (_spill != null) {
+			float[] positions = _spill.get(step);
+			if (positions != null) {
+				return new SPHFrame(step, positions, _particleIds);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Frames kept in the ring.
+	 */
+	public synchronized int size() {
+		return _count;
+	}
+
+	public int getCapacity() {
+		return _capacity;
+	}
+
+	/**
+	 * Frames moved to the off-heap store, 0 without spilling.
+	 */
+	public synchronized int getSpilledCount() {
+		return _spill == null ? 0 : _spill.size();
+	}
+
+	public synchronized void clear() {
+		_head = 0;
+		_count = 0;
+		if (_spill != null) {
+			_spill.clear();
+		}
+	}
+}
@@ -0,0 +1,197 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011, 2013 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+
+package org.geppetto.solver.sph;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Hands frames over to any number of subscribers.
+ *
+ * Every subscription has its own bounded queue and delivery thread, so a
+ * slow subscriber never delays the others. What happens when its queue is
+ * full depends on the subscription backpressure policy. Frames are shared
+ * by all subscribers, nothing is copied.
+ */
+public class SPHFramePublisher {
+
+	private static Log logger = LogFactory.getLog(SPHFramePublisher.class);
+
+	private final List<Subscription> _subscriptions = new CopyOnWriteArrayList<Subscription>();
+
+	/**
+	 * A listener registered with a publisher.
+	 */
+	public class Subscription implements Runnable {
+
+		private final SPHFrameListener _listener;
+		private final BackpressurePolicyEnum _policy;
+		private final boolean _velocities;
+		private final BlockingQueue<SPHFrame> _queue;
+		private final Thread _thread;
+		private volatile boolean _active = true;
+		private volatile long _dropped = 0;
+
+		Subscription(SPHFrameListener listener,
+				BackpressurePolicyEnum policy, int capacity,
+				boolean velocities) {
+			_listener = listener;
+			_policy = policy;
+			_velocities = velocities;
+			_queue = new ArrayBlockingQueue<SPHFrame>(
+					policy == BackpressurePolicyEnum.CONFLATE ? 1 : capacity);
+			_thread = new Thread(this, "SPH frame subscriber");
+			_thread.setDaemon(true);
+		}
+
+		public BackpressurePolicyEnum getPolicy() {
+			return _policy;
+		}
+
+		public boolean isVelocitiesRequested() {
+			return _velocities;
+		}
+
+		/**
+		 * Frames this subscriber never got because it was behind.
+		 */
+		public long getDroppedCount() {
+			return _dropped;
+		}
+
+		/**
+		 * Stops delivery, frames still queued are dropped.
+		 */
+		public void unsubscribe() {
+			_active = false;
+			_subscriptions.remove(this);
+			_thread.interrupt();
+		}
+
+		void offer(SPHFrame frame) throws InterruptedException {
+			if (_policy == BackpressurePolicyEnum.BLOCK) {
+				// gives up if the subscriber goes away meanwhile
+				while (_active
+						&& !_queue.offer(frame, 100, TimeUnit.MILLISECONDS)) {
+				}
+				return;
+			}
+			while (!_queue.offer(frame)) {
+				if (_queue.poll() != null) {
+					_dropped++;
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			while (_active) {
+				SPHFrame frame;
+				try {
+					frame = _queue.take();
+				} catch (InterruptedException e) {
+					break;
+				}
+				try {
+					_listener.frameReady(frame);
+				} catch (RuntimeException e) {
+					logger.error("SPH frame listener failed", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Registers a listener, capacity is the number of frames it can fall
+	 * behind before the policy kicks in (CONFLATE always keeps one).
+	 */
+	public Subscription subscribe(SPHFrameListener listener,
+			BackpressurePolicyEnum policy, int capacity, boolean velocities) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException(
+					"SPHFramePublisher - capacity must be at least 1");
+		}
+		Subscription subscription = new Subscription(listener, policy,
+				capacity, velocities);
+		_subscriptions.add(subscription);
+		subscription._thread.start();
+		return subscription;
+	}
+
+	public boolean hasSubscribers() {
+		return !_subscriptions.isEmpty();
+	}
+
+	/**
+	 * Whether any subscriber wants velocities in its frames.
+	 */
+	public boolean isVelocitiesRequested() {
+		for (Subscription subscription : _subscriptions) {
+			if (subscription._velocities) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Queues the frame for every subscriber, only blocks for subscribers
+	 * with the BLOCK policy.
+	 */
+	public void publish(SPHFrame frame) {
+		for (Subscription subscription : _subscriptions) {
+			try {
+				subscription.offer(frame);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Unsubscribes every listener.
+	 */
+	public void clear() {
+		for (Subscription subscription : _subscriptions) {
+			subscription.unsubscribe();
+		}
+	}
+}
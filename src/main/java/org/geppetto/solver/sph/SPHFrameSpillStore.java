@@ -0,0 +1,160 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011, 2013 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+
+package org.geppetto.solver.sph;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Off-heap store for frames evicted from an SPHFrameHistory.
+ *
+ * Frames are appended in step order to direct buffers, so they live outside
+ * the Java heap and cost no garbage collection work. The store holds at most
+ * a given number of bytes, once full the chunk with the oldest frames is
+ * dropped and its buffer reused for the new ones.
+ */
+public class SPHFrameSpillStore {
+
+	public static final long DEFAULT_MAX_BYTES = 1024L * 1024 * 1024;
+
+	private static final int CHUNK_BYTES = 64 * 1024 * 1024;
+
+	// chunks of a store whose limit is below CHUNK_BYTES, so that evicting
+	// one does not drop most of the store
+	private static final int MIN_CHUNKS = 4;
+
+	private final int _frameSize;
+	private final int _framesPerChunk;
+	private final int _maxChunks;
+	private final List<FloatBuffer> _chunks = new ArrayList<FloatBuffer>();
+	private long[] _steps = new long[64];
+	private int _count = 0;
+
+	/**
+	 * @param frameSize
+	 *            floats per frame
+	 */
+	public SPHFrameSpillStore(int frameSize) {
+		this(frameSize, DEFAULT_MAX_BYTES);
+	}
+
+	/**
+	 * @param frameSize
+	 *            floats per frame
+	 * @param maxBytes
+	 *            off-heap bytes the store may hold, at least one frame is
+	 *            always kept
+	 */
+	public SPHFrameSpillStore(int frameSize, long maxBytes) {
+		if (maxBytes < 1) {
+			throw new IllegalArgumentException(
+					"SPHFrameSpillStore - maxBytes must be positive");
+		}
+		_frameSize = frameSize;
+		long chunkBytes = Math.min(CHUNK_BYTES, maxBytes / MIN_CHUNKS);
+		_framesPerChunk = (int) Math.max(1,
+				chunkBytes / 4 / Math.max(frameSize, 1));
+		_maxChunks = (int) Math.max(1,
+				maxBytes / ((long) _framesPerChunk * _frameSize * 4));
+	}
+
+	/**
+	 * Appends a frame, steps have to be added in increasing order.
+	 */
+	public void add(long step, float[] data, int offset) {
+		int chunk = _count / _framesPerChunk;
+		if (chunk == _chunks.size()) {
+			if (_chunks.size() == _maxChunks) {
+				evictOldestChunk();
+				chunk--;
+			} else {
+				_chunks.add(ByteBuffer
+						.allocateDirect(_framesPerChunk * _frameSize * 4)
+						.order(ByteOrder.nativeOrder()).asFloatBuffer());
+			}
+		}
+		FloatBuffer buffer = _chunks.get(chunk);
+		buffer.position((_count % _framesPerChunk) * _frameSize);
+		buffer.put(data, offset, _frameSize);
+
+		if (_count == _steps.length) {
+			_steps = Arrays.copyOf(_steps, _count * 2);
+		}
+		_steps[_count++] = step;
+	}
+
+	private void evictOldestChunk() {
+		// the full chunk is recycled as the last one
+		_chunks.add(_chunks.remove(0));
+		_count -= _framesPerChunk;
+		System.arraycopy(_steps, _framesPerChunk, _steps, 0, _count);
+	}
+
+	/**
+	 * Positions of the given step, null if the step was never spilled or
+	 * has been evicted.
+	 */
+	public float[] get(long step) {
+		int index = Arrays.binarySearch(_steps, 0, _count, step);
+		if (index < 0) {
+			return null;
+		}
+		float[] positions = new float[_frameSize];
+		FloatBuffer buffer = _chunks.get(index / _framesPerChunk);
+		buffer.position((index % _framesPerChunk) * _frameSize);
+		buffer.get(positions);
+		return positions;
+	}
+
+	public int size() {
+		return _count;
+	}
+
+	/**
+	 * Off-heap bytes held by the store.
+	 */
+	public long getByteCount() {
+		return (long) _chunks.size() * _framesPerChunk * _frameSize * 4;
+	}
+
+	public void clear() {
+		// direct buffers are freed once collected
+		_chunks.clear();
+		_count = 0;
+	}
+}
@@ -0,0 +1,138 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011, 2013 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+
+package org.geppetto.solver.sph;
+
+import java.nio.IntBuffer;
+
+/**
+ * In place sort of the (grid cell, particle) pairs written by
+ * hashParticles.
+ *
+ * Pairs are ordered by cell and then by particle, which is the order a
+ * stable sort by cell gives since particles are hashed in id order. The
+ * buffer is sorted where it is, typically a mapped device buffer, so the
+ * host stage needs no copy of it.
+ */
+public class SPHIndexSort {
+
+	// ranges this short are finished with an insertion sort
+	private static final int INSERTION_THRESHOLD = 16;
+
+	private SPHIndexSort() {
+	}
+
+	/**
+	 * Sorts the first count pairs of the buffer, two ints each.
+	 */
+	public static void sort(IntBuffer pairs, int count) {
+		sort(pairs, 0, count - 1);
+	}
+
+	private static void sort(IntBuffer pairs, int from, int to) {
+		while (to - from >= INSERTION_THRESHOLD) {
+			int split = partition(pairs, from, to);
+			// recurse into the smaller side only so the stack stays
+			// logarithmic
+			if (split - from < to - split) {
+				sort(pairs, from, split - 1);
+				from = split + 1;
+			} else {
+				sort(pairs, split + 1, to);
+				to = split - 1;
+			}
+		}
+		insertionSort(pairs, from, to);
+	}
+
+	/*
+	 * Lomuto partition around the median of the first, middle and last
+	 * pairs, returns the final index of the pivot
+	 */
+	private static int partition(IntBuffer pairs, int from, int to) {
+		int middle = (from + to) >>> 1;
+		if (key(pairs, middle) < key(pairs, from)) {
+			swap(pairs, middle, from);
+		}
+		if (key(pairs, to) < key(pairs, from)) {
+			swap(pairs, to, from);
+		}
+		if (key(pairs, to) < key(pairs, middle)) {
+			swap(pairs, to, middle);
+		}
+		swap(pairs, middle, to);
+
+		long pivot = key(pairs, to);
+		int store = from;
+		for (int i = from; i < to; i++) {
+			if (key(pairs, i) < pivot) {
+				swap(pairs, i, store++);
+			}
+		}
+		swap(pairs, store, to);
+		return store;
+	}
+
+	private static void insertionSort(IntBuffer pairs, int from, int to) {
+		for (int i = from + 1; i <= to; i++) {
+			int cell = pairs.get(2 * i);
+			int particle = pairs.get(2 * i + 1);
+			long key = key(cell, particle);
+			int j = i - 1;
+			while (j >= from && key(pairs, j) > key) {
+				pairs.put(2 * j + 2, pairs.get(2 * j));
+				pairs.put(2 * j + 3, pairs.get(2 * j + 1));
+				j--;
+			}
+			pairs.put(2 * j + 2, cell);
+			pairs.put(2 * j + 3, particle);
+		}
+	}
+
+	private static long key(IntBuffer pairs, int i) {
+		return key(pairs.get(2 * i), pairs.get(2 * i + 1));
+	}
+
+	private static long key(int cell, int particle) {
+		return ((long) cell << 32) | (particle & 0xffffffffL);
+	}
+
+	private static void swap(IntBuffer pairs, int i, int j) {
+		int cell = pairs.get(2 * i);
+		int particle = pairs.get(2 * i + 1);
+		pairs.put(2 * i, pairs.get(2 * j));
+		pairs.put(2 * i + 1, pairs.get(2 * j + 1));
+		pairs.put(2 * j, cell);
+		pairs.put(2 * j + 1, particle);
+	}
+}
@@ -0,0 +1,114 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011, 2013 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+
+package org.geppetto.solver.sph;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The newest frame of a solver, for readers polling from other threads.
+ *
+ * Frames are never modified once built, so the solver publishes each one
+ * by reference, velocities included, with no lock and no copy. A reader
+ * acquires the current frame in a slot and releases it when done; a held
+ * frame stays valid however many frames are published meanwhile.
+ *
+ * <pre>
+ * SPHLatestFrame.Slot slot = latest.acquire();
+ * if (slot != null) {
+ * 	try {
+ * 		render(slot.getFrame());
+ * 	} finally {
+ * 		slot.release();
+ * 	}
+ * }
+ * </pre>
+ */
+public class SPHLatestFrame {
+
+	/**
+	 * A frame held by a reader.
+	 */
+	public static class Slot {
+		private final AtomicBoolean _released = new AtomicBoolean();
+		private final SPHFrame _frame;
+
+		private Slot(SPHFrame frame) {
+			_frame = frame;
+		}
+
+		/**
+		 * Only valid until release() is called.
+		 */
+		public SPHFrame getFrame() {
+			if (_released.get()) {
+				throw new IllegalStateException(
+						"SPHLatestFrame - slot was released");
+			}
+			return _frame;
+		}
+
+		public void release() {
+			if (!_released.compareAndSet(false, true)) {
+				throw new IllegalStateException(
+						"SPHLatestFrame - slot released twice");
+			}
+		}
+	}
+
+	private final AtomicReference<SPHFrame> _latest = new AtomicReference<SPHFrame>();
+
+	/**
+	 * Makes the frame the latest. The frame must not be modified afterwards.
+	 */
+	public void publish(SPHFrame frame) {
+		_latest.set(frame);
+	}
+
+	/**
+	 * The latest frame, null if nothing was published yet. The slot has to
+	 * be released once done with it.
+	 */
+	public Slot acquire() {
+		SPHFrame frame = _latest.get();
+		return frame == null ? null : new Slot(frame);
+	}
+
+	/**
+	 * Forgets the latest frame, readers holding slots keep them.
+	 */
+	public void clear() {
+		_latest.set(null);
+	}
+}
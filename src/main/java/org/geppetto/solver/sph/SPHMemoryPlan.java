@@ -0,0 +1,181 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011, 2013 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+
+package org.geppetto.solver.sph;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.nativelibs4java.opencl.CLDevice;
+
+/**
+ * Byte layout of a group of buffers carved from a single device allocation.
+ *
+ * Buffers are laid out back to back, each one starting at the device base
+ * address alignment so that it can be created as a sub-buffer of the arena.
+ * check() validates the plan against the device limits before anything is
+ * allocated: the arena has to fit in a single allocation, otherwise buffers
+ * are allocated one by one and each of them has to, and the total has to fit
+ * in global memory next to what is already allocated. Sub-buffers need
+ * OpenCL 1.1, on 1.0 devices buffers are always allocated one by one.
+ */
+public class SPHMemoryPlan {
+
+	private static final long MB = 1024 * 1024;
+
+	private final long _globalMemSize;
+	private final long _maxMemAllocSize;
+	private final long _alignment;
+	private final long _allocatedBytes;
+	private final boolean _subBuffers;
+
+	private final Map<BuffersEnum, Long> _offsets = new LinkedHashMap<BuffersEnum, Long>();
+	private final Map<BuffersEnum, Long> _byteCounts = new LinkedHashMap<BuffersEnum, Long>();
+	private long _totalBytes = 0;
+
+	/**
+	 * @param allocatedBytes
+	 *            device memory already taken by buffers outside this plan
+	 */
+	public SPHMemoryPlan(CLDevice device, long allocatedBytes) {
+		this(device.getGlobalMemSize(), device.getMaxMemAllocSize(), device
+				.getMemBaseAddrAlign() / 8, allocatedBytes,
+				isOpenCL11(device.getVersion()));
+	}
+
+	/**
+	 * Plan against explicit device limits of an OpenCL 1.1 device, alignment
+	 * in bytes.
+	 */
+	public SPHMemoryPlan(long globalMemSize, long maxMemAllocSize, long alignment,
+			long allocatedBytes) {
+		this(globalMemSize, maxMemAllocSize, alignment, allocatedBytes, true);
+	}
+
+	/**
+	 * Plan against explicit device limits, alignment in bytes.
+	 */
+	public SPHMemoryPlan(long globalMemSize, long maxMemAllocSize, long alignment,
+			long allocatedBytes, boolean subBuffers) {
+		_globalMemSize = globalMemSize;
+		_maxMemAllocSize = maxMemAllocSize;
+		_alignment = Math.max(alignment, 4);
+		_allocatedBytes = allocatedBytes;
+		_subBuffers = subBuffers;
+	}
+
+	/**
+	 * Whether a device of the given CL_DEVICE_VERSION ("OpenCL 1.1 ...")
+	 * implements OpenCL 1.1, which sub-buffers and the host unified memory
+	 * query need.
+	 */
+	public static boolean isOpenCL11(String deviceVersion) {
+		if (deviceVersion == null || !deviceVersion.startsWith("OpenCL ")) {
+			return false;
+		}
+		String[] version = deviceVersion.substring(7).split("[. ]");
+		try {
+			int major = Integer.parseInt(version[0]);
+			int minor = version.length > 1 ? Integer.parseInt(version[1]) : 0;
+			return major > 1 || (major == 1 && minor >= 1);
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	public void add(BuffersEnum buffer, long byteCount) {
+		long offset = (_totalBytes + _alignment - 1) / _alignment * _alignment;
+		_offsets.put(buffer, offset);
+		_byteCounts.put(buffer, byteCount);
+		_totalBytes = offset + byteCount;
+	}
+
+	public long getOffset(BuffersEnum buffer) {
+		return _offsets.get(buffer);
+	}
+
+	public long getByteCount(BuffersEnum buffer) {
+		return _byteCounts.get(buffer);
+	}
+
+	/**
+	 * Size of the arena, alignment padding included.
+	 */
+	public long getTotalBytes() {
+		return _totalBytes;
+	}
+
+	/**
+	 * Whether the buffers can be carved from a single allocation.
+	 */
+	public boolean isArena() {
+		return _subBuffers && _totalBytes <= _maxMemAllocSize;
+	}
+
+	/**
+	 * Global memory left once this plan and the memory already allocated
+	 * are taken.
+	 */
+	public long getHeadroom() {
+		return _globalMemSize - _allocatedBytes - _totalBytes;
+	}
+
+	/**
+	 * Throws if the device cannot hold the planned buffers.
+	 */
+	public void check() {
+		if (getHeadroom() < 0) {
+			throw new IllegalArgumentException("SPHMemoryPlan - buffers need "
+					+ _totalBytes / MB + "MB, device has "
+					+ (_globalMemSize - _allocatedBytes) / MB + "MB available");
+		}
+		if (!isArena()) {
+			for (Map.Entry<BuffersEnum, Long> entry : _byteCounts.entrySet()) {
+				if (entry.getValue() > _maxMemAllocSize) {
+					throw new IllegalArgumentException("SPHMemoryPlan - "
+							+ entry.getKey() + " needs " + entry.getValue()
+							/ MB + "MB, device allocations are limited to "
+							+ _maxMemAllocSize / MB + "MB");
+				}
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return (isArena() ? "arena of " : "separate buffers, ")
+				+ _totalBytes / MB + "MB for " + _byteCounts.size()
+				+ " buffers, " + getHeadroom() / MB
+				+ "MB device memory headroom";
+	}
+}
@@ -0,0 +1,144 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011, 2013 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+
+
+package org.geppetto.solver.sph;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+import org.geppetto.model.sph.common.SPHConstants;
+
+/**
+ * Particles a solver reads back from the device after every step, picked by
+ * particle type, by scene index or by a per-particle mask.
+ *
+ * A selection is only a description, it is resolved against a scene into the
+ * ascending scene indices frames are made of.
+ */
+public class SPHParticleSelection {
+
+	private final float[] _types;
+	private final int[] _ids;
+	private final boolean[] _mask;
+
+	private SPHParticleSelection(float[] types, int[] ids, boolean[] mask) {
+		_types = types;
+		_ids = ids;
+		_mask = mask;
+	}
+
+	/**
+	 * Liquid and elastic particles, boundary particles never move.
+	 */
+	public static SPHParticleSelection moving() {
+		return byType(SPHConstants.LIQUID_TYPE, SPHConstants.ELASTIC_TYPE);
+	}
+
+	public static SPHParticleSelection byType(float... types) {
+		return new SPHParticleSelection(types.clone(), null, null);
+	}
+
+	public static SPHParticleSelection byIds(int... ids) {
+		return new SPHParticleSelection(null, ids.clone(), null);
+	}
+
+	/**
+	 * Particles whose entry in the mask is set, the mask is indexed by scene
+	 * index and may be shorter than the scene.
+	 */
+	public static SPHParticleSelection byMask(boolean[] mask) {
+		return new SPHParticleSelection(null, null, mask.clone());
+	}
+
+	/**
+	 * Scene indices of the selected particles, in ascending order.
+	 */
+	public int[] resolve(SPHScene scene) {
+		int particleCount = scene.getParticleCount();
+
+		if (_ids != null) {
+			int[] ids = _ids.clone();
+			Arrays.sort(ids);
+			int count = 0;
+			for (int i = 0; i < ids.length; i++) {
+				if (ids[i] < 0 || ids[i] >= particleCount) {
+					throw new IllegalArgumentException(
+							"SPHParticleSelection:resolve - particle " + ids[i]
+									+ " is not in a scene of " + particleCount
+									+ " particles");
+				}
+				if (count == 0 || ids[i] != ids[count - 1]) {
+					ids[count++] = ids[i];
+				}
+			}
+			return Arrays.copyOf(ids, count);
+		}
+
+		FloatBuffer positions = scene.getPositions();
+		int[] ids = new int[particleCount];
+		int count = 0;
+		for (int i = 0; i < particleCount; i++) {
+			boolean selected;
+			if (_mask != null) {
+				selected = i < _mask.length && _mask[i];
+			} else {
+				selected = hasType(positions.get(i * SPHScene.POSITION_SIZE + 3));
+			}
+			if (selected) {
+				ids[count++] = i;
+			}
+		}
+		return Arrays.copyOf(ids, count);
+	}
+
+	private boolean hasType(float type) {
+		for (float t : _types) {
+			if (t == type) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		if (_ids != null) {
+			return "ids " + Arrays.toString(_ids);
+		}
+		if (_mask != null) {
+			return "mask of " + _mask.length;
+		}
+		return "types " + Arrays.toString(_types);
+	}
+}
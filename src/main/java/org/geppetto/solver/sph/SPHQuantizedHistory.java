@@ -0,0 +1,217 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011, 2013 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+
+package org.geppetto.solver.sph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compact store of a whole run of frames, for replay.
+ *
+ * Coordinates are quantized to 16 bits over the scene bounds, which keeps
+ * them within getResolution() of the simulated value. Frames are grouped by
+ * KEYFRAME_INTERVAL: the first frame of a group stores quantized values as
+ * they are and the others store zigzag varint deltas against the previous
+ * frame, mostly a single byte per coordinate. Each group is a packed byte
+ * array, a frame is decoded from the start of its group. Particle types
+ * never change and are stored once.
+ */
+public class SPHQuantizedHistory {
+
+	public static final int KEYFRAME_INTERVAL = 32;
+
+	private static final int LEVELS = 0xFFFF;
+	private static final int COORDINATES = 3;
+
+	private final int[] _particleIds;
+	private final float[] _min = new float[COORDINATES];
+	private final float[] _scale = new float[COORDINATES];
+	private float[] _types;
+	private long _firstStep;
+
+	// completed groups, trimmed, and the group being written
+	private final List<byte[]> _groups = new ArrayList<byte[]>();
+	private byte[] _current = new byte[1024];
+	private int _currentLength = 0;
+
+	private final int[] _previous;
+	private int _count = 0;
+
+	public SPHQuantizedHistory(int[] particleIds, float xMin, float xMax,
+			float yMin, float yMax, float zMin, float zMax) {
+		_particleIds = particleIds;
+		_previous = new int[particleIds.length * COORDINATES];
+		setRange(0, xMin, xMax);
+		setRange(1, yMin, yMax);
+		setRange(2, zMin, zMax);
+	}
+
+	private void setRange(int coordinate, float min, float max) {
+		_min[coordinate] = min;
+		_scale[coordinate] = max > min ? (max - min) / LEVELS : 1f;
+	}
+
+	/**
+	 * Appends a frame, frames are expected one step after the other.
+	 */
+	public synchronized void add(SPHFrame frame) {
+		float[] positions = frame.getPositions();
+		if (_count == 0) {
+			_firstStep = frame.getStep();
+			_types = new float[_particleIds.length];
+			for (int i = 0; i < _types.length; i++) {
+				_types[i] = positions[i * SPHFrame.POSITION_SIZE + 3];
+			}
+		}
+
+		boolean keyframe = _count % KEYFRAME_INTERVAL == 0;
+		if (keyframe && _count > 0) {
+			_groups.add(Arrays.copyOf(_current, _currentLength));
+			_currentLength = 0;
+		}
+
+		for (int i = 0, q = 0; i < _particleIds.length; i++) {
+			for (int c = 0; c < COORDINATES; c++, q++) {
+				int value = quantize(positions[i * SPHFrame.POSITION_SIZE + c], c);
+				if (keyframe) {
+					writeVarint(value);
+				} else {
+					int delta = value - _previous[q];
+					writeVarint((delta << 1) ^ (delta >> 31));
+				}
+				_previous[q] = value;
+			}
+		}
+		_count++;
+	}
+
+	/**
+	 * Frame at the given position in the run, 0 being the first added.
+	 */
+	public synchronized SPHFrame getFrame(int index) {
+		if (index < 0 || index >= _count) {
+			throw new IndexOutOfBoundsException("SPHQuantizedHistory - frame "
+					+ index + " of " + _count);
+		}
+
+		int group = index / KEYFRAME_INTERVAL;
+		byte[] data = group < _groups.size() ? _groups.get(group) : _current;
+
+		int[] values = new int[_previous.length];
+		int[] position = { 0 };
+		for (int f = group * KEYFRAME_INTERVAL; f <= index; f++) {
+			boolean keyframe = f % KEYFRAME_INTERVAL == 0;
+			for (int q = 0; q < values.length; q++) {
+				int encoded = readVarint(data, position);
+				if (keyframe) {
+					values[q] = encoded;
+				} else {
+					values[q] += (encoded >>> 1) ^ -(encoded & 1);
+				}
+			}
+		}
+
+		float[] positions = new float[_particleIds.length * SPHFrame.POSITION_SIZE];
+		for (int i = 0, q = 0; i < _particleIds.length; i++) {
+			for (int c = 0; c < COORDINATES; c++, q++) {
+				positions[i * SPHFrame.POSITION_SIZE + c] = _min[c]
+						+ values[q] * _scale[c];
+			}
+			positions[i * SPHFrame.POSITION_SIZE + 3] = _types[i];
+		}
+		return new SPHFrame(_firstStep + index, positions, _particleIds);
+	}
+
+	/**
+	 * Frame of the given step, null if it is not in the store.
+	 */
+	public synchronized SPHFrame getFrameAtStep(long step) {
+		long index = step - _firstStep;
+		if (_count == 0 || index < 0 || index >= _count) {
+			return null;
+		}
+		return getFrame((int) index);
+	}
+
+	public synchronized int size() {
+		return _count;
+	}
+
+	/**
+	 * Largest quantization error over the three coordinates.
+	 */
+	public float getResolution() {
+		return Math.max(_scale[0], Math.max(_scale[1], _scale[2])) / 2;
+	}
+
+	/**
+	 * Bytes used by the encoded frames.
+	 */
+	public synchronized long getByteCount() {
+		long bytes = _currentLength;
+		for (byte[] group : _groups) {
+			bytes += group.length;
+		}
+		return bytes;
+	}
+
+	private int quantize(float value, int coordinate) {
+		int level = Math.round((value - _min[coordinate]) / _scale[coordinate]);
+		return Math.min(Math.max(level, 0), LEVELS);
+	}
+
+	private void writeVarint(int value) {
+		if (_currentLength + 5 > _current.length) {
+			_current = Arrays.copyOf(_current, _current.length * 2);
+		}
+		while ((value & ~0x7F) != 0) {
+			_current[_currentLength++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		_current[_currentLength++] = (byte) value;
+	}
+
+	private static int readVarint(byte[] data, int[] position) {
+		int value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = data[position[0]++];
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+}
@@ -0,0 +1,204 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011, 2013 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+
+package org.geppetto.solver.sph;
+
+import java.nio.FloatBuffer;
+import java.util.List;
+
+import org.geppetto.core.model.IModel;
+import org.geppetto.model.sph.Connection;
+import org.geppetto.model.sph.x.SPHModelX;
+import org.geppetto.model.sph.x.Vector3DX;
+
+/**
+ * Particle scene held in flat float arrays, ready to be uploaded to device
+ * buffers as they are.
+ *
+ * Positions and velocities hold 4 floats per particle (x, y, z, particle
+ * type for positions), connections 3 floats per connection (partner
+ * particle id, rest length, muscle index) laid out as in SPHModel:
+ * NEIGHBOR_COUNT slots per elastic particle, unused slots having -1 as
+ * partner id. The buffers can be heap arrays or memory mapped files, see
+ * SPHSceneFile.
+ */
+public class SPHScene implements IModel {
+
+	public static final int POSITION_SIZE = 4;
+	public static final int VELOCITY_SIZE = 4;
+	public static final int CONNECTION_SIZE = 3;
+
+	private final String _id;
+	private final float _xMin;
+	private final float _xMax;
+	private final float _yMin;
+	private final float _yMax;
+	private final float _zMin;
+	private final float _zMax;
+	private final int _elasticBundles;
+	private final FloatBuffer _positions;
+	private final FloatBuffer _velocities;
+	private final FloatBuffer _connections;
+
+	public SPHScene(String id, float xMin, float xMax, float yMin, float yMax,
+			float zMin, float zMax, int elasticBundles, FloatBuffer positions,
+			FloatBuffer velocities, FloatBuffer connections) {
+		if (positions.capacity() % POSITION_SIZE != 0
+				|| velocities.capacity() != positions.capacity()) {
+			throw new IllegalArgumentException(
+					"SPHScene - positions and velocities must hold "
+							+ POSITION_SIZE + " floats per particle");
+		}
+		if (connections.capacity() % CONNECTION_SIZE != 0) {
+			throw new IllegalArgumentException(
+					"SPHScene - connections must hold " + CONNECTION_SIZE
+							+ " floats per connection");
+		}
+
+		_id = id;
+		_xMin = xMin;
+		_xMax = xMax;
+		_yMin = yMin;
+		_yMax = yMax;
+		_zMin = zMin;
+		_zMax = zMax;
+		_elasticBundles = elasticBundles;
+		_positions = positions;
+		_velocities = velocities;
+		_connections = connections;
+	}
+
+	/**
+	 * Flattens an SPHModel object graph.
+	 */
+	public static SPHScene fromModel(SPHModelX model) {
+		int particleCount = model.getNumberOfParticles();
+		float[] positions = new float[particleCount * POSITION_SIZE];
+		float[] velocities = new float[particleCount * VELOCITY_SIZE];
+
+		int index = 0;
+		for (int i = 0; i < particleCount; i++, index += POSITION_SIZE) {
+			Vector3DX positionVector = (Vector3DX) model.getParticles().get(i)
+					.getPositionVector();
+			Vector3DX velocityVector = (Vector3DX) model.getParticles().get(i)
+					.getVelocityVector();
+
+			positions[index] = positionVector.getX();
+			positions[index + 1] = positionVector.getY();
+			positions[index + 2] = positionVector.getZ();
+			positions[index + 3] = positionVector.getP();
+			velocities[index] = velocityVector.getX();
+			velocities[index + 1] = velocityVector.getY();
+			velocities[index + 2] = velocityVector.getZ();
+			velocities[index + 3] = velocityVector.getP();
+		}
+
+		List<Connection> modelConnections = model.getConnections();
+		int connectionCount = (modelConnections == null) ? 0
+				: modelConnections.size();
+		float[] connections = new float[connectionCount * CONNECTION_SIZE];
+
+		index = 0;
+		for (int i = 0; i < connectionCount; i++, index += CONNECTION_SIZE) {
+			Connection conn = modelConnections.get(i);
+			connections[index] = conn.getP1();
+			connections[index + 1] = conn.getDistance();
+			connections[index + 2] = conn.getMysteryValue();
+		}
+
+		int elasticBundles = (model.getElasticBundles() == null) ? 0 : model
+				.getElasticBundles().intValue();
+
+		return new SPHScene(model.getId(), model.getXMin(), model.getXMax(),
+				model.getYMin(), model.getYMax(), model.getZMin(),
+				model.getZMax(), elasticBundles, FloatBuffer.wrap(positions),
+				FloatBuffer.wrap(velocities), FloatBuffer.wrap(connections));
+	}
+
+	@Override
+	public String getId() {
+		return _id;
+	}
+
+	public float getXMin() {
+		return _xMin;
+	}
+
+	public float getXMax() {
+		return _xMax;
+	}
+
+	public float getYMin() {
+		return _yMin;
+	}
+
+	public float getYMax() {
+		return _yMax;
+	}
+
+	public float getZMin() {
+		return _zMin;
+	}
+
+	public float getZMax() {
+		return _zMax;
+	}
+
+	public int getElasticBundles() {
+		return _elasticBundles;
+	}
+
+	public int getParticleCount() {
+		return _positions.capacity() / POSITION_SIZE;
+	}
+
+	public int getConnectionCount() {
+		return _connections.capacity() / CONNECTION_SIZE;
+	}
+
+	/**
+	 * The returned buffers share content with the scene, use absolute gets
+	 * or duplicate them before moving their position.
+	 */
+	public FloatBuffer getPositions() {
+		return _positions;
+	}
+
+	public FloatBuffer getVelocities() {
+		return _velocities;
+	}
+
+	public FloatBuffer getConnections() {
+		return _connections;
+	}
+}
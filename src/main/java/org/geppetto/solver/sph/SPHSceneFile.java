@@ -0,0 +1,280 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011, 2013 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+
+package org.geppetto.solver.sph;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Binary scene files.
+ *
+ * Layout, little endian: a 64 bytes header (magic, version, xMin, xMax, yMin,
+ * yMax, zMin, zMax, particle count, connection count, elastic bundles count,
+ * reserved) followed by the position, velocity and connection arrays as
+ * described in SPHScene. Files are memory mapped when read so the arrays go
+ * from the page cache to the device without being copied on the heap;
+ * scenes that are not plain files (bundle or jar entries) are streamed into
+ * a direct buffer instead.
+ */
+public class SPHSceneFile {
+
+	public static final int MAGIC = 0x53485053; // "SPHS"
+	public static final int VERSION = 1;
+	public static final int HEADER_SIZE = 64;
+	public static final String EXTENSION = ".sph";
+
+	private static final int FLOAT_SIZE = 4;
+
+	private SPHSceneFile() {
+	}
+
+	/**
+	 * Maps a scene file, the scene id is the file name without extension.
+	 */
+	public static SPHScene read(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		MappedByteBuffer mapped;
+		try {
+			// the mapping stays valid once the channel is closed
+			mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+					raf.length());
+		} finally {
+			raf.close();
+		}
+
+		return parse(mapped.order(ByteOrder.LITTLE_ENDIAN), file.toString(),
+				getId(file.getName()));
+	}
+
+	/**
+	 * Reads a scene from a stream into a direct buffer, for scenes that are
+	 * not plain files. The stream is not closed.
+	 */
+	public static SPHScene read(InputStream in, String name)
+			throws IOException {
+		ReadableByteChannel channel = Channels.newChannel(in);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(
+				ByteOrder.LITTLE_ENDIAN);
+		readFully(channel, header, name);
+		checkHeader(header, name);
+
+		long size = getFileSize(header.getInt(32), header.getInt(36));
+		if (header.getInt(32) < 0 || header.getInt(36) < 0
+				|| size > Integer.MAX_VALUE) {
+			throw new IOException(name + " is truncated or corrupted");
+		}
+		ByteBuffer buffer = ByteBuffer.allocateDirect((int) size).order(
+				ByteOrder.LITTLE_ENDIAN);
+		header.clear();
+		buffer.put(header);
+		readFully(channel, buffer, name);
+		if (in.read() != -1) {
+			throw new IOException(name + " is truncated or corrupted");
+		}
+		buffer.clear();
+
+		int slash = name.lastIndexOf('/');
+		return parse(buffer, name, getId(name.substring(slash + 1)));
+	}
+
+	private static SPHScene parse(ByteBuffer buffer, String name, String id)
+			throws IOException {
+		checkHeader(buffer, name);
+
+		float xMin = buffer.getFloat(8);
+		float xMax = buffer.getFloat(12);
+		float yMin = buffer.getFloat(16);
+		float yMax = buffer.getFloat(20);
+		float zMin = buffer.getFloat(24);
+		float zMax = buffer.getFloat(28);
+		int particleCount = buffer.getInt(32);
+		int connectionCount = buffer.getInt(36);
+		int elasticBundles = buffer.getInt(40);
+
+		if (particleCount < 0 || connectionCount < 0
+				|| buffer.capacity() != getFileSize(particleCount,
+						connectionCount)) {
+			throw new IOException(name + " is truncated or corrupted");
+		}
+
+		int offset = HEADER_SIZE;
+		FloatBuffer positions = slice(buffer, offset, particleCount
+				* SPHScene.POSITION_SIZE);
+		offset += positions.capacity() * FLOAT_SIZE;
+		FloatBuffer velocities = slice(buffer, offset, particleCount
+				* SPHScene.VELOCITY_SIZE);
+		offset += velocities.capacity() * FLOAT_SIZE;
+		FloatBuffer connections = slice(buffer, offset, connectionCount
+				* SPHScene.CONNECTION_SIZE);
+
+		return new SPHScene(id, xMin, xMax, yMin, yMax, zMin, zMax,
+				elasticBundles, positions, velocities, connections);
+	}
+
+	public static void write(SPHScene scene, File file) throws IOException {
+		int particleCount = scene.getParticleCount();
+		int connectionCount = scene.getConnectionCount();
+		long size = getFileSize(particleCount, connectionCount);
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(size);
+			ByteBuffer buffer = raf.getChannel()
+					.map(FileChannel.MapMode.READ_WRITE, 0, size)
+					.order(ByteOrder.LITTLE_ENDIAN);
+
+			buffer.putInt(MAGIC);
+			buffer.putInt(VERSION);
+			buffer.putFloat(scene.getXMin());
+			buffer.putFloat(scene.getXMax());
+			buffer.putFloat(scene.getYMin());
+			buffer.putFloat(scene.getYMax());
+			buffer.putFloat(scene.getZMin());
+			buffer.putFloat(scene.getZMax());
+			buffer.putInt(particleCount);
+			buffer.putInt(connectionCount);
+			buffer.putInt(scene.getElasticBundles());
+
+			buffer.position(HEADER_SIZE);
+			FloatBuffer floats = buffer.slice().order(ByteOrder.LITTLE_ENDIAN)
+					.asFloatBuffer();
+			floats.put(rewind(scene.getPositions()));
+			floats.put(rewind(scene.getVelocities()));
+			floats.put(rewind(scene.getConnections()));
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Loads binary scene files (by extension) as well as SPHModel XML files.
+	 * Binary scenes are mapped when the URL is a file and streamed otherwise.
+	 */
+	public static SPHScene load(URL url) throws IOException {
+		if (!url.getPath().endsWith(EXTENSION)) {
+			return SPHSceneXMLReader.read(url);
+		}
+		if ("file".equals(url.getProtocol())) {
+			try {
+				return read(new File(url.toURI()));
+			} catch (URISyntaxException e) {
+				throw new IOException("Invalid scene location " + url);
+			}
+		}
+		InputStream in = url.openStream();
+		try {
+			return read(in, url.getPath());
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Converts an SPHModel XML file into a binary scene file.
+	 */
+	public static void convert(URL model, File file) throws IOException {
+		write(SPHSceneXMLReader.read(model), file);
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length != 2) {
+			System.out.println("usage: SPHSceneFile <model.xml> <scene"
+					+ EXTENSION + ">");
+			return;
+		}
+
+		long start = System.currentTimeMillis();
+		convert(new File(args[0]).toURI().toURL(), new File(args[1]));
+		System.out.println("Converted " + args[0] + " to " + args[1]
+				+ ", took " + (System.currentTimeMillis() - start) + "ms");
+	}
+
+	private static void checkHeader(ByteBuffer buffer, String name)
+			throws IOException {
+		if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+			throw new IOException(name + " is not an SPH scene file");
+		}
+		if (buffer.getInt(4) != VERSION) {
+			throw new IOException(name + " has unsupported version "
+					+ buffer.getInt(4));
+		}
+	}
+
+	private static void readFully(ReadableByteChannel channel,
+			ByteBuffer buffer, String name) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				throw new IOException(name + " is truncated or corrupted");
+			}
+		}
+	}
+
+	private static String getId(String fileName) {
+		if (fileName.endsWith(EXTENSION)) {
+			return fileName.substring(0, fileName.length() - EXTENSION.length());
+		}
+		return fileName;
+	}
+
+	private static long getFileSize(int particleCount, int connectionCount) {
+		long floats = (long) particleCount
+				* (SPHScene.POSITION_SIZE + SPHScene.VELOCITY_SIZE)
+				+ (long) connectionCount * SPHScene.CONNECTION_SIZE;
+		return HEADER_SIZE + floats * FLOAT_SIZE;
+	}
+
+	private static FloatBuffer slice(ByteBuffer buffer, int offset, int floats) {
+		ByteBuffer view = buffer.duplicate();
+		view.position(offset);
+		view.limit(offset + floats * FLOAT_SIZE);
+		return view.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+	}
+
+	private static FloatBuffer rewind(FloatBuffer buffer) {
+		FloatBuffer view = buffer.duplicate();
+		view.clear();
+		return view;
+	}
+}
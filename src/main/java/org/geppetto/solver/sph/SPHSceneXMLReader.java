@@ -0,0 +1,208 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011, 2013 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+
+package org.geppetto.solver.sph;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Streaming reader for SPHModel XML files.
+ *
+ * Particles and connections are written straight into primitive arrays as
+ * the document is parsed, no per particle objects are created so memory
+ * stays proportional to the scene arrays whatever the size of the file.
+ */
+public class SPHSceneXMLReader {
+
+	private static final XMLInputFactory FACTORY = createFactory();
+
+	private SPHSceneXMLReader() {
+	}
+
+	/*
+	 * Model files never need a DTD, turning DTDs and external entities off
+	 * keeps a crafted file from reading local files or remote URLs (XXE)
+	 */
+	private static XMLInputFactory createFactory() {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+				Boolean.FALSE);
+		return factory;
+	}
+
+	/**
+	 * Reads a scene, the scene id is the file name without extension.
+	 */
+	public static SPHScene read(URL url) throws IOException {
+		String id = url.getPath();
+		id = id.substring(id.lastIndexOf('/') + 1);
+		if (id.lastIndexOf('.') > 0) {
+			id = id.substring(0, id.lastIndexOf('.'));
+		}
+
+		InputStream stream = url.openStream();
+		try {
+			return read(stream, id);
+		} finally {
+			stream.close();
+		}
+	}
+
+	public static SPHScene read(InputStream stream, String id)
+			throws IOException {
+		float[] bounds = new float[6];
+		int elasticBundles = 0;
+		FloatArray positions = new FloatArray(1024 * SPHScene.POSITION_SIZE);
+		FloatArray velocities = new FloatArray(1024 * SPHScene.VELOCITY_SIZE);
+		FloatArray connections = new FloatArray(1024 * SPHScene.CONNECTION_SIZE);
+		int connection = -1;
+
+		try {
+			XMLStreamReader reader = FACTORY.createXMLStreamReader(stream);
+			try {
+				while (reader.hasNext()) {
+					if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+						continue;
+					}
+
+					String name = reader.getLocalName();
+					if ("SPHModel".equals(name)) {
+						bounds[0] = getFloat(reader, "xMin");
+						bounds[1] = getFloat(reader, "xMax");
+						bounds[2] = getFloat(reader, "yMin");
+						bounds[3] = getFloat(reader, "yMax");
+						bounds[4] = getFloat(reader, "zMin");
+						bounds[5] = getFloat(reader, "zMax");
+						elasticBundles = (int) getFloat(reader, "elasticBundles");
+					} else if ("positionVector".equals(name)) {
+						addVector(reader, positions);
+					} else if ("velocityVector".equals(name)) {
+						addVector(reader, velocities);
+					} else if ("connections".equals(name)) {
+						connection = connections.size();
+						connections.add(0f);
+						connections.add(0f);
+						connections.add(0f);
+					} else if ("p1".equals(name)) {
+						connections.set(connection, getText(reader));
+					} else if ("distance".equals(name)) {
+						connections.set(connection + 1, getText(reader));
+					} else if ("mysteryValue".equals(name)) {
+						connections.set(connection + 2, getText(reader));
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (XMLStreamException e) {
+			throw new IOException("Could not parse model " + id + ": "
+					+ e.getMessage());
+		} catch (NumberFormatException e) {
+			throw new IOException("Could not parse model " + id + ": "
+					+ e.getMessage());
+		}
+
+		if (positions.size() != velocities.size()) {
+			throw new IOException("Model " + id
+					+ " has particles without position or velocity");
+		}
+
+		return new SPHScene(id, bounds[0], bounds[1], bounds[2], bounds[3],
+				bounds[4], bounds[5], elasticBundles, positions.toBuffer(),
+				velocities.toBuffer(), connections.toBuffer());
+	}
+
+	private static void addVector(XMLStreamReader reader, FloatArray array) {
+		array.add(getFloat(reader, "x"));
+		array.add(getFloat(reader, "y"));
+		array.add(getFloat(reader, "z"));
+		array.add(getFloat(reader, "p"));
+	}
+
+	private static float getFloat(XMLStreamReader reader, String attribute) {
+		String value = reader.getAttributeValue(null, attribute);
+		return (value == null) ? 0f : Float.parseFloat(value.trim());
+	}
+
+	private static float getText(XMLStreamReader reader)
+			throws XMLStreamException {
+		return Float.parseFloat(reader.getElementText().trim());
+	}
+
+	/*
+	 * Growable float array, avoids boxing a Float per value
+	 */
+	private static class FloatArray {
+		private float[] _values;
+		private int _size = 0;
+
+		FloatArray(int capacity) {
+			_values = new float[capacity];
+		}
+
+		void add(float value) {
+			if (_size == _values.length) {
+				_values = Arrays.copyOf(_values, _values.length * 2);
+			}
+			_values[_size++] = value;
+		}
+
+		void set(int index, float value) {
+			if (index < 0 || index >= _size) {
+				throw new NumberFormatException("value outside of its element");
+			}
+			_values[index] = value;
+		}
+
+		int size() {
+			return _size;
+		}
+
+		FloatBuffer toBuffer() {
+			if (_size == _values.length) {
+				return FloatBuffer.wrap(_values);
+			}
+			return FloatBuffer.wrap(Arrays.copyOf(_values, _size));
+		}
+	}
+}
@@ -0,0 +1,216 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011, 2013 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+
+package org.geppetto.solver.sph;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Bounded pool of pre-warmed solvers.
+ *
+ * Pooled solvers have their queue and kernels created and their device
+ * buffers reserved for a capacity class (particles and grid cells), so a new
+ * simulation only has to upload its scene. Disposing a pooled solver checks
+ * it back in. When no solver is idle a new one is created as long as fewer
+ * than the maximum number of solvers exist, otherwise acquire() waits for one
+ * to be checked back in. Solvers returned once size solvers are idle are
+ * released.
+ *
+ * A solver belongs to the thread that acquired it until that thread disposes
+ * it, other threads (including the one that disposed it) cannot use it.
+ */
+public class SPHSolverPool {
+
+	private static Log logger = LogFactory.getLog(SPHSolverPool.class);
+
+	// how long acquire() waits for a solver once the pool is at its maximum
+	static final long ACQUIRE_TIMEOUT_MS = 30000;
+
+	private final BlockingQueue<SPHSolverService> _idle;
+	private final HardwareProfileEnum _hardwareProfile;
+	private final int _maxSize;
+	private final int _particleCapacity;
+	private final int _gridCellCapacity;
+	// solvers created and not released yet, idle or checked out
+	private final AtomicInteger _solverCount = new AtomicInteger();
+	private volatile boolean _shutdown = false;
+
+	/**
+	 * Pool that never holds more than size solvers.
+	 */
+	public SPHSolverPool(HardwareProfileEnum hardwareProfile, int size,
+			int particleCapacity, int gridCellCapacity) throws Exception {
+		this(hardwareProfile, size, size, particleCapacity, gridCellCapacity);
+	}
+
+	/**
+	 * @param size
+	 *            solvers created up front and kept idle
+	 * @param maxSize
+	 *            solvers that can exist at the same time
+	 */
+	public SPHSolverPool(HardwareProfileEnum hardwareProfile, int size,
+			int maxSize, int particleCapacity, int gridCellCapacity)
+			throws Exception {
+		if (size <= 0 || maxSize < size) {
+			throw new IllegalArgumentException(
+					"SPHSolverPool - pool size must be positive and at most the maximum size");
+		}
+
+		_idle = new ArrayBlockingQueue<SPHSolverService>(size);
+		_hardwareProfile = hardwareProfile;
+		_maxSize = maxSize;
+		_particleCapacity = particleCapacity;
+		_gridCellCapacity = gridCellCapacity;
+
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < size; i++) {
+			_solverCount.incrementAndGet();
+			_idle.offer(createSolver());
+		}
+		logger.info("SPH solver pool warmed up with " + size
+				+ " solvers, took " + (System.currentTimeMillis() - start)
+				+ "ms");
+	}
+
+	/**
+	 * Checks out a solver for the calling thread, creating one if none is
+	 * idle and the pool is below its maximum size, waiting for one to be
+	 * disposed otherwise. Call dispose() on the solver, from the same
+	 * thread, to give it back.
+	 */
+	public SPHSolverService acquire() throws Exception {
+		if (_shutdown) {
+			throw new IllegalStateException("SPHSolverPool - pool is shut down");
+		}
+
+		long deadline = System.currentTimeMillis() + ACQUIRE_TIMEOUT_MS;
+		SPHSolverService solver = _idle.poll();
+		while (solver == null) {
+			if (reserveSolver()) {
+				logger.info("SPH solver pool exhausted, creating a new solver");
+				try {
+					solver = createSolver();
+				} catch (Exception e) {
+					_solverCount.decrementAndGet();
+					throw e;
+				}
+				break;
+			}
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				throw new IllegalStateException("SPHSolverPool - all "
+						+ _maxSize + " solvers are in use");
+			}
+			// woken up early to create a solver once one has been released
+			solver = _idle.poll(Math.min(remaining, 100),
+					TimeUnit.MILLISECONDS);
+		}
+
+		if (!solver.checkOut()) {
+			throw new IllegalStateException(
+					"SPHSolverPool - solver handed out while already checked out");
+		}
+		return solver;
+	}
+
+	/*
+	 * Counts a solver about to be created, false if the pool is at its
+	 * maximum size
+	 */
+	private boolean reserveSolver() {
+		while (true) {
+			int count = _solverCount.get();
+			if (count >= _maxSize) {
+				return false;
+			}
+			if (_solverCount.compareAndSet(count, count + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/*
+	 * Called by SPHSolverService.dispose() once the solver has been reset.
+	 * Synchronized with shutdown() so that a solver is never offered to a
+	 * queue that has already been drained.
+	 */
+	synchronized void release(SPHSolverService solver) {
+		if (_shutdown || !_idle.offer(solver)) {
+			_solverCount.decrementAndGet();
+			solver.cleanContext();
+		}
+	}
+
+	/**
+	 * Releases idle solvers, solvers still checked out are released when
+	 * disposed.
+	 */
+	public synchronized void shutdown() {
+		_shutdown = true;
+
+		SPHSolverService solver;
+		while ((solver = _idle.poll()) != null) {
+			_solverCount.decrementAndGet();
+			solver.cleanContext();
+		}
+	}
+
+	public int getIdleCount() {
+		return _idle.size();
+	}
+
+	/**
+	 * Solvers in existence, idle or checked out.
+	 */
+	public int getSolverCount() {
+		return _solverCount.get();
+	}
+
+	public int getMaxSize() {
+		return _maxSize;
+	}
+
+	private SPHSolverService createSolver() throws Exception {
+		SPHSolverService solver = new SPHSolverService(_hardwareProfile);
+		solver.reserve(_particleCapacity, _gridCellCapacity);
+		solver.setPool(this);
+		return solver;
+	}
+}
@@ -35,16 +35,19 @@ package org.geppetto.solver.sph;
 
 import static java.lang.System.out;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.URL;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
-import java.util.StringTokenizer;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -60,46 +63,46 @@ import org.geppetto.core.data.model.SimpleVariable;
 import org.geppetto.core.data.model.StructuredType;
 import org.geppetto.core.data.model.VariableList;
 import org.geppetto.core.model.IModel;
-import org.geppetto.core.model.state.AStateNode;
 import org.geppetto.core.model.state.CompositeStateNode;
 import org.geppetto.core.model.state.SimpleStateNode;
 import org.geppetto.core.model.state.StateTreeRoot;
 import org.geppetto.core.model.state.StateTreeRoot.SUBTREE;
-import org.geppetto.core.model.values.FloatValue;
 import org.geppetto.core.model.values.ValuesFactory;
 import org.geppetto.core.simulation.IRunConfiguration;
 import org.geppetto.core.solver.ISolver;
 import org.geppetto.core.utilities.VariablePathSerializer;
-import org.geppetto.model.sph.Connection;
 import org.geppetto.model.sph.common.SPHConstants;
 import org.geppetto.model.sph.services.SPHModelInterpreterService;
 import org.geppetto.model.sph.x.SPHModelX;
-import org.geppetto.model.sph.x.Vector3DX;
 import org.springframework.stereotype.Service;
 
 import com.nativelibs4java.opencl.CLBuffer;
 import com.nativelibs4java.opencl.CLContext;
 import com.nativelibs4java.opencl.CLDevice;
 import com.nativelibs4java.opencl.CLEvent;
+import com.nativelibs4java.opencl.CLException;
 import com.nativelibs4java.opencl.CLKernel;
 import com.nativelibs4java.opencl.CLMem;
-import com.nativelibs4java.opencl.CLPlatform.DeviceFeature;
 import com.nativelibs4java.opencl.CLProgram;
 import com.nativelibs4java.opencl.CLQueue;
-import com.nativelibs4java.opencl.JavaCL;
-import com.nativelibs4java.util.IOUtils;
 
 @Service
 public class SPHSolverService implements ISolver {
 
 	private static Log logger = LogFactory.getLog(SPHSolverService.class);
 
+	// marks unused connection slots in the model, same as in sphFluid.cl
+	private static final int NO_PARTICLE_ID = -1;
+
 	private VariableList watchableVariables = new VariableList();
 	private VariableList forceableVariables = new VariableList();
 
 	List<String> watchListVarNames = new ArrayList<String>();
 	boolean watching = false;
+	// watch list resolved against the current scene
+	private SPHWatchTable _watchTable;
 
+	private SPHDeviceRuntime _runtime;
 	private CLContext _context;
 	public CLQueue _queue;
 	private CLProgram _program;
@@ -115,9 +118,22 @@ public class SPHSolverService implements ISolver {
 	private CLBuffer<Float> _rho;
 	private CLBuffer<Float> _sortedPosition;
 	private CLBuffer<Float> _sortedVelocity;
+	private CLBuffer<Float> _sortedTypeNormal;
 	private CLBuffer<Float> _velocity;
-	private CLBuffer<Float> _elasticConnectionsData;
+	private CLBuffer<Integer> _elasticConnectionsOffsets;
+	private CLBuffer<Integer> _elasticConnections;
+	private CLBuffer<Float> _elasticConnectionsRestLength;
 	private CLBuffer<Float> _activationSignal;
+	private CLBuffer<Float> _elasticSubstepState;
+	// bound to pcisph_integrate in place of the substep state on steps
+	// without elastic substeps, never read
+	private CLBuffer<Float> _noSubstepState;
+	private CLBuffer<Integer> _gatherIndex;
+	private CLBuffer<Float> _gatherOutput;
+	private CLBuffer<Float> _deltaReference;
+	private CLBuffer<Integer> _deltaCount;
+	private CLBuffer<Integer> _deltaSlots;
+	private CLBuffer<Float> _deltaPositions;
 
 	private Pointer<Float> _accelerationPtr;
 	private Pointer<Integer> _gridCellIndexPtr;
@@ -130,9 +146,18 @@ public class SPHSolverService implements ISolver {
 	private Pointer<Float> _rhoPtr;
 	private Pointer<Float> _sortedPositionPtr;
 	private Pointer<Float> _sortedVelocityPtr;
+	private Pointer<Float> _sortedTypeNormalPtr;
 	private Pointer<Float> _velocityPtr;
-	private Pointer<Float> _elasticConnectionsDataPtr;
+	private Pointer<Integer> _elasticConnectionsOffsetsPtr;
+	private Pointer<Integer> _elasticConnectionsPtr;
+	private Pointer<Float> _elasticConnectionsRestLengthPtr;
 	private Pointer<Float> _activationSignalPtr;
+	private Pointer<Float> _activationSignalUploadPtr;
+	private Pointer<Integer> _gatherIndexPtr;
+	private Pointer<Float> _gatherOutputPtr;
+	private Pointer<Integer> _deltaCountPtr;
+	private Pointer<Integer> _deltaSlotsPtr;
+	private Pointer<Float> _deltaPositionsPtr;
 
 	/*
 	 * Kernel declarations
@@ -152,6 +177,13 @@ public class SPHSolverService implements ISolver {
 	private CLKernel _pcisph_correctPressure;
 	private CLKernel _pcisph_computePressureForceAcceleration;
 	private CLKernel _pcisph_computeElasticForces;
+	private CLKernel _pcisph_initElasticSubsteps;
+	private CLKernel _pcisph_integrateElasticSubstep;
+	private CLKernel _pcisph_finishElasticSubsteps;
+
+	// compact the particles frames are made of for readback
+	private CLKernel _gatherParticles;
+	private CLKernel _compactMovedParticles;
 
 	public float _xMax;
 	public float _xMin;
@@ -170,11 +202,80 @@ public class SPHSolverService implements ISolver {
 	public int _numOfElasticP;
 	public int _numOfBoundaryP;
 
-	private SPHModelX _model;
+	private SPHScene _scene;
 	private StateTreeRoot _stateTree;
 
+	/*
+	 * Columnar output: the latest frame, the scene index of the particles
+	 * frames hold and the step of the last frame added to the state tree.
+	 * With the state tree disabled steps only produce frames and the tree is
+	 * brought up to date when someone asks for it.
+	 */
+	private SPHFrame _frame;
+	private SPHParticleSelection _outputSelection = SPHParticleSelection
+			.moving();
+	private int[] _frameParticleIds;
+	private int[] _frameSlots;
+	private long _frameStep;
+	private long _stateTreeStep = -1;
+	private boolean _stateTreeEnabled = true;
+	private SPHStateTreeUpdater _stateTreeUpdater;
+
+	/*
+	 * Bounded history: with a history length set only that many frames are
+	 * kept, in the frame history and in the state tree values, 0 keeps
+	 * everything
+	 */
+	private int _historyLength = 0;
+	private boolean _historySpill = false;
+	private SPHFrameHistory _history;
+
+	// full run of frames kept in compact form for replay, if enabled
+	private boolean _quantizedHistoryEnabled = false;
+	private SPHQuantizedHistory _quantizedHistory;
+
+	/*
+	 * Delta readback: between keyframes only the particles that moved more
+	 * than epsilon since they were last sent are transferred, the host keeps
+	 * the positions last sent for every particle of the selection
+	 */
+	private boolean _deltaReadback = false;
+	private float _deltaEpsilon;
+	private int _keyframeInterval;
+	private int _deltaCapacity = 0;
+	private float[] _deltaReferencePositions;
+	private long _keyframeStep;
+
+	// newest frame for readers polling from other threads
+	private final SPHLatestFrame _latestFrame = new SPHLatestFrame();
+
+	// subscribers getting frames pushed as steps finish
+	private final SPHFramePublisher _publisher = new SPHFramePublisher();
+
+	// trajectory file being recorded, if any
+	private SPHTrajectoryWriter _trajectoryWriter;
+	private boolean _trajectoryVelocities;
+
 	private boolean _recordCheckPoints = false;
 
+	private boolean _staticConstants = false;
+
+	/*
+	 * Fluid time step and number of elastic force evaluations per fluid step
+	 */
+	private float _timeStep = SPHConstants.TIME_STEP;
+	private int _elasticSubsteps = 1;
+	// offset of the final elastic substep state, -1 if no substeps ran
+	private int _elasticSubstepResult = -1;
+
+	/*
+	 * Activation frames pushed by upstream simulators, one frame is consumed
+	 * per step and the last one keeps being applied until a new one arrives
+	 */
+	public static final int ACTIVATION_QUEUE_CAPACITY = 64;
+	private ActivationSignalQueue _activationQueue;
+	private float[] _activationFrame;
+
 	/*
 	 * Checkpoints for the last computed step NOTE: stores all buffer values
 	 * after each kernel execution for troubleshooting purposes
@@ -191,6 +292,59 @@ public class SPHSolverService implements ISolver {
 	 */
 	private Map<BuffersEnum, Integer> _buffersSizeMap = new LinkedHashMap<BuffersEnum, Integer>();
 
+	private static final BuffersEnum[] PARTICLE_BUFFERS = {
+			BuffersEnum.ACCELERATION, BuffersEnum.GRID_CELL_INDEX,
+			BuffersEnum.GRID_CELL_INDEX_FIXED, BuffersEnum.NEIGHBOR_MAP,
+			BuffersEnum.PARTICLE_INDEX, BuffersEnum.PARTICLE_INDEX_BACK,
+			BuffersEnum.POSITION, BuffersEnum.PRESSURE, BuffersEnum.RHO,
+			BuffersEnum.SORTED_POSITION, BuffersEnum.SORTED_VELOCITY,
+			BuffersEnum.SORTED_TYPE_NORMAL, BuffersEnum.VELOCITY,
+			BuffersEnum.GATHER_INDEX, BuffersEnum.GATHER_OUTPUT };
+
+	// pool this solver goes back to when disposed, if any
+	private SPHSolverPool _pool;
+	// thread that checked a pooled solver out, null while it is idle. Guards
+	// against disposing it twice and against a thread (or a thread scoped
+	// bean) still holding it once another thread got it from the pool
+	private final AtomicReference<Thread> _owner = new AtomicReference<Thread>();
+
+	/*
+	 * Number of particles, grid cells, elastic particles, elastic
+	 * connections and muscles the device buffers can hold. _particleCount,
+	 * _gridCellCount etc. are the logical sizes of the current scene and can
+	 * be smaller.
+	 */
+	private int _particleCapacity = 0;
+	private int _gridCellCapacity = 0;
+	private int _elasticParticleCapacity = 0;
+	private int _connectionCapacity = 0;
+	private int _muscleCapacity = 0;
+
+	/*
+	 * Particle and elastic buffers are each carved from one arena allocation
+	 * laid out by a memory plan, arenas are null when a plan does not fit in
+	 * a single allocation and buffers are allocated separately
+	 */
+	private CLBuffer<Byte> _particleArena;
+	private CLBuffer<Byte> _elasticArena;
+	private SPHMemoryPlan _particlePlan;
+	private SPHMemoryPlan _elasticPlan;
+
+	// extra room allocated when a scene outgrows the buffers
+	private static final float CAPACITY_HEADROOM = 0.25f;
+
+	/*
+	 * Buffers are either plain device memory or host memory handed to the
+	 * driver. The latter is the default on CPU and unified memory devices,
+	 * where mapping such a buffer gives back the host memory itself and
+	 * host side stages and readbacks do not copy anything. The host memory
+	 * of each buffer is kept here until the buffer is released.
+	 */
+	public static final String BUFFER_ALLOCATION_PROPERTY = "geppetto.sph.bufferAllocation";
+	private static final int HOST_POINTER_ALIGNMENT = 4096;
+	private BufferAllocationEnum _bufferAllocation = BufferAllocationEnum.DEVICE;
+	private Map<CLMem, Pointer<Byte>> _hostPointers = new HashMap<CLMem, Pointer<Byte>>();
+
 	public Map<BuffersEnum, Integer> getBuffersSizeMap() {
 		return _buffersSizeMap;
 	}
@@ -203,7 +357,7 @@ public class SPHSolverService implements ISolver {
 	}
 
 	public SPHSolverService() throws Exception {
-		this(HardwareProfileEnum.GPU);
+		this(HardwareProfileEnum.AUTO);
 	}
 
 	public SPHSolverService(boolean recordCheckpoints) throws Exception {
@@ -213,36 +367,25 @@ public class SPHSolverService implements ISolver {
 	}
 
 	private void onceOffInit(HardwareProfileEnum hwProfile) throws IOException {
-		// TODO: check if the selected profile is actually available
-		DeviceFeature feature = (hwProfile == HardwareProfileEnum.CPU) ? DeviceFeature.CPU
-				: DeviceFeature.GPU;
-
-		_context = JavaCL.createBestContext(feature);
-
-		out.println("created " + _context);
-		// an array with available devices
-		CLDevice[] devices = _context.getDevices();
-
-		for (int i = 0; i < devices.length; i++) {
-			out.println("device - " + i + ": " + devices[i]);
-		}
-
-		// have a look at the output and select a device
-		_device = devices[0];
-		out.println("Version " + _device.getOpenCLVersion());
-		out.println("Version " + _device.getDriverVersion());
+		// context and programs are shared by all the solvers on a device,
+		// queue and kernels are our own
+		_runtime = SPHDeviceRuntime.acquire(hwProfile);
+		_context = _runtime.getContext();
+		_device = _runtime.getDevice();
 		out.println("using " + _device);
-		out.println("max workgroup size: " + _device.getMaxWorkGroupSize());
-		out.println("max workitems size: " + _device.getMaxWorkItemSizes()[0]);
+		_bufferAllocation = getDefaultBufferAllocation(_device);
+		logger.info("buffer allocation " + _bufferAllocation);
 
 		// create command queue on selected device.
-		_queue = _context.createDefaultQueue();// device.createCommandQueue();
+		_queue = _runtime.createQueue();
+		_noSubstepState = _context.createBuffer(CLMem.Usage.Input,
+				Float.class, 4);
 
-		// load sources, create and build program
-		String src = IOUtils.readText(SPHSolverService.class
-				.getResourceAsStream("/resource/sphFluid.cl"));
-		_program = _context.createProgram(src);
+		_program = _runtime.getProgram("");
+		createKernels();
+	}
 
+	private void createKernels() {
 		// kernels
 		_clearBuffers = _program.createKernel(KernelsEnum.CLEAR_BUFFERS
 				.toString());
@@ -273,87 +416,374 @@ public class SPHSolverService implements ISolver {
 				.createKernel(KernelsEnum.COMPUTE_DENSITY.toString());
 		_pcisph_computeElasticForces = _program
 				.createKernel(KernelsEnum.COMPUTE_ELASTIC_FORCES.toString());
+		_pcisph_initElasticSubsteps = _program
+				.createKernel(KernelsEnum.INIT_ELASTIC_SUBSTEPS.toString());
+		_pcisph_integrateElasticSubstep = _program
+				.createKernel(KernelsEnum.INTEGRATE_ELASTIC_SUBSTEP.toString());
+		_pcisph_finishElasticSubsteps = _program
+				.createKernel(KernelsEnum.FINISH_ELASTIC_SUBSTEPS.toString());
+		_gatherParticles = _program.createKernel(KernelsEnum.GATHER_PARTICLES
+				.toString());
+		try {
+			_compactMovedParticles = _program
+					.createKernel(KernelsEnum.COMPACT_MOVED_PARTICLES
+							.toString());
+		} catch (CLException e) {
+			// left out of the program on devices without global atomics
+			_compactMovedParticles = null;
+		}
+	}
+
+	/*
+	 * Picks the program variant matching the current build options, building
+	 * it only the first time a given set of constants is requested
+	 */
+	private void selectProgram() throws IOException {
+		CLProgram program = _runtime.getProgram(getBuildOptions());
+
+		if (program != _program) {
+			_program = program;
+			releaseKernels();
+			createKernels();
+		}
+	}
+
+	private String getBuildOptions() {
+		if (!_staticConstants) {
+			return "";
+		}
+
+		StringBuilder options = new StringBuilder("-D SPH_STATIC_CONSTANTS");
+		for (Map.Entry<String, Float> constant : getStaticConstants()
+				.entrySet()) {
+			options.append(" -D ").append(constant.getKey()).append('=')
+					.append(Float.toString(constant.getValue())).append('f');
+		}
+		return options.toString();
+	}
+
+	/*
+	 * Values baked into the program when static constants are enabled, the
+	 * names match the STATIC_CONSTANT defines used in sphFluid.cl
+	 */
+	private Map<String, Float> getStaticConstants() {
+		Map<String, Float> constants = new LinkedHashMap<String, Float>();
+		constants.put("SPH_H", SPHConstants.H);
+		constants.put("SPH_HASH_GRID_CELL_SIZE",
+				SPHConstants.HASH_GRID_CELL_SIZE);
+		constants.put("SPH_HASH_GRID_CELL_SIZE_INV",
+				SPHConstants.HASH_GRID_CELL_SIZE_INV);
+		constants.put("SPH_SIMULATION_SCALE", SPHConstants.SIMULATION_SCALE);
+		constants.put("SPH_SIMULATION_SCALE_INV",
+				SPHConstants.SIMULATION_SCALE_INV);
+		constants.put("SPH_W_POLY_6_COEFFICIENT",
+				SPHConstants.W_POLY_6_COEFFICIENT);
+		constants.put("SPH_GRAD_W_SPIKY_COEFFICIENT",
+				SPHConstants.GRAD_W_SPIKY_COEFFICIENT);
+		constants.put("SPH_DEL_2_W_VISCOSITY_COEFFICIENT",
+				SPHConstants.DEL_2_W_VISCOSITY_COEFFICIENT);
+		constants.put("SPH_MASS", SPHConstants.MASS);
+		constants.put("SPH_RHO0", SPHConstants.RHO0);
+		constants.put("SPH_STIFFNESS", SPHConstants.STIFFNESS);
+		constants.put("SPH_DELTA", getDelta());
+		constants.put("SPH_MU", SPHConstants.MU);
+		constants.put("SPH_GRAVITY_X", SPHConstants.GRAVITY_X);
+		constants.put("SPH_GRAVITY_Y", SPHConstants.GRAVITY_Y);
+		constants.put("SPH_GRAVITY_Z", SPHConstants.GRAVITY_Z);
+		constants.put("SPH_TIME_STEP", _timeStep);
+		constants.put("SPH_DAMPING", SPHConstants.DAMPING);
+		constants.put("SPH_R0", SPHConstants.R0);
+		constants.put("SPH_CFL_LIMIT", SPHConstants.CFLLimit);
+		return constants;
+	}
+
+	/**
+	 * Bakes the simulation constants into the program as build defines
+	 * instead of passing them as kernel arguments, letting the compiler fold
+	 * them in the neighbor loops. Takes effect on the next call to
+	 * initialize; programs are built once per set of constants.
+	 */
+	public void setStaticConstants(boolean staticConstants) {
+		_staticConstants = staticConstants;
+	}
+
+	public boolean isStaticConstants() {
+		return _staticConstants;
+	}
+
+	/**
+	 * Sets the fluid time step, the PCISPH pressure correction factor is
+	 * scaled accordingly. With static constants enabled the new value is
+	 * baked in on the next call to initialize.
+	 */
+	public void setTimeStep(float timeStep) {
+		if (timeStep <= 0) {
+			throw new IllegalArgumentException(
+					"SPHSolverService:setTimeStep - time step must be positive");
+		}
+		_timeStep = timeStep;
+	}
+
+	public float getTimeStep() {
+		return _timeStep;
+	}
+
+	/**
+	 * Number of times elastic forces are evaluated and integrated per fluid
+	 * step. With more than one substep stiff springs stay stable while
+	 * neighbor search and the PCISPH loop run at the (larger) fluid time
+	 * step; 1 keeps the single evaluation.
+	 */
+	public void setElasticSubsteps(int elasticSubsteps) {
+		if (elasticSubsteps < 1) {
+			throw new IllegalArgumentException(
+					"SPHSolverService:setElasticSubsteps - at least one substep is required");
+		}
+		_elasticSubsteps = elasticSubsteps;
+	}
+
+	public int getElasticSubsteps() {
+		return _elasticSubsteps;
+	}
+
+	/*
+	 * SPHConstants.DELTA is computed for SPHConstants.TIME_STEP and scales
+	 * with 1 / dt^2
+	 */
+	private float getDelta() {
+		float ratio = SPHConstants.TIME_STEP / _timeStep;
+		return SPHConstants.DELTA * ratio * ratio;
 	}
 
 	private void allocateBuffers() {
-		// init buffer size map
-		_buffersSizeMap.put(BuffersEnum.ACCELERATION, _particleCount * 4 * 2);
-		_buffersSizeMap.put(BuffersEnum.GRID_CELL_INDEX, _gridCellCount + 1);
-		_buffersSizeMap.put(BuffersEnum.GRID_CELL_INDEX_FIXED,
-				_gridCellCount + 1);
-		_buffersSizeMap.put(BuffersEnum.NEIGHBOR_MAP, _particleCount
-				* SPHConstants.NEIGHBOR_COUNT * 2);
-		_buffersSizeMap.put(BuffersEnum.PARTICLE_INDEX, _particleCount * 2);
-		_buffersSizeMap.put(BuffersEnum.PARTICLE_INDEX_BACK, _particleCount);
-		_buffersSizeMap.put(BuffersEnum.POSITION, _particleCount * 4);
-		_buffersSizeMap.put(BuffersEnum.PRESSURE, _particleCount * 4);
-		_buffersSizeMap.put(BuffersEnum.RHO, _particleCount * 2);
-		_buffersSizeMap
-				.put(BuffersEnum.SORTED_POSITION, _particleCount * 4 * 2);
-		_buffersSizeMap.put(BuffersEnum.SORTED_VELOCITY, _particleCount * 4);
-		_buffersSizeMap.put(BuffersEnum.VELOCITY, _particleCount * 4);
+		// init buffer size map, these are the logical sizes for the current
+		// scene, device buffers can be larger
+		for (BuffersEnum buffer : PARTICLE_BUFFERS) {
+			_buffersSizeMap.put(buffer,
+					getBufferSize(buffer, _particleCount, _gridCellCount));
+		}
 		_buffersSizeMap.put(BuffersEnum.ELASTIC_BUNDLES, _elasticBundlesCount);
 
-		// allocate native device memory for all buffers
-		_acceleration = _context.createFloatBuffer(CLMem.Usage.InputOutput,
-				_buffersSizeMap.get(BuffersEnum.ACCELERATION));
-		_gridCellIndex = _context.createIntBuffer(CLMem.Usage.InputOutput,
-				_buffersSizeMap.get(BuffersEnum.GRID_CELL_INDEX));
-		_gridCellIndexFixedUp = _context.createIntBuffer(
-				_recordCheckPoints ? CLMem.Usage.InputOutput
-						: CLMem.Usage.Input, _buffersSizeMap
-						.get(BuffersEnum.GRID_CELL_INDEX_FIXED));
-		_neighborMap = _context.createFloatBuffer(
-				_recordCheckPoints ? CLMem.Usage.InputOutput
-						: CLMem.Usage.Input, _buffersSizeMap
-						.get(BuffersEnum.NEIGHBOR_MAP));
-		_particleIndex = _context.createIntBuffer(CLMem.Usage.InputOutput,
-				_buffersSizeMap.get(BuffersEnum.PARTICLE_INDEX));
-		_particleIndexBack = _context.createIntBuffer(
-				_recordCheckPoints ? CLMem.Usage.InputOutput
-						: CLMem.Usage.Input, _buffersSizeMap
-						.get(BuffersEnum.PARTICLE_INDEX_BACK));
-		_position = _context.createFloatBuffer(CLMem.Usage.InputOutput,
-				_buffersSizeMap.get(BuffersEnum.POSITION));
-		_pressure = _context.createFloatBuffer(
-				_recordCheckPoints ? CLMem.Usage.InputOutput
-						: CLMem.Usage.Input, _buffersSizeMap
-						.get(BuffersEnum.PRESSURE));
-		_rho = _context.createFloatBuffer(
-				_recordCheckPoints ? CLMem.Usage.InputOutput
-						: CLMem.Usage.Input, _buffersSizeMap
-						.get(BuffersEnum.RHO));
-		_sortedPosition = _context.createFloatBuffer(
-				_recordCheckPoints ? CLMem.Usage.InputOutput
-						: CLMem.Usage.Input, _buffersSizeMap
-						.get(BuffersEnum.SORTED_POSITION));
-		_sortedVelocity = _context.createFloatBuffer(
-				_recordCheckPoints ? CLMem.Usage.InputOutput
-						: CLMem.Usage.Input, _buffersSizeMap
-						.get(BuffersEnum.SORTED_VELOCITY));
-		_velocity = _context.createFloatBuffer(CLMem.Usage.InputOutput,
-				_buffersSizeMap.get(BuffersEnum.VELOCITY));
-	}
-
-	private void setBuffersFromModel() {
+		// buffers reserved earlier are reused as long as the scene fits,
+		// otherwise grow with some headroom for the next scenes
+		if (_acceleration == null || _particleCount > _particleCapacity
+				|| _gridCellCount > _gridCellCapacity) {
+			reserve(withHeadroom(_particleCount),
+					withHeadroom(_gridCellCount));
+		}
+	}
+
+	/**
+	 * Allocates device buffers for scenes of up to the given number of
+	 * particles and grid cells, later initializations within that capacity
+	 * reuse them instead of allocating.
+	 */
+	public void reserve(int particleCapacity, int gridCellCapacity) {
+		if (_acceleration != null && particleCapacity <= _particleCapacity
+				&& gridCellCapacity <= _gridCellCapacity) {
+			return;
+		}
+
+		particleCapacity = Math.max(particleCapacity, _particleCapacity);
+		gridCellCapacity = Math.max(gridCellCapacity, _gridCellCapacity);
+
+		// the whole footprint is checked against the device before anything
+		// is released or allocated, the buffers being replaced excepted
+		SPHMemoryPlan plan = new SPHMemoryPlan(_device,
+				_runtime.getAllocatedBytes() - getPlannedBytes(_particlePlan));
+		for (BuffersEnum buffer : PARTICLE_BUFFERS) {
+			plan.add(buffer, getBufferSize(buffer, particleCapacity,
+					gridCellCapacity) * 4L);
+		}
+		plan.check();
+		logger.info("particle buffers: " + plan);
+
+		releaseParticleBuffers();
+		_particlePlan = plan;
+		_runtime.addAllocatedBytes(plan.getTotalBytes());
+		_particleCapacity = particleCapacity;
+		_gridCellCapacity = gridCellCapacity;
+		if (plan.isArena()) {
+			_particleArena = createBuffer(CLMem.Usage.InputOutput, Byte.class,
+					plan.getTotalBytes());
+		}
+
+		CLMem.Usage checkpointUsage = _recordCheckPoints ? CLMem.Usage.InputOutput
+				: CLMem.Usage.Input;
+		_acceleration = createBuffer(_particleArena, plan,
+				BuffersEnum.ACCELERATION, Float.class, CLMem.Usage.InputOutput);
+		_gridCellIndex = createBuffer(_particleArena, plan,
+				BuffersEnum.GRID_CELL_INDEX, Integer.class,
+				CLMem.Usage.InputOutput);
+		_gridCellIndexFixedUp = createBuffer(_particleArena, plan,
+				BuffersEnum.GRID_CELL_INDEX_FIXED, Integer.class,
+				checkpointUsage);
+		_neighborMap = createBuffer(_particleArena, plan,
+				BuffersEnum.NEIGHBOR_MAP, Float.class, checkpointUsage);
+		_particleIndex = createBuffer(_particleArena, plan,
+				BuffersEnum.PARTICLE_INDEX, Integer.class,
+				CLMem.Usage.InputOutput);
+		_particleIndexBack = createBuffer(_particleArena, plan,
+				BuffersEnum.PARTICLE_INDEX_BACK, Integer.class,
+				checkpointUsage);
+		_position = createBuffer(_particleArena, plan, BuffersEnum.POSITION,
+				Float.class, CLMem.Usage.InputOutput);
+		_pressure = createBuffer(_particleArena, plan, BuffersEnum.PRESSURE,
+				Float.class, checkpointUsage);
+		_rho = createBuffer(_particleArena, plan, BuffersEnum.RHO,
+				Float.class, checkpointUsage);
+		_sortedPosition = createBuffer(_particleArena, plan,
+				BuffersEnum.SORTED_POSITION, Float.class, checkpointUsage);
+		_sortedVelocity = createBuffer(_particleArena, plan,
+				BuffersEnum.SORTED_VELOCITY, Float.class, checkpointUsage);
+		_sortedTypeNormal = createBuffer(_particleArena, plan,
+				BuffersEnum.SORTED_TYPE_NORMAL, Float.class, checkpointUsage);
+		_velocity = createBuffer(_particleArena, plan, BuffersEnum.VELOCITY,
+				Float.class, CLMem.Usage.InputOutput);
+		_gatherIndex = createBuffer(_particleArena, plan,
+				BuffersEnum.GATHER_INDEX, Integer.class, CLMem.Usage.Input);
+		_gatherOutput = createBuffer(_particleArena, plan,
+				BuffersEnum.GATHER_OUTPUT, Float.class, CLMem.Usage.Output);
+	}
+
+	/*
+	 * Elastic buffers follow the same policy as the particle buffers: reused
+	 * while the scene fits, reallocated with headroom otherwise
+	 */
+	private void reserveElasticBuffers(int elasticParticles, int connections,
+			int muscles) {
+		if (_elasticConnectionsOffsets != null
+				&& elasticParticles <= _elasticParticleCapacity
+				&& connections <= _connectionCapacity
+				&& muscles <= _muscleCapacity) {
+			return;
+		}
+
+		int elasticParticleCapacity = withHeadroom(elasticParticles);
+		int connectionCapacity = withHeadroom(connections);
+
+		SPHMemoryPlan plan = new SPHMemoryPlan(_device,
+				_runtime.getAllocatedBytes() - getPlannedBytes(_elasticPlan));
+		plan.add(BuffersEnum.ELASTIC_CONNECTIONS_OFFSETS,
+				(elasticParticleCapacity + 1) * 4L);
+		plan.add(BuffersEnum.ELASTIC_CONNECTIONS, connectionCapacity * 2 * 4L);
+		plan.add(BuffersEnum.ELASTIC_CONNECTIONS_REST_LENGTH,
+				connectionCapacity * 4L);
+		plan.add(BuffersEnum.ELASTIC_SUBSTEP_STATE,
+				elasticParticleCapacity * 4 * 4 * 4L);
+		// NOTE: at least 1 element, to avoid exceptions in case of having
+		// elastic particles but no contractible bundles
+		plan.add(BuffersEnum.ELASTIC_BUNDLES, muscles * 4L);
+		plan.check();
+		logger.info("elastic buffers: " + plan);
+
+		releaseElasticBuffers();
+		_elasticPlan = plan;
+		_runtime.addAllocatedBytes(plan.getTotalBytes());
+		_elasticParticleCapacity = elasticParticleCapacity;
+		_connectionCapacity = connectionCapacity;
+		_muscleCapacity = muscles;
+		if (plan.isArena()) {
+			_elasticArena = createBuffer(CLMem.Usage.InputOutput, Byte.class,
+					plan.getTotalBytes());
+		}
+
+		_elasticConnectionsOffsets = createBuffer(_elasticArena, plan,
+				BuffersEnum.ELASTIC_CONNECTIONS_OFFSETS, Integer.class,
+				CLMem.Usage.InputOutput);
+		_elasticConnections = createBuffer(_elasticArena, plan,
+				BuffersEnum.ELASTIC_CONNECTIONS, Integer.class,
+				CLMem.Usage.InputOutput);
+		_elasticConnectionsRestLength = createBuffer(_elasticArena, plan,
+				BuffersEnum.ELASTIC_CONNECTIONS_REST_LENGTH, Float.class,
+				CLMem.Usage.InputOutput);
+		_elasticSubstepState = createBuffer(_elasticArena, plan,
+				BuffersEnum.ELASTIC_SUBSTEP_STATE, Float.class,
+				CLMem.Usage.InputOutput);
+		_activationSignal = createBuffer(_elasticArena, plan,
+				BuffersEnum.ELASTIC_BUNDLES, Float.class, CLMem.Usage.Input);
+	}
+
+	private static long getPlannedBytes(SPHMemoryPlan plan) {
+		return plan == null ? 0 : plan.getTotalBytes();
+	}
+
+	/**
+	 * Device global memory left after the buffers of every solver on the
+	 * device, in bytes.
+	 */
+	public long getDeviceMemoryHeadroom() {
+		return _device.getGlobalMemSize() - _runtime.getAllocatedBytes();
+	}
+
+	private static int withHeadroom(int count) {
+		return count + (int) Math.ceil(count * CAPACITY_HEADROOM);
+	}
+
+	/**
+	 * Number of particles the device buffers can hold without reallocating.
+	 */
+	public int getParticleCapacity() {
+		return _particleCapacity;
+	}
+
+	public int getGridCellCapacity() {
+		return _gridCellCapacity;
+	}
+
+	/*
+	 * Size in elements of the buffers that only depend on particle and grid
+	 * cell counts
+	 */
+	private static int getBufferSize(BuffersEnum buffer, int particleCount,
+			int gridCellCount) {
+		switch (buffer) {
+		case ACCELERATION:
+		case SORTED_POSITION:
+		case GATHER_OUTPUT:
+			return particleCount * 4 * 2;
+		case GRID_CELL_INDEX:
+		case GRID_CELL_INDEX_FIXED:
+			return gridCellCount + 1;
+		case NEIGHBOR_MAP:
+			return particleCount * SPHConstants.NEIGHBOR_COUNT * 2;
+		case PARTICLE_INDEX:
+		case RHO:
+			return particleCount * 2;
+		case PARTICLE_INDEX_BACK:
+		case GATHER_INDEX:
+			return particleCount;
+		case POSITION:
+		case PRESSURE:
+		case SORTED_VELOCITY:
+		case SORTED_TYPE_NORMAL:
+		case VELOCITY:
+			return particleCount * 4;
+		default:
+			throw new IllegalArgumentException(
+					"SPHSolverService:getBufferSize - " + buffer
+							+ " does not depend on particle count");
+		}
+	}
+
+	private void setBuffersFromScene() {
 		// set dimensions
-		_xMax = _model.getXMax();
-		_xMin = _model.getXMin();
-		_yMax = _model.getYMax();
-		_yMin = _model.getYMin();
-		_zMax = _model.getZMax();
-		_zMin = _model.getZMin();
-		_elasticBundlesCount = (_model.getElasticBundles() == null) ? 0
-				: _model.getElasticBundles().intValue();
-
-		_particleCount = _model.getNumberOfParticles();
+		_xMax = _scene.getXMax();
+		_xMin = _scene.getXMin();
+		_yMax = _scene.getYMax();
+		_yMin = _scene.getYMin();
+		_zMax = _scene.getZMax();
+		_zMin = _scene.getZMin();
+		_elasticBundlesCount = _scene.getElasticBundles();
+
+		_particleCount = _scene.getParticleCount();
 		_numOfElasticP = 0;
 		_numOfLiquidP = 0;
 		_numOfBoundaryP = 0;
 
-		_gridCellsX = (int) ((_model.getXMax() - _model.getXMin()) / SPHConstants.H) + 1;
-		_gridCellsY = (int) ((_model.getYMax() - _model.getYMin()) / SPHConstants.H) + 1;
-		_gridCellsZ = (int) ((_model.getZMax() - _model.getZMin()) / SPHConstants.H) + 1;
+		_gridCellsX = (int) ((_xMax - _xMin) / SPHConstants.H) + 1;
+		_gridCellsY = (int) ((_yMax - _yMin) / SPHConstants.H) + 1;
+		_gridCellsZ = (int) ((_zMax - _zMin) / SPHConstants.H) + 1;
 
 		// set grid dimensions
 		_gridCellCount = _gridCellsX * _gridCellsY * _gridCellsZ;
@@ -361,85 +791,130 @@ public class SPHSolverService implements ISolver {
 		// allocate buffers - requires global dimensions of the grid
 		this.allocateBuffers();
 
-		int index = 0;
-
+		// particle counts
+		FloatBuffer positions = _scene.getPositions();
 		for (int i = 0; i < _particleCount; i++) {
-			if (i != 0) {
-				index = index + 4;
-			}
-
-			Vector3DX positionVector = (Vector3DX) _model.getParticles().get(i)
-					.getPositionVector();
-			Vector3DX velocityVector = (Vector3DX) _model.getParticles().get(i)
-					.getVelocityVector();
-
-			// map for writing
-			_positionPtr = _position.map(_queue, CLMem.MapFlags.Write);
-			_velocityPtr = _velocity.map(_queue, CLMem.MapFlags.Write);
-
-			// buffer population
-			_positionPtr.set(index, positionVector.getX());
-			_positionPtr.set(index + 1, positionVector.getY());
-			_positionPtr.set(index + 2, positionVector.getZ());
-			_positionPtr.set(index + 3, positionVector.getP());
-			_velocityPtr.set(index, velocityVector.getX());
-			_velocityPtr.set(index + 1, velocityVector.getY());
-			_velocityPtr.set(index + 2, velocityVector.getZ());
-			_velocityPtr.set(index + 3, velocityVector.getP());
-
-			// unmap after writing
-			_position.unmap(_queue, _positionPtr);
-			_velocity.unmap(_queue, _velocityPtr);
-
-			// particle counts
-			if (positionVector.getP() == SPHConstants.BOUNDARY_TYPE) {
+			float type = positions.get(i * SPHScene.POSITION_SIZE + 3);
+			if (type == SPHConstants.BOUNDARY_TYPE) {
 				_numOfBoundaryP++;
-			} else if (positionVector.getP() == SPHConstants.ELASTIC_TYPE) {
+			} else if (type == SPHConstants.ELASTIC_TYPE) {
 				_numOfElasticP++;
-			} else if (positionVector.getP() == SPHConstants.LIQUID_TYPE) {
+			} else if (type == SPHConstants.LIQUID_TYPE) {
 				_numOfLiquidP++;
 			}
 		}
 
+		// scene arrays go down as they are, in a single transfer each
+		_positionPtr = _position.map(_queue, CLMem.MapFlags.Write);
+		_positionPtr.setFloatsAtOffset(0, rewind(positions));
+		_position.unmap(_queue, _positionPtr);
+
+		_velocityPtr = _velocity.map(_queue, CLMem.MapFlags.Write);
+		_velocityPtr.setFloatsAtOffset(0, rewind(_scene.getVelocities()));
+		_velocity.unmap(_queue, _velocityPtr);
+
 		// populate elastic connection buffers if we have any
-		if (_numOfElasticP > 0 && _model.getConnections().size() > 0) {
-			// init elastic connections buffers
-			// TODO: move this back with the other buffers init stuff
-			_buffersSizeMap.put(BuffersEnum.ELASTIC_CONNECTIONS, _numOfElasticP
-					* SPHConstants.NEIGHBOR_COUNT * 4);
-			_elasticConnectionsData = _context.createFloatBuffer(
-					CLMem.Usage.InputOutput,
-					_buffersSizeMap.get(BuffersEnum.ELASTIC_CONNECTIONS));
-			_elasticConnectionsDataPtr = _elasticConnectionsData.map(_queue,
-					CLMem.MapFlags.Write);
+		int connectionCount = _scene.getConnectionCount();
+		if (_numOfElasticP > 0 && connectionCount > 0) {
+			// elastic connections are stored in compressed sparse row layout:
+			// connections of elastic particle i are the entries between
+			// offsets[i] and offsets[i + 1], every entry holding partner id,
+			// muscle index (int2) and rest length
+			int[] offsets = new int[_numOfElasticP + 1];
+			int[] connections = new int[connectionCount * 2];
+			float[] restLengths = new float[connectionCount];
+			FloatBuffer sceneConnections = _scene.getConnections();
+
+			int connCount = 0;
+			int row = 0;
+			int closedRow = -1;
+			for (int connIndex = 0; connIndex < connectionCount; connIndex++) {
+				int connRow = connIndex / SPHConstants.NEIGHBOR_COUNT;
+				if (connRow >= _numOfElasticP) {
+					break;
+				}
+				while (row < connRow) {
+					offsets[++row] = connCount;
+				}
 
-			int connIndex = 0;
-			for (Connection conn : _model.getConnections()) {
-				_elasticConnectionsDataPtr.set(connIndex, conn.getP1());
-				_elasticConnectionsDataPtr.set(connIndex + 1,
-						conn.getDistance());
-				_elasticConnectionsDataPtr.set(connIndex + 2,
-						conn.getMysteryValue());
-				_elasticConnectionsDataPtr.set(connIndex + 3, 0f); // padding
-				connIndex += 4;
+				// the first unused slot terminates the connections of a particle
+				int sceneIndex = connIndex * SPHScene.CONNECTION_SIZE;
+				int partner = (int) sceneConnections.get(sceneIndex);
+				if (partner == NO_PARTICLE_ID) {
+					closedRow = connRow;
+				}
+				if (connRow == closedRow) {
+					continue;
+				}
+
+				connections[connCount * 2] = partner;
+				connections[connCount * 2 + 1] = (int) sceneConnections
+						.get(sceneIndex + 2);
+				restLengths[connCount] = sceneConnections.get(sceneIndex + 1);
+				connCount++;
+			}
+			while (row < _numOfElasticP) {
+				offsets[++row] = connCount;
 			}
 
-			// we copied the stuff down to the device and we won't touch it
+			int muscleCount = Math.max(_elasticBundlesCount, 1);
+			_buffersSizeMap.put(BuffersEnum.ELASTIC_CONNECTIONS_OFFSETS,
+					_numOfElasticP + 1);
+			_buffersSizeMap.put(BuffersEnum.ELASTIC_CONNECTIONS,
+					Math.max(connCount, 1) * 2);
+			_buffersSizeMap.put(BuffersEnum.ELASTIC_CONNECTIONS_REST_LENGTH,
+					Math.max(connCount, 1));
+			// source and destination copies of elastic positions and
+			// velocities for elastic substeps
+			_buffersSizeMap.put(BuffersEnum.ELASTIC_SUBSTEP_STATE,
+					_numOfElasticP * 4 * 4);
+			reserveElasticBuffers(_numOfElasticP, Math.max(connCount, 1),
+					muscleCount);
+
+			// we copy the stuff down to the device and we won't touch it
 			// again so we can unmap
-			_elasticConnectionsData.unmap(_queue, _elasticConnectionsDataPtr);
+			_elasticConnectionsOffsetsPtr = _elasticConnectionsOffsets.map(
+					_queue, CLMem.MapFlags.Write);
+			_elasticConnectionsOffsetsPtr.setInts(offsets);
+			_elasticConnectionsOffsets.unmap(_queue,
+					_elasticConnectionsOffsetsPtr);
 
-			// allocate activation signal buffers
-			if (_buffersSizeMap.get(BuffersEnum.ELASTIC_BUNDLES) > 0) {
-				_activationSignal = _context.createFloatBuffer(
-						CLMem.Usage.Input,
-						_buffersSizeMap.get(BuffersEnum.ELASTIC_BUNDLES));
+			_elasticConnectionsPtr = _elasticConnections.map(_queue,
+					CLMem.MapFlags.Write);
+			_elasticConnectionsPtr.setInts(Arrays.copyOf(connections,
+					_buffersSizeMap.get(BuffersEnum.ELASTIC_CONNECTIONS)));
+			_elasticConnections.unmap(_queue, _elasticConnectionsPtr);
+
+			_elasticConnectionsRestLengthPtr = _elasticConnectionsRestLength
+					.map(_queue, CLMem.MapFlags.Write);
+			_elasticConnectionsRestLengthPtr.setFloats(Arrays.copyOf(
+					restLengths, _buffersSizeMap
+							.get(BuffersEnum.ELASTIC_CONNECTIONS_REST_LENGTH)));
+			_elasticConnectionsRestLength.unmap(_queue,
+					_elasticConnectionsRestLengthPtr);
+
+			// producers hold on to the queue, keep it while the muscle
+			// count allows and only drop frames queued for the last scene
+			if (_activationQueue != null
+					&& _activationQueue.getMuscleCount() == muscleCount) {
+				_activationQueue.clear();
 			} else {
-				// allocate a buffer with 1 single element
-				// NOTE: this is a HACK to avoid exceptions in case of having
-				// elastic particles but no contractible bundles
-				_activationSignal = _context.createFloatBuffer(
-						CLMem.Usage.Input, 1);
+				_activationQueue = new ActivationSignalQueue(
+						ACTIVATION_QUEUE_CAPACITY, muscleCount);
 			}
+			// two host side frames are used in turns for non blocking
+			// uploads, start with all muscles relaxed
+			_activationFrame = new float[muscleCount];
+			_activationSignalPtr = Pointer.allocateFloats(muscleCount).order(
+					_context.getByteOrder());
+			_activationSignalUploadPtr = Pointer.allocateFloats(muscleCount)
+					.order(_context.getByteOrder());
+			_activationSignalPtr.setFloats(_activationFrame);
+			_activationSignal.write(_queue, _activationSignalPtr, true);
+		} else {
+			// elastic buffers of a previous scene are kept for reuse, but the
+			// muscles they were driven by are gone
+			_activationQueue = null;
 		}
 
 		// check that counts are fine
@@ -447,11 +922,249 @@ public class SPHSolverService implements ISolver {
 			throw new IllegalArgumentException(
 					"SPHSolverService:setModels - particle counts do not add up");
 		}
+
+		// frames hold the selected particles only, by default the moving
+		// ones as boundary particles never change
+		_frameParticleIds = _outputSelection.resolve(_scene);
+		_frameSlots = new int[_particleCount];
+		Arrays.fill(_frameSlots, NO_PARTICLE_ID);
+		for (int slot = 0; slot < _frameParticleIds.length; slot++) {
+			_frameSlots[_frameParticleIds[slot]] = slot;
+		}
+		_buffersSizeMap.put(BuffersEnum.GATHER_INDEX, _frameParticleIds.length);
+		_buffersSizeMap.put(BuffersEnum.GATHER_OUTPUT,
+				_frameParticleIds.length * SPHFrame.POSITION_SIZE * 2);
+		if (_frameParticleIds.length > 0) {
+			_gatherIndexPtr = _gatherIndex.map(_queue, CLMem.MapFlags.Write,
+					0, _frameParticleIds.length);
+			_gatherIndexPtr.setInts(_frameParticleIds);
+			_gatherIndex.unmap(_queue, _gatherIndexPtr);
+		}
+		stopTrajectory();
+		_frameStep = 0;
+		_frame = null;
+		_deltaReferencePositions = null;
+		_watchTable = null;
+		_stateTreeStep = -1;
+		_stateTreeUpdater = null;
+		_history = _historyLength > 0 ? new SPHFrameHistory(_historyLength,
+				_frameParticleIds, _historySpill) : null;
+		_quantizedHistory = _quantizedHistoryEnabled ? new SPHQuantizedHistory(
+				_frameParticleIds, _xMin, _xMax, _yMin, _yMax, _zMin, _zMax)
+				: null;
+	}
+
+	private static FloatBuffer rewind(FloatBuffer buffer) {
+		FloatBuffer view = buffer.duplicate();
+		view.clear();
+		return view;
 	}
 
+	/*
+	 * Releases what this solver owns, the shared context goes with the last
+	 * solver of the device
+	 */
 	public void cleanContext() {
+		if (_runtime == null) {
+			// already cleaned
+			return;
+		}
+		stopTrajectory();
+		_publisher.clear();
 		_stateTree = null;
-		_context.release();
+		releaseParticleBuffers();
+		releaseElasticBuffers();
+		releaseKernels();
+		releaseBuffers(_noSubstepState);
+		_noSubstepState = null;
+		_queue.release();
+		_runtime.release();
+		_runtime = null;
+	}
+
+	private void releaseBuffers(CLMem... buffers) {
+		for (CLMem buffer : buffers) {
+			if (buffer != null) {
+				buffer.release();
+				Pointer<Byte> host = _hostPointers.remove(buffer);
+				if (host != null) {
+					host.release();
+				}
+			}
+		}
+	}
+
+	private void releaseParticleBuffers() {
+		// sub-buffers go before the arena they are carved from
+		releaseBuffers(_acceleration, _gridCellIndex, _gridCellIndexFixedUp,
+				_neighborMap, _particleIndex, _particleIndexBack, _position,
+				_pressure, _rho, _sortedPosition, _sortedVelocity,
+				_sortedTypeNormal, _velocity, _gatherIndex, _gatherOutput,
+				_particleArena);
+		_runtime.addAllocatedBytes(-getPlannedBytes(_particlePlan));
+		_particleArena = null;
+		_particlePlan = null;
+		_acceleration = null;
+		_gridCellIndex = null;
+		_gridCellIndexFixedUp = null;
+		_neighborMap = null;
+		_particleIndex = null;
+		_particleIndexBack = null;
+		_position = null;
+		_pressure = null;
+		_rho = null;
+		_sortedPosition = null;
+		_sortedVelocity = null;
+		_sortedTypeNormal = null;
+		_velocity = null;
+		_gatherIndex = null;
+		_gatherOutput = null;
+		_particleCapacity = 0;
+		_gridCellCapacity = 0;
+		releaseDeltaBuffers();
+	}
+
+	/*
+	 * Delta buffers are only allocated once delta readback is used, with the
+	 * same headroom policy as the other buffers
+	 */
+	private void reserveDeltaBuffers(int count) {
+		if (_deltaReference != null && count <= _deltaCapacity) {
+			return;
+		}
+
+		releaseDeltaBuffers();
+		_deltaCapacity = withHeadroom(count);
+		_deltaReference = createBuffer(CLMem.Usage.InputOutput, Float.class,
+				_deltaCapacity * 4L);
+		_deltaCount = createBuffer(CLMem.Usage.InputOutput, Integer.class, 1);
+		_deltaSlots = createBuffer(CLMem.Usage.Output, Integer.class,
+				_deltaCapacity);
+		_deltaPositions = createBuffer(CLMem.Usage.Output, Float.class,
+				_deltaCapacity * 4L);
+		_deltaCountPtr = Pointer.allocateInts(1).order(_context.getByteOrder());
+	}
+
+	private void releaseDeltaBuffers() {
+		releaseBuffers(_deltaReference, _deltaCount, _deltaSlots,
+				_deltaPositions);
+		if (_deltaCountPtr != null) {
+			_deltaCountPtr.release();
+		}
+		_deltaReference = null;
+		_deltaCount = null;
+		_deltaSlots = null;
+		_deltaPositions = null;
+		_deltaCountPtr = null;
+		_deltaCapacity = 0;
+		// the device no longer knows what was sent, start over with a
+		// keyframe
+		_deltaReferencePositions = null;
+	}
+
+	private static BufferAllocationEnum getDefaultBufferAllocation(
+			CLDevice device) {
+		String allocation = System.getProperty(BUFFER_ALLOCATION_PROPERTY);
+		if (allocation != null && !allocation.isEmpty()) {
+			return BufferAllocationEnum.valueOf(allocation.toUpperCase());
+		}
+		if (device.getType().contains(CLDevice.Type.CPU)
+				|| (SPHMemoryPlan.isOpenCL11(device.getVersion()) && device
+						.isHostUnifiedMemory())) {
+			return BufferAllocationEnum.HOST_POINTER;
+		}
+		return BufferAllocationEnum.DEVICE;
+	}
+
+	public BufferAllocationEnum getBufferAllocation() {
+		return _bufferAllocation;
+	}
+
+	/**
+	 * Switches buffer allocation strategy, buffers allocated so far are
+	 * released and the next initialization allocates them again.
+	 */
+	public void setBufferAllocation(BufferAllocationEnum bufferAllocation) {
+		if (bufferAllocation != _bufferAllocation) {
+			releaseParticleBuffers();
+			releaseElasticBuffers();
+			_bufferAllocation = bufferAllocation;
+		}
+	}
+
+	/*
+	 * Buffer of the plan, carved from the arena when there is one and
+	 * allocated on its own otherwise
+	 */
+	private <T> CLBuffer<T> createBuffer(CLBuffer<Byte> arena,
+			SPHMemoryPlan plan, BuffersEnum buffer, Class<T> type,
+			CLMem.Usage usage) {
+		if (arena == null) {
+			return createBuffer(usage, type, plan.getByteCount(buffer) / 4);
+		}
+		return arena.createSubBuffer(usage, plan.getOffset(buffer),
+				plan.getByteCount(buffer)).as(type);
+	}
+
+	private <T> CLBuffer<T> createBuffer(CLMem.Usage usage, Class<T> type,
+			long count) {
+		long byteCount = type == Byte.class ? count : count * 4;
+		if (_bufferAllocation == BufferAllocationEnum.HOST_POINTER) {
+			return createHostPointerBuffer(usage, type, byteCount);
+		}
+		return _context.createBuffer(usage, type, count);
+	}
+
+	/*
+	 * Host memory is page aligned, which is what CPU runtimes require to use
+	 * it in place instead of shadowing it with a copy
+	 */
+	private <T> CLBuffer<T> createHostPointerBuffer(CLMem.Usage usage,
+			Class<T> type, long byteCount) {
+		Pointer<Byte> host = Pointer.allocateBytes(byteCount
+				+ HOST_POINTER_ALIGNMENT);
+		long misalignment = host.getPeer() % HOST_POINTER_ALIGNMENT;
+		Pointer<T> aligned = host
+				.offset(misalignment == 0 ? 0
+						: HOST_POINTER_ALIGNMENT - misalignment)
+				.validBytes(byteCount).as(type).order(_context.getByteOrder());
+
+		CLBuffer<T> buffer = _context.createBuffer(usage, aligned, false);
+		_hostPointers.put(buffer, host);
+		return buffer;
+	}
+
+	private void releaseElasticBuffers() {
+		releaseBuffers(_elasticConnectionsOffsets, _elasticConnections,
+				_elasticConnectionsRestLength, _activationSignal,
+				_elasticSubstepState, _elasticArena);
+		_runtime.addAllocatedBytes(-getPlannedBytes(_elasticPlan));
+		_elasticArena = null;
+		_elasticPlan = null;
+		_elasticConnectionsOffsets = null;
+		_elasticConnections = null;
+		_elasticConnectionsRestLength = null;
+		_activationSignal = null;
+		_elasticSubstepState = null;
+		_elasticParticleCapacity = 0;
+		_connectionCapacity = 0;
+		_muscleCapacity = 0;
+	}
+
+	private void releaseKernels() {
+		for (CLKernel kernel : new CLKernel[] { _clearBuffers, _findNeighbors,
+				_hashParticles, _indexx, _sortPostPass,
+				_pcisph_computeDensity, _pcisph_computeForcesAndInitPressure,
+				_pcisph_integrate, _pcisph_predictPositions,
+				_pcisph_predictDensity, _pcisph_correctPressure,
+				_pcisph_computePressureForceAcceleration,
+				_pcisph_computeElasticForces, _pcisph_initElasticSubsteps,
+				_pcisph_integrateElasticSubstep, _pcisph_finishElasticSubsteps,
+				_gatherParticles, _compactMovedParticles }) {
+			if (kernel != null) {
+				kernel.release();
+			}
+		}
 	}
 
 	private int runClearBuffers() {
@@ -503,25 +1216,31 @@ public class SPHSolverService implements ISolver {
 	}
 
 	private int runIndexPostPass() {
-		// get values out of buffer
-		_gridCellIndexPtr = _gridCellIndex.map(_queue, CLMem.MapFlags.Read);
-		int[] gridNextNonEmptyCellBuffer = _gridCellIndexPtr.getInts();
-		_gridCellIndex.unmap(_queue, _gridCellIndexPtr);
+		// both buffers are mapped over the cells of the scene only and the
+		// fix up goes straight from one to the other, with host pointer
+		// buffers nothing is copied
+		int cells = _gridCellCount + 1;
+		_gridCellIndexPtr = _gridCellIndex.map(_queue, CLMem.MapFlags.Read,
+				0, cells);
+		_gridCellIndexFixedUpPtr = _gridCellIndexFixedUp.map(_queue,
+				CLMem.MapFlags.Write, 0, cells);
+		IntBuffer gridCellIndex = _gridCellIndexPtr.getIntBuffer();
+		IntBuffer gridNextNonEmptyCell = _gridCellIndexFixedUpPtr
+				.getIntBuffer();
 
 		int recentNonEmptyCell = _gridCellCount;
 		for (int i = _gridCellCount; i >= 0; i--) {
-			if (gridNextNonEmptyCellBuffer[i] == SPHConstants.NO_CELL_ID) {
-				gridNextNonEmptyCellBuffer[i] = recentNonEmptyCell;
+			int cell = gridCellIndex.get(i);
+			if (cell == SPHConstants.NO_CELL_ID) {
+				gridNextNonEmptyCell.put(i, recentNonEmptyCell);
 			} else {
-				recentNonEmptyCell = gridNextNonEmptyCellBuffer[i];
+				recentNonEmptyCell = cell;
+				gridNextNonEmptyCell.put(i, cell);
 			}
 		}
 
-		// put results back
-		_gridCellIndexFixedUpPtr = _gridCellIndexFixedUp.map(_queue,
-				CLMem.MapFlags.Write);
-		_gridCellIndexFixedUpPtr.setInts(gridNextNonEmptyCellBuffer);
 		_gridCellIndexFixedUp.unmap(_queue, _gridCellIndexFixedUpPtr);
+		_gridCellIndex.unmap(_queue, _gridCellIndexPtr);
 
 		return 0;
 	}
@@ -548,7 +1267,8 @@ public class SPHSolverService implements ISolver {
 		_sortPostPass.setArg(3, _velocity);
 		_sortPostPass.setArg(4, _sortedPosition);
 		_sortPostPass.setArg(5, _sortedVelocity);
-		_sortPostPass.setArg(6, _particleCount);
+		_sortPostPass.setArg(6, _sortedTypeNormal);
+		_sortPostPass.setArg(7, _particleCount);
 		_sortPostPass.enqueueNDRange(_queue,
 				new int[] { getParticleCountRoundedUp() });
 		return 0;
@@ -568,7 +1288,7 @@ public class SPHSolverService implements ISolver {
 		_pcisph_computeDensity.setArg(9, _pressure);
 		_pcisph_computeDensity.setArg(10, _rho);
 		_pcisph_computeDensity.setArg(11, _particleIndexBack);
-		_pcisph_computeDensity.setArg(12, SPHConstants.DELTA); // calculated
+		_pcisph_computeDensity.setArg(12, getDelta()); // calculated
 																// from
 																// constants
 		_pcisph_computeDensity.setArg(13, _particleCount);
@@ -598,9 +1318,8 @@ public class SPHSolverService implements ISolver {
 		_pcisph_computeForcesAndInitPressure.setArg(13, SPHConstants.GRAVITY_X);
 		_pcisph_computeForcesAndInitPressure.setArg(14, SPHConstants.GRAVITY_Y);
 		_pcisph_computeForcesAndInitPressure.setArg(15, SPHConstants.GRAVITY_Z);
-		_pcisph_computeForcesAndInitPressure.setArg(16, _position);
-		_pcisph_computeForcesAndInitPressure.setArg(17, _particleIndex);
-		_pcisph_computeForcesAndInitPressure.setArg(18, _particleCount);
+		_pcisph_computeForcesAndInitPressure.setArg(16, _sortedTypeNormal);
+		_pcisph_computeForcesAndInitPressure.setArg(17, _particleCount);
 		_pcisph_computeForcesAndInitPressure.enqueueNDRange(_queue,
 				new int[] { getParticleCountRoundedUp() });
 
@@ -608,27 +1327,81 @@ public class SPHSolverService implements ISolver {
 	}
 
 	private int run_pcisph_computeElasticForces() {
-		_pcisph_computeElasticForces.setArg(0, _neighborMap);
-		_pcisph_computeElasticForces.setArg(1, _sortedPosition);
-		_pcisph_computeElasticForces.setArg(2, _sortedVelocity);
-		_pcisph_computeElasticForces.setArg(3, _acceleration);
-		_pcisph_computeElasticForces.setArg(4, _particleIndexBack);
-		_pcisph_computeElasticForces.setArg(5, _velocity);
-		_pcisph_computeElasticForces.setArg(6, SPHConstants.H);
-		_pcisph_computeElasticForces.setArg(7, SPHConstants.MASS);
-		_pcisph_computeElasticForces.setArg(8, SPHConstants.SIMULATION_SCALE);
-		_pcisph_computeElasticForces.setArg(9, _numOfElasticP);
-		_pcisph_computeElasticForces.setArg(10, _elasticConnectionsData);
-		_pcisph_computeElasticForces.setArg(11, 0);
-		_pcisph_computeElasticForces.setArg(12, _activationSignal);
-		_pcisph_computeElasticForces.setArg(13, _elasticBundlesCount);
-		_pcisph_computeElasticForces.setArg(14, _particleCount);
-
-		int numOfElasticPRoundedUp = (((_numOfElasticP - 1) / 256) + 1) * 256;
+		_pcisph_computeElasticForces.setArg(0, _sortedPosition);
+		_pcisph_computeElasticForces.setArg(1, _acceleration);
+		_pcisph_computeElasticForces.setArg(2, _particleIndexBack);
+		_pcisph_computeElasticForces.setArg(3, SPHConstants.H);
+		_pcisph_computeElasticForces.setArg(4, SPHConstants.MASS);
+		_pcisph_computeElasticForces.setArg(5, SPHConstants.SIMULATION_SCALE);
+		_pcisph_computeElasticForces.setArg(6, _numOfElasticP);
+		_pcisph_computeElasticForces.setArg(7, _elasticConnectionsOffsets);
+		_pcisph_computeElasticForces.setArg(8, _elasticConnections);
+		_pcisph_computeElasticForces.setArg(9, _elasticConnectionsRestLength);
+		_pcisph_computeElasticForces.setArg(10, 0);
+		_pcisph_computeElasticForces.setArg(11, _activationSignal);
+		_pcisph_computeElasticForces.setArg(12, _elasticBundlesCount);
+		_pcisph_computeElasticForces.setArg(13, _particleCount);
 
 		_pcisph_computeElasticForces.enqueueNDRange(_queue,
+				new int[] { getElasticParticleCountRoundedUp() });
+
+		return 0;
+	}
+
+	private int run_pcisph_elasticSubsteps() {
+		int numOfElasticPRoundedUp = getElasticParticleCountRoundedUp();
+		// offsets of the two state copies, in float4
+		int source = 0;
+		int destination = _numOfElasticP * 2;
+
+		_pcisph_initElasticSubsteps.setArg(0, _sortedPosition);
+		_pcisph_initElasticSubsteps.setArg(1, _sortedVelocity);
+		_pcisph_initElasticSubsteps.setArg(2, _particleIndexBack);
+		_pcisph_initElasticSubsteps.setArg(3, _numOfElasticP);
+		_pcisph_initElasticSubsteps.setArg(4, _elasticSubstepState);
+		_pcisph_initElasticSubsteps.enqueueNDRange(_queue,
 				new int[] { numOfElasticPRoundedUp });
 
+		_pcisph_integrateElasticSubstep.setArg(0, _sortedPosition);
+		_pcisph_integrateElasticSubstep.setArg(1, _acceleration);
+		_pcisph_integrateElasticSubstep.setArg(2, _particleIndexBack);
+		_pcisph_integrateElasticSubstep.setArg(3,
+				SPHConstants.SIMULATION_SCALE);
+		_pcisph_integrateElasticSubstep.setArg(4,
+				SPHConstants.SIMULATION_SCALE_INV);
+		_pcisph_integrateElasticSubstep.setArg(5, _timeStep
+				/ _elasticSubsteps);
+		_pcisph_integrateElasticSubstep.setArg(6, _numOfElasticP);
+		_pcisph_integrateElasticSubstep.setArg(7, _elasticConnectionsOffsets);
+		_pcisph_integrateElasticSubstep.setArg(8, _elasticConnections);
+		_pcisph_integrateElasticSubstep.setArg(9,
+				_elasticConnectionsRestLength);
+		_pcisph_integrateElasticSubstep.setArg(10, _activationSignal);
+		_pcisph_integrateElasticSubstep.setArg(11, _elasticBundlesCount);
+		_pcisph_integrateElasticSubstep.setArg(12, _elasticSubstepState);
+		for (int i = 0; i < _elasticSubsteps; i++) {
+			_pcisph_integrateElasticSubstep.setArg(13, source);
+			_pcisph_integrateElasticSubstep.setArg(14, destination);
+			_pcisph_integrateElasticSubstep.enqueueNDRange(_queue,
+					new int[] { numOfElasticPRoundedUp });
+
+			int swap = source;
+			source = destination;
+			destination = swap;
+		}
+
+		_pcisph_finishElasticSubsteps.setArg(0, _sortedVelocity);
+		_pcisph_finishElasticSubsteps.setArg(1, _acceleration);
+		_pcisph_finishElasticSubsteps.setArg(2, _particleIndexBack);
+		_pcisph_finishElasticSubsteps.setArg(3, _timeStep);
+		_pcisph_finishElasticSubsteps.setArg(4, _numOfElasticP);
+		_pcisph_finishElasticSubsteps.setArg(5, _elasticSubstepState);
+		_pcisph_finishElasticSubsteps.setArg(6, source);
+		_pcisph_finishElasticSubsteps.enqueueNDRange(_queue,
+				new int[] { numOfElasticPRoundedUp });
+
+		// integrate takes elastic positions and velocities from there
+		_elasticSubstepResult = source;
 		return 0;
 	}
 
@@ -636,13 +1409,13 @@ public class SPHSolverService implements ISolver {
 		_pcisph_predictPositions.setArg(0, _acceleration);
 		_pcisph_predictPositions.setArg(1, _sortedPosition);
 		_pcisph_predictPositions.setArg(2, _sortedVelocity);
-		_pcisph_predictPositions.setArg(3, _particleIndex);
+		_pcisph_predictPositions.setArg(3, _sortedTypeNormal);
 		_pcisph_predictPositions.setArg(4, _particleIndexBack);
 		_pcisph_predictPositions.setArg(5, SPHConstants.GRAVITY_X);
 		_pcisph_predictPositions.setArg(6, SPHConstants.GRAVITY_Y);
 		_pcisph_predictPositions.setArg(7, SPHConstants.GRAVITY_Z);
 		_pcisph_predictPositions.setArg(8, SPHConstants.SIMULATION_SCALE_INV);
-		_pcisph_predictPositions.setArg(9, SPHConstants.TIME_STEP);
+		_pcisph_predictPositions.setArg(9, _timeStep);
 		_pcisph_predictPositions.setArg(10, _xMin);
 		_pcisph_predictPositions.setArg(11, _xMax);
 		_pcisph_predictPositions.setArg(12, _yMin);
@@ -650,11 +1423,9 @@ public class SPHSolverService implements ISolver {
 		_pcisph_predictPositions.setArg(14, _zMin);
 		_pcisph_predictPositions.setArg(15, _zMax);
 		_pcisph_predictPositions.setArg(16, SPHConstants.DAMPING);
-		_pcisph_predictPositions.setArg(17, _position);
-		_pcisph_predictPositions.setArg(18, _velocity);
-		_pcisph_predictPositions.setArg(19, SPHConstants.R0);
-		_pcisph_predictPositions.setArg(20, _neighborMap);
-		_pcisph_predictPositions.setArg(21, _particleCount);
+		_pcisph_predictPositions.setArg(17, SPHConstants.R0);
+		_pcisph_predictPositions.setArg(18, _neighborMap);
+		_pcisph_predictPositions.setArg(19, _particleCount);
 		_pcisph_predictPositions.enqueueNDRange(_queue,
 				new int[] { getParticleCountRoundedUp() });
 
@@ -675,7 +1446,7 @@ public class SPHSolverService implements ISolver {
 		_pcisph_predictDensity.setArg(9, _sortedPosition);
 		_pcisph_predictDensity.setArg(10, _pressure);
 		_pcisph_predictDensity.setArg(11, _rho);
-		_pcisph_predictDensity.setArg(12, SPHConstants.DELTA);
+		_pcisph_predictDensity.setArg(12, getDelta());
 		_pcisph_predictDensity.setArg(13, _particleCount);
 		_pcisph_predictDensity.enqueueNDRange(_queue,
 				new int[] { getParticleCountRoundedUp() });
@@ -698,7 +1469,7 @@ public class SPHSolverService implements ISolver {
 		_pcisph_correctPressure.setArg(9, _sortedPosition);
 		_pcisph_correctPressure.setArg(10, _pressure);
 		_pcisph_correctPressure.setArg(11, _rho);
-		_pcisph_correctPressure.setArg(12, SPHConstants.DELTA);
+		_pcisph_correctPressure.setArg(12, getDelta());
 		_pcisph_correctPressure.setArg(13, _position);
 		_pcisph_correctPressure.setArg(14, _particleIndex);
 		_pcisph_correctPressure.setArg(15, _particleCount);
@@ -729,9 +1500,8 @@ public class SPHSolverService implements ISolver {
 				SPHConstants.SIMULATION_SCALE);
 		_pcisph_computePressureForceAcceleration.setArg(13, _acceleration);
 		_pcisph_computePressureForceAcceleration.setArg(14, SPHConstants.RHO0);
-		_pcisph_computePressureForceAcceleration.setArg(15, _position);
-		_pcisph_computePressureForceAcceleration.setArg(16, _particleIndex);
-		_pcisph_computePressureForceAcceleration.setArg(17, _particleCount);
+		_pcisph_computePressureForceAcceleration.setArg(15, _sortedTypeNormal);
+		_pcisph_computePressureForceAcceleration.setArg(16, _particleCount);
 		_pcisph_computePressureForceAcceleration.enqueueNDRange(_queue,
 				new int[] { getParticleCountRoundedUp() });
 
@@ -749,7 +1519,7 @@ public class SPHSolverService implements ISolver {
 		_pcisph_integrate.setArg(6, SPHConstants.GRAVITY_Y);
 		_pcisph_integrate.setArg(7, SPHConstants.GRAVITY_Z);
 		_pcisph_integrate.setArg(8, SPHConstants.SIMULATION_SCALE_INV);
-		_pcisph_integrate.setArg(9, SPHConstants.TIME_STEP);
+		_pcisph_integrate.setArg(9, _timeStep);
 		_pcisph_integrate.setArg(10, _xMin);
 		_pcisph_integrate.setArg(11, _xMax);
 		_pcisph_integrate.setArg(12, _yMin);
@@ -762,7 +1532,14 @@ public class SPHSolverService implements ISolver {
 		_pcisph_integrate.setArg(19, _rho);
 		_pcisph_integrate.setArg(20, SPHConstants.R0);
 		_pcisph_integrate.setArg(21, _neighborMap);
-		_pcisph_integrate.setArg(22, _particleCount);
+		_pcisph_integrate.setArg(22, _sortedTypeNormal);
+		_pcisph_integrate.setArg(23, _particleCount);
+		// the substep state is only read when substeps ran this step
+		_pcisph_integrate.setArg(24,
+				_elasticSubstepResult >= 0 ? _elasticSubstepState
+						: _noSubstepState);
+		_pcisph_integrate.setArg(25, _numOfElasticP);
+		_pcisph_integrate.setArg(26, _elasticSubstepResult);
 		CLEvent event = _pcisph_integrate.enqueueNDRange(_queue,
 				new int[] { getParticleCountRoundedUp() });
 
@@ -770,50 +1547,26 @@ public class SPHSolverService implements ISolver {
 	}
 
 	private int runSort() {
-		// this version work with qsort
-		int index = 0;
-		List<int[]> particleIndex = new ArrayList<int[]>();
-
-		// get values out of buffer
-		_particleIndexPtr = _particleIndex
-				.map(_queue, CLMem.MapFlags.ReadWrite);
-		int[] particleInd = _particleIndexPtr.getInts();
-
-		for (int i = 0; i < _particleCount * 2; i += 2) {
-			int[] element = { particleInd[i], particleInd[i + 1] };
-			particleIndex.add(element);
-		}
-		Collections.sort(particleIndex, new MyCompare());
-		for (int i = 0; i < particleIndex.size(); i++) {
-			for (int j = 0; j < 2; j++) {
-				particleInd[index] = particleIndex.get(i)[j];
-				index++;
-			}
-		}
-
-		// put results back
-		_particleIndexPtr.setInts(particleInd);
+		// sorted where it is mapped, over the particles of the scene only
+		_particleIndexPtr = _particleIndex.map(_queue,
+				CLMem.MapFlags.ReadWrite, 0, _particleCount * 2L);
+		SPHIndexSort.sort(_particleIndexPtr.getIntBuffer(), _particleCount);
 		_particleIndex.unmap(_queue, _particleIndexPtr);
 
 		return 0;
 	}
 
-	class MyCompare implements Comparator<int[]> {
-		public int compare(int[] o1, int[] o2) {
-			if (o1[0] < o2[0])
-				return -1;
-			if (o1[0] > o2[0])
-				return +1;
-			return 0;
-		}
-	}
-
 	private void step() {
 		long endStep = 0;
 		long startStep = System.currentTimeMillis();
 		long end = 0;
 		long start = System.currentTimeMillis();
 
+		// queued up front so the transfer overlaps with the neighbour search
+		if (_numOfElasticP > 0) {
+			uploadActivationSignal();
+		}
+
 		logger.info("SPH clear buffer");
 		runClearBuffers();
 		if (_recordCheckPoints) {
@@ -904,9 +1657,14 @@ public class SPHSolverService implements ISolver {
 		start = end;
 
 		// Do elastic stuff only if we have elastic particles
+		_elasticSubstepResult = -1;
 		if (_numOfElasticP > 0) {
 			logger.info("PCI-SPH compute elastic forces");
-			run_pcisph_computeElasticForces();
+			if (_elasticSubsteps > 1) {
+				run_pcisph_elasticSubsteps();
+			} else {
+				run_pcisph_computeElasticForces();
+			}
 			if (_recordCheckPoints) {
 				recordCheckpoints(KernelsEnum.COMPUTE_ELASTIC_FORCES);
 			}
@@ -968,34 +1726,111 @@ public class SPHSolverService implements ISolver {
 		return (((_particleCount - 1) / 256) + 1) * 256;
 	}
 
-	// XXX: for debug only, remove
+	private int getElasticParticleCountRoundedUp() {
+		return (((_numOfElasticP - 1) / 256) + 1) * 256;
+	}
+
+	/**
+	 * The state tree, brought up to date with the latest frame if the solver
+	 * runs with the state tree disabled.
+	 */
 	public StateTreeRoot getStateTree() {
 		if (_stateTree == null) {
-			_stateTree = new StateTreeRoot(_model.getId());
+			_stateTree = new StateTreeRoot(_scene.getId());
+			_stateTreeStep = -1;
+		}
+		if (_frame == null) {
+			readFrame();
+		}
+		if (_stateTreeStep != _frame.getStep()) {
 			updateStateTree();
 		}
 
 		return _stateTree;
 	}
 
+	/**
+	 * Positions after the last step (or of the initial scene).
+	 */
+	public SPHFrame getFrame() {
+		return _frame;
+	}
+
+	/**
+	 * With the state tree disabled solve() only produces frames, consumers
+	 * of the state tree get it built from the latest frame by getStateTree().
+	 */
+	public void setStateTreeEnabled(boolean stateTreeEnabled) {
+		_stateTreeEnabled = stateTreeEnabled;
+	}
+
+	public boolean isStateTreeEnabled() {
+		return _stateTreeEnabled;
+	}
+
+	/**
+	 * Keeps only the last frames (and state tree values) instead of the
+	 * whole simulation, evicted frames are dropped or, with spill set, moved
+	 * to off-heap memory until SPHFrameSpillStore.DEFAULT_MAX_BYTES are used.
+	 * State tree leaves keep up to twice the length between trims. 0 keeps
+	 * everything. Takes effect on the next initialization.
+	 */
+	public void setHistoryLength(int frames, boolean spill) {
+		if (frames < 0) {
+			throw new IllegalArgumentException(
+					"SPHSolverService:setHistoryLength - negative length");
+		}
+		_historyLength = frames;
+		_historySpill = spill;
+	}
+
+	public int getHistoryLength() {
+		return _historyLength;
+	}
+
+	/**
+	 * Records every frame of the run in a quantized, delta encoded store.
+	 * Takes effect on the next initialization.
+	 */
+	public void setQuantizedHistoryEnabled(boolean enabled) {
+		_quantizedHistoryEnabled = enabled;
+	}
+
+	/**
+	 * The recorded run, null unless enabled.
+	 */
+	public SPHQuantizedHistory getQuantizedHistory() {
+		return _quantizedHistory;
+	}
+
+	/**
+	 * The kept frames, null unless a history length is set.
+	 */
+	public SPHFrameHistory getHistory() {
+		return _history;
+	}
+
 	@Override
 	public StateTreeRoot solve(IRunConfiguration timeConfiguration) {
+		checkOwner();
 		// TODO: extend this to use time configuration to do multiple steps in one go
 		long time = System.currentTimeMillis();
 		logger.info("SPH solver start");
 
 		if (_stateTree == null) {
-			_stateTree = new StateTreeRoot(_model.getId());
+			_stateTree = new StateTreeRoot(_scene.getId());
 		}
 
 		for (int i = 0; i < timeConfiguration.getTimeSteps(); i++) {
-			// TODO: setActivationSignal
-
 			long end = 0;
 			long start = System.currentTimeMillis();
 			logger.info("SPH STEP START");
 			step();
-			updateStateTree();
+			_frameStep++;
+			readFrame();
+			if (_stateTreeEnabled) {
+				updateStateTree();
+			}
 
 			end = System.currentTimeMillis();
 			logger.info("SPH STEP END, took " + (end - start) + "ms");
@@ -1005,10 +1840,268 @@ public class SPHSolverService implements ISolver {
 		return _stateTree;
 	}
 
+	/*
+	 * Copies the positions (and velocities if a trajectory or a subscriber
+	 * needs them) of the selected particles into a new frame. The selection
+	 * is gathered on the device first so that only its own bytes are
+	 * transferred.
+	 */
+	private SPHFrame readFrame() {
+		int[] ids = _frameParticleIds;
+		boolean gatherVelocities = (_trajectoryWriter != null && _trajectoryVelocities)
+				|| _publisher.isVelocitiesRequested();
+
+		// deltas carry no velocities, frames that need them are keyframes
+		boolean deltaReadback = _deltaReadback && ids.length > 0;
+		SPHFrame delta = null;
+		if (deltaReadback) {
+			reserveDeltaBuffers(ids.length);
+			if (!gatherVelocities && _deltaReferencePositions != null
+					&& _frameStep - _keyframeStep < _keyframeInterval) {
+				delta = readDelta();
+			}
+		}
+
+		if (delta != null) {
+			_frame = new SPHFrame(_frameStep,
+					_deltaReferencePositions.clone(), ids);
+		} else {
+			int count = ids.length * SPHFrame.POSITION_SIZE;
+			float[] positions;
+			float[] velocities = null;
+			if (ids.length > 0) {
+				runGatherParticles(gatherVelocities);
+
+				_gatherOutputPtr = _gatherOutput.map(_queue,
+						CLMem.MapFlags.Read, 0, gatherVelocities ? count * 2
+								: count);
+				positions = _gatherOutputPtr.getFloatsAtOffset(0, count);
+				if (gatherVelocities) {
+					velocities = _gatherOutputPtr.getFloatsAtOffset(
+							count * 4L, count);
+				}
+				_gatherOutput.unmap(_queue, _gatherOutputPtr);
+			} else {
+				positions = new float[0];
+				if (gatherVelocities) {
+					velocities = new float[0];
+				}
+			}
+			_frame = new SPHFrame(_frameStep, positions, velocities, ids);
+
+			if (deltaReadback) {
+				// deltas that follow are relative to this keyframe
+				runCompactMovedParticles(true);
+				_deltaReferencePositions = positions.clone();
+				_keyframeStep = _frameStep;
+			}
+		}
+
+		if (_history != null) {
+			_history.add(_frame);
+		}
+		if (_quantizedHistory != null) {
+			_quantizedHistory.add(_frame);
+		}
+		_latestFrame.publish(_frame);
+		if (_publisher.hasSubscribers()) {
+			_publisher.publish(delta != null ? delta : _frame);
+		}
+		if (_trajectoryWriter != null) {
+			try {
+				_trajectoryWriter.append(_frame);
+			} catch (IOException e) {
+				logger.error("trajectory recording stopped", e);
+				stopTrajectory();
+			}
+		}
+		return _frame;
+	}
+
+	/*
+	 * Transfers the records of the particles that moved more than epsilon
+	 * and applies them to the host copy of the positions last sent
+	 */
+	private SPHFrame readDelta() {
+		_deltaCountPtr.setIntAtIndex(0, 0);
+		_deltaCount.write(_queue, _deltaCountPtr, false);
+		runCompactMovedParticles(false);
+		_deltaCount.read(_queue, _deltaCountPtr, true);
+		int moved = _deltaCountPtr.getIntAtIndex(0);
+
+		int[] ids = new int[moved];
+		float[] positions = new float[moved * SPHFrame.POSITION_SIZE];
+		if (moved > 0) {
+			_deltaSlotsPtr = _deltaSlots.map(_queue, CLMem.MapFlags.Read, 0,
+					moved);
+			int[] slots = _deltaSlotsPtr.getInts(moved);
+			_deltaSlots.unmap(_queue, _deltaSlotsPtr);
+
+			_deltaPositionsPtr = _deltaPositions.map(_queue,
+					CLMem.MapFlags.Read, 0, positions.length);
+			positions = _deltaPositionsPtr.getFloatsAtOffset(0,
+					positions.length);
+			_deltaPositions.unmap(_queue, _deltaPositionsPtr);
+
+			for (int i = 0; i < moved; i++) {
+				ids[i] = _frameParticleIds[slots[i]];
+				System.arraycopy(positions, i * SPHFrame.POSITION_SIZE,
+						_deltaReferencePositions, slots[i]
+								* SPHFrame.POSITION_SIZE,
+						SPHFrame.POSITION_SIZE);
+			}
+		}
+		return SPHFrame.delta(_frameStep, positions, ids);
+	}
+
+	private int runGatherParticles(boolean velocities) {
+		_gatherParticles.setArg(0, _position);
+		_gatherParticles.setArg(1, _velocity);
+		_gatherParticles.setArg(2, _gatherIndex);
+		_gatherParticles.setArg(3, _gatherOutput);
+		_gatherParticles.setArg(4, _frameParticleIds.length);
+		_gatherParticles.setArg(5, velocities ? 1 : 0);
+		_gatherParticles.enqueueNDRange(_queue,
+				new int[] { getSelectionCountRoundedUp() });
+		return 0;
+	}
+
+	private int runCompactMovedParticles(boolean keyframe) {
+		_compactMovedParticles.setArg(0, _position);
+		_compactMovedParticles.setArg(1, _gatherIndex);
+		_compactMovedParticles.setArg(2, _deltaReference);
+		_compactMovedParticles.setArg(3, _deltaCount);
+		_compactMovedParticles.setArg(4, _deltaSlots);
+		_compactMovedParticles.setArg(5, _deltaPositions);
+		_compactMovedParticles.setArg(6, _frameParticleIds.length);
+		_compactMovedParticles.setArg(7, _deltaEpsilon * _deltaEpsilon);
+		_compactMovedParticles.setArg(8, keyframe ? 1 : 0);
+		_compactMovedParticles.enqueueNDRange(_queue,
+				new int[] { getSelectionCountRoundedUp() });
+		return 0;
+	}
+
+	private int getSelectionCountRoundedUp() {
+		return (((_frameParticleIds.length - 1) / 256) + 1) * 256;
+	}
+
+	/**
+	 * Transfers only the particles that moved more than epsilon since they
+	 * were last sent, with a full keyframe every keyframeInterval frames.
+	 * Subscribers get delta frames in between keyframes, a subscriber that
+	 * drops frames is back in sync at the next keyframe. Frames kept by the
+	 * solver (state tree, histories, trajectories) are rebuilt from the
+	 * deltas and are within epsilon of the device positions. Frames that
+	 * need velocities are always keyframes. Requires global atomics, that
+	 * is OpenCL 1.1 or the cl_khr_global_int32_base_atomics extension.
+	 */
+	public void setDeltaReadback(float epsilon, int keyframeInterval) {
+		if (epsilon < 0 || keyframeInterval < 1) {
+			throw new IllegalArgumentException(
+					"SPHSolverService:setDeltaReadback - epsilon must not be negative and keyframe interval must be positive");
+		}
+		if (_compactMovedParticles == null) {
+			throw new IllegalStateException(
+					"SPHSolverService:setDeltaReadback - " + _device.getName()
+							+ " does not support global atomics");
+		}
+		_deltaReadback = true;
+		_deltaEpsilon = epsilon;
+		_keyframeInterval = keyframeInterval;
+		_deltaReferencePositions = null;
+	}
+
+	/**
+	 * Goes back to transferring every selected particle every frame.
+	 */
+	public void setFullReadback() {
+		_deltaReadback = false;
+		releaseDeltaBuffers();
+	}
+
+	public boolean isDeltaReadback() {
+		return _deltaReadback;
+	}
+
+	/**
+	 * Particles frames are made of, the moving ones unless set otherwise.
+	 * Only these particles are transferred from the device after a step, and
+	 * only these show up in the state tree, histories and trajectories. A
+	 * new selection takes effect on the next initialization.
+	 */
+	public void setOutputSelection(SPHParticleSelection selection) {
+		if (selection == null) {
+			throw new IllegalArgumentException(
+					"SPHSolverService:setOutputSelection - selection is null");
+		}
+		_outputSelection = selection;
+	}
+
+	public SPHParticleSelection getOutputSelection() {
+		return _outputSelection;
+	}
+
+	/**
+	 * The newest frame, for any number of threads to read while the solver
+	 * keeps stepping. Readers never block the solver.
+	 */
+	public SPHLatestFrame getLatestFrame() {
+		return _latestFrame;
+	}
+
+	/**
+	 * The device resources shared with the other solvers on the device,
+	 * null once the context was cleaned.
+	 */
+	public SPHDeviceRuntime getDeviceRuntime() {
+		return _runtime;
+	}
+
+	/**
+	 * Pushes every frame computed from now on to the listener, on a thread
+	 * of its own. The policy decides what happens when the listener is more
+	 * than capacity frames behind, see BackpressurePolicyEnum.
+	 */
+	public SPHFramePublisher.Subscription subscribe(SPHFrameListener listener,
+			BackpressurePolicyEnum policy, int capacity, boolean velocities) {
+		return _publisher.subscribe(listener, policy, capacity, velocities);
+	}
+
+	/**
+	 * Streams every frame computed from now on to a trajectory file, until
+	 * stopTrajectory() or the next initialization. Writes happen on a
+	 * separate thread.
+	 */
+	public void startTrajectory(File file, boolean velocities)
+			throws IOException {
+		stopTrajectory();
+		_trajectoryVelocities = velocities;
+		_trajectoryWriter = new SPHTrajectoryWriter(file, _frameParticleIds,
+				velocities);
+	}
+
+	/**
+	 * Finishes the trajectory file being recorded, if any.
+	 */
+	public void stopTrajectory() {
+		SPHTrajectoryWriter writer = _trajectoryWriter;
+		_trajectoryWriter = null;
+		if (writer != null) {
+			try {
+				writer.close();
+			} catch (IOException e) {
+				logger.error("could not finish trajectory file", e);
+			}
+		}
+	}
+
+	/*
+	 * Adds the latest frame to the state tree
+	 */
 	private void updateStateTree() {
 		CompositeStateNode modelSubTree = _stateTree.getSubTree(StateTreeRoot.SUBTREE.MODEL_TREE);
-
-		_positionPtr = _position.map(_queue, CLMem.MapFlags.Read);
+		float[] positions = _frame.getPositions();
+		int[] ids = _frame.getParticleIds();
 
 		// ASSUMPTION: The solver will never create new states after the first
 		// time step
@@ -1019,232 +2112,273 @@ public class SPHSolverService implements ISolver {
 		// if some new states exist to eventually add them to the stateTree
 		if (modelSubTree.getChildren().isEmpty()) {
 			// the state tree is empty, let's create it
-			for (int i = 0, index = 0; i < _particleCount; i++, index = index + 4) {
-				String particleId = SPHModelInterpreterService.getParticleId(i);
-				FloatValue xV = ValuesFactory.getFloatValue(_positionPtr.get(index));
-				FloatValue yV = ValuesFactory.getFloatValue(_positionPtr.get(index + 1));
-				FloatValue zV = ValuesFactory.getFloatValue(_positionPtr.get(index + 2));
-				FloatValue pV = ValuesFactory.getFloatValue(_positionPtr.get(index + 3));
-
-				if (pV.getAsFloat() != SPHConstants.BOUNDARY_TYPE) {
-					// don't need to create a state for the boundary particles,
-					// they don't move.
-					CompositeStateNode particle = new CompositeStateNode(particleId);
-					modelSubTree.addChild(particle);
-					CompositeStateNode pos = new CompositeStateNode("pos");
-					particle.addChild(pos);
-					SimpleStateNode x = new SimpleStateNode("x");
-					x.addValue(xV);
-					pos.addChild(x);
-					SimpleStateNode y = new SimpleStateNode("y");
-					y.addValue(yV);
-					pos.addChild(y);
-					SimpleStateNode z = new SimpleStateNode("z");
-					z.addValue(zV);
-					pos.addChild(z);
-					SimpleStateNode p = new SimpleStateNode("p");
-					p.addValue(pV);
-					pos.addChild(p);
-				}
+			// NOTE: frames don't hold boundary particles, they don't move
+			for (int slot = 0, index = 0; slot < ids.length; slot++, index = index + 4) {
+				String particleId = SPHModelInterpreterService.getParticleId(ids[slot]);
+				CompositeStateNode particle = new CompositeStateNode(particleId);
+				modelSubTree.addChild(particle);
+				CompositeStateNode pos = new CompositeStateNode("pos");
+				particle.addChild(pos);
+				SimpleStateNode x = new SimpleStateNode("x");
+				x.addValue(ValuesFactory.getFloatValue(positions[index]));
+				pos.addChild(x);
+				SimpleStateNode y = new SimpleStateNode("y");
+				y.addValue(ValuesFactory.getFloatValue(positions[index + 1]));
+				pos.addChild(y);
+				SimpleStateNode z = new SimpleStateNode("z");
+				z.addValue(ValuesFactory.getFloatValue(positions[index + 2]));
+				pos.addChild(z);
+				SimpleStateNode p = new SimpleStateNode("p");
+				p.addValue(ValuesFactory.getFloatValue(positions[index + 3]));
+				pos.addChild(p);
 			}
 		} else {
-			UpdateSPHStateTreeVisitor updateSPHStateTreeVisitor = new UpdateSPHStateTreeVisitor(_positionPtr);
-			modelSubTree.apply(updateSPHStateTreeVisitor);
+			// leaves are resolved once per tree, later steps only append
+			if (_stateTreeUpdater == null || _stateTreeUpdater.getModelTree() != modelSubTree) {
+				_stateTreeUpdater = new SPHStateTreeUpdater(modelSubTree, _frameSlots, _historyLength);
+			}
+			_stateTreeUpdater.update(_frame);
 		}
+		_stateTreeStep = _frame.getStep();
 		
-		if (watching) {
+		if (watching && !watchListVarNames.isEmpty()) {
 			updateStateTreeForWatch();
 		}
-		
-		_position.unmap(_queue, _positionPtr);
-
 	}
 
 	private void updateStateTreeForWatch() {
 		CompositeStateNode watchTree = _stateTree.getSubTree(SUBTREE.WATCH_TREE);
 
-		// map watchable buffers that are not already mapped
-		// NOTE: position is mapped for scene generation - improving performance by not mapping it again
-		_velocityPtr = _velocity.map(_queue, CLMem.MapFlags.Read);
-
-		if (watchTree.getChildren().isEmpty()) {
-			// check which watchable variables are being watched
-			for (AVariable var : getWatchableVariables().getVariables()) {
-				for (String varName : watchListVarNames) {
-					// get watchable variables path
-					List<String> watchableVarsPaths = new ArrayList<String>();
-					VariablePathSerializer.GetFullVariablePath(var, "", watchableVarsPaths);
-
-					// remove array bracket arguments from variable paths
-					String varNameNoBrackets = varName;
-					String particleID = null;
-					if(varName.indexOf("[")!=-1)
-					{
-						varNameNoBrackets = varName.substring(0,varName.indexOf("["))+varName.substring(varName.indexOf("]")+1,varName.length());
-						particleID = varName.substring(varName.indexOf("[")+1, varName.indexOf("]"));
-					}
-
-					// loop through paths and look for matching paths
-					for (String s : watchableVarsPaths) {
-						if (s.equals(varNameNoBrackets)) {
-							// we have a match
-
-							Integer ID = null;
-							if (particleID != null) {
-								// check that paticleID is valid
-								ID = Integer.parseInt(particleID);
-								if (!(ID < _particleCount)) {
-									throw new IllegalArgumentException("SPHSolverService:updateStateTreeForWatch - particle index is out of boundaries");
-								}
-							}
-
-							// tokenize variable path in watch list via dot
-							// separator (handle array brackets)
-							StringTokenizer tokenizer = new StringTokenizer(s,".");
-							CompositeStateNode node = watchTree;
-							while (tokenizer.hasMoreElements()) {
-								// loop through tokens and build tree
-								String current = tokenizer.nextToken();
-								boolean found = false;
-								for (AStateNode child : node.getChildren()) {
-									if (child.getName().equals(current)) {
-										if (child instanceof CompositeStateNode) {
-											node = (CompositeStateNode) child;
-										}
-										found = true;
-										break;
-									}
-								}
-								if (found) {
-									continue;
-								} else {
-									if (tokenizer.hasMoreElements()) {
-										// not a leaf, create a composite statenode
-										String nodeName = current;
-										if(current.equals("particle"))
-										{
-											nodeName = current + "[" + particleID + "]";
-										}
-										
-										CompositeStateNode newNode = new CompositeStateNode(nodeName);
-										
-										boolean addNewNode = containsNode(node, newNode.getName());
-										
-										if(addNewNode){
-											node.addChild(newNode);
-											node = newNode;
-										}
-										else{
-											node = getNode(node, newNode.getName());
-										}
-									} else {
-										// it's a leaf node
-										SimpleStateNode newNode = new SimpleStateNode(current);
-
-										FloatValue val = null;
-
-										// get value
-										switch (current) {
-										case "x":
-											val = ValuesFactory.getFloatValue(_positionPtr.get(ID));
-											break;
-										case "y":
-											val = ValuesFactory.getFloatValue(_positionPtr.get(ID + 1));
-											break;
-										case "z":
-											val = ValuesFactory.getFloatValue(_positionPtr.get(ID + 2));
-											break;
-										}
-
-										newNode.addValue(val);
-
-										node.addChild(newNode);
-									}
-								}
-							}
-						}
-					}
-				}
-			}
-		} else {
-			// watch tree not empty populate new values
-			UpdateSPHWatchTreeVisitor visitor = new UpdateSPHWatchTreeVisitor(_positionPtr, _positionPtr, this.watchListVarNames);
-			watchTree.apply(visitor);
+		if (_watchTable == null) {
+			_watchTable = compileWatchTable();
+		}
+		if (_watchTable.getWatchTree() != watchTree) {
+			_watchTable.bind(watchTree);
 		}
 
-		// unmap watchable buffers
-		_velocity.unmap(_queue, _positionPtr);
-	}
+		// map only the buffers watched variables read from
+		FloatBuffer positions = null;
+		FloatBuffer velocities = null;
+		if (_watchTable.isWatching(BuffersEnum.POSITION)) {
+			_positionPtr = _position.map(_queue, CLMem.MapFlags.Read);
+			positions = _positionPtr.getFloatBuffer();
+		}
+		if (_watchTable.isWatching(BuffersEnum.VELOCITY)) {
+			_velocityPtr = _velocity.map(_queue, CLMem.MapFlags.Read);
+			velocities = _velocityPtr.getFloatBuffer();
+		}
 
-	private boolean containsNode(CompositeStateNode node, String name){
-		List<AStateNode> children = node.getChildren();
-		
-		boolean addNewNode = true;
-		for(AStateNode child : children){
-			if(child.getName().equals(name)){
-				addNewNode = false;
-				return addNewNode;
-			}
-			if(child instanceof CompositeStateNode){
-				if(((CompositeStateNode)child).getChildren() != null){
-					addNewNode = containsNode((CompositeStateNode) child, name);
-				}
-			}
+		_watchTable.update(positions, velocities);
 
+		if (positions != null) {
+			_position.unmap(_queue, _positionPtr);
+		}
+		if (velocities != null) {
+			_velocity.unmap(_queue, _velocityPtr);
 		}
-		
-		return addNewNode;
 	}
-	
-	private CompositeStateNode getNode(CompositeStateNode node, String name){
-		CompositeStateNode newNode = null;
-		
-		List<AStateNode> children = node.getChildren();
-		
-		boolean addNewNode = true;
-		for(AStateNode child : children){
-			if(child.getName().equals(name)){
-				newNode = (CompositeStateNode) child;
-				return newNode;
-			}
-			if(child instanceof CompositeStateNode){
-				if(((CompositeStateNode)child).getChildren() != null){
-					newNode = getNode((CompositeStateNode) child, name);
-				}
-			}
 
+	/*
+	 * Parses the watch list against the watchable variables of the current
+	 * scene, done once per watch list and scene rather than every step
+	 */
+	private SPHWatchTable compileWatchTable() {
+		List<String> watchablePaths = new ArrayList<String>();
+		for (AVariable var : getWatchableVariables().getVariables()) {
+			VariablePathSerializer.GetFullVariablePath(var, "", watchablePaths);
 		}
-		
-		return newNode;
+		return new SPHWatchTable(watchListVarNames, watchablePaths,
+				_particleCount, _historyLength);
 	}
-	
+
 	@Override
 	public StateTreeRoot initialize(IModel model) throws GeppettoInitializationException {
-		_model = (SPHModelX) model;
-		setBuffersFromModel();
+		checkOwner();
+		// binary scenes are used as they are, object models get flattened
+		if (model instanceof SPHScene) {
+			_scene = (SPHScene) model;
+		} else {
+			_scene = SPHScene.fromModel((SPHModelX) model);
+		}
+
+		try {
+			selectProgram();
+		} catch (IOException e) {
+			throw new GeppettoInitializationException(
+					"SPHSolverService:initialize - could not build program: "
+							+ e.getMessage());
+		}
 
-		_stateTree = new StateTreeRoot(_model.getId());
-		updateStateTree();
+		setBuffersFromScene();
+
+		_stateTree = new StateTreeRoot(_scene.getId());
+		readFrame();
+		if (_stateTreeEnabled) {
+			updateStateTree();
+		}
 
 		setWatchableVariables();
 		setForceableVariables();
+		if (!watchListVarNames.isEmpty()) {
+			_watchTable = compileWatchTable();
+		}
 
 		return _stateTree;
 	}
 
+	/**
+	 * Initializes from a binary scene file or an SPHModel XML file, neither
+	 * of them going through the SPHModel object graph.
+	 */
+	public StateTreeRoot initialize(URL scene)
+			throws GeppettoInitializationException {
+		try {
+			return initialize(SPHSceneFile.load(scene));
+		} catch (IOException e) {
+			throw new GeppettoInitializationException(
+					"SPHSolverService:initialize - could not load scene: "
+							+ e.getMessage());
+		}
+	}
+
 	@Override
 	public void dispose() {
+		// pooled solvers go back to their pool with queue, kernels and
+		// buffers still allocated
+		if (_pool != null) {
+			if (!checkIn()) {
+				logger.warn("SPH solver disposed twice or by a thread that did not acquire it, ignoring");
+				return;
+			}
+			reset();
+			_pool.release(this);
+			return;
+		}
+
 		// close the context and "buonanotte al secchio" (good night to the
 		// bucket)
 		cleanContext();
 	}
 
-	private void setActivationSignal(float[] activation) {
-		// put results back
-		_activationSignalPtr = _activationSignal.map(_queue,
-				CLMem.MapFlags.Write);
-		_activationSignalPtr.setFloats(activation);
-		_activationSignal.unmap(_queue, _activationSignalPtr);
+	/*
+	 * Forgets the current simulation, keeping device resources for the next
+	 * one
+	 */
+	void reset() {
+		// settings go back to their defaults, the next session must not
+		// inherit time step, constants or buffer layout of this one
+		_timeStep = SPHConstants.TIME_STEP;
+		_elasticSubsteps = 1;
+		_recordCheckPoints = false;
+		if (_bufferAllocation != getDefaultBufferAllocation(_device)) {
+			int particleCapacity = _particleCapacity;
+			int gridCellCapacity = _gridCellCapacity;
+			setBufferAllocation(getDefaultBufferAllocation(_device));
+			if (particleCapacity > 0) {
+				reserve(particleCapacity, gridCellCapacity);
+			}
+		}
+		if (_staticConstants) {
+			_staticConstants = false;
+			try {
+				selectProgram();
+			} catch (IOException e) {
+				// initialize selects the program again
+				logger.warn("could not restore default program", e);
+			}
+		}
+
+		stopTrajectory();
+		_publisher.clear();
+		_latestFrame.clear();
+		_stateTree = null;
+		_scene = null;
+		_frame = null;
+		_stateTreeEnabled = true;
+		_historyLength = 0;
+		_historySpill = false;
+		_history = null;
+		_quantizedHistoryEnabled = false;
+		_quantizedHistory = null;
+		_outputSelection = SPHParticleSelection.moving();
+		setFullReadback();
+		_deltaEpsilon = 0;
+		_keyframeInterval = 0;
+		_checkpointsMap.clear();
+		watchListVarNames.clear();
+		_watchTable = null;
+		watching = false;
+		if (_activationQueue != null) {
+			_activationQueue.clear();
+		}
+	}
+
+	void setPool(SPHSolverPool pool) {
+		_pool = pool;
+	}
+
+	/*
+	 * Marks a pooled solver as checked out by the current thread, false if
+	 * it already is checked out
+	 */
+	boolean checkOut() {
+		return _owner.compareAndSet(null, Thread.currentThread());
+	}
+
+	private boolean checkIn() {
+		return _owner.compareAndSet(Thread.currentThread(), null);
+	}
+
+	/*
+	 * Pooled solvers can only be used by the thread that acquired them, and
+	 * only until they are disposed
+	 */
+	private void checkOwner() {
+		if (_pool != null && _owner.get() != Thread.currentThread()) {
+			throw new IllegalStateException(
+					"SPHSolverService - pooled solver used by a thread that did not acquire it");
+		}
+	}
+
+	/**
+	 * Queues a muscle activation frame (one value per elastic bundle) to be
+	 * applied from the next step on. Never blocks, returns false if the queue
+	 * is full or the model has nothing to contract.
+	 */
+	public boolean pushActivationSignal(float[] activation) {
+		if (_activationQueue == null) {
+			return false;
+		}
+		return _activationQueue.offer(activation);
+	}
+
+	/**
+	 * Queue that upstream simulators can feed directly, null if the model has
+	 * no elastic particles. The same queue is kept across initializations
+	 * with the same number of muscles (emptied of the frames queued so far),
+	 * callers have to fetch it again after initializing a model with a
+	 * different number of muscles.
+	 */
+	public ActivationSignalQueue getActivationSignalQueue() {
+		return _activationQueue;
+	}
+
+	private void uploadActivationSignal() {
+		if (!_activationQueue.poll(_activationFrame)) {
+			// nothing new, keep contracting with the last frame
+			return;
+		}
+
+		// the frame written two steps ago is done transferring since every
+		// step ends with a queue finish
+		Pointer<Float> upload = _activationSignalUploadPtr;
+		_activationSignalUploadPtr = _activationSignalPtr;
+		_activationSignalPtr = upload;
+
+		upload.setFloats(_activationFrame);
+		// non blocking, the in-order queue makes sure the transfer is done
+		// before pcisph_computeElasticForces reads the buffer
+		_activationSignal.write(_queue, upload, false);
 	}
 
 	private void recordCheckpoints(KernelsEnum kernelCheckpoint) {
@@ -1281,12 +2415,23 @@ public class SPHSolverService implements ISolver {
 		check.sortedVelocity = this.<Float> getBufferValues(_sortedVelocityPtr,
 				_sortedVelocity,
 				this._buffersSizeMap.get(BuffersEnum.SORTED_VELOCITY));
+		check.sortedTypeNormal = this.<Float> getBufferValues(
+				_sortedTypeNormalPtr, _sortedTypeNormal,
+				this._buffersSizeMap.get(BuffersEnum.SORTED_TYPE_NORMAL));
 		check.velocity = this.<Float> getBufferValues(_velocityPtr, _velocity,
 				this._buffersSizeMap.get(BuffersEnum.VELOCITY));
 		if (_numOfElasticP > 0) {
-			check.elasticConnections = this.<Float> getBufferValues(
-					_elasticConnectionsDataPtr, _elasticConnectionsData,
+			check.elasticConnectionsOffsets = this.<Integer> getBufferValues(
+					_elasticConnectionsOffsetsPtr, _elasticConnectionsOffsets,
+					this._buffersSizeMap
+							.get(BuffersEnum.ELASTIC_CONNECTIONS_OFFSETS));
+			check.elasticConnections = this.<Integer> getBufferValues(
+					_elasticConnectionsPtr, _elasticConnections,
 					this._buffersSizeMap.get(BuffersEnum.ELASTIC_CONNECTIONS));
+			check.elasticConnectionsRestLength = this.<Float> getBufferValues(
+					_elasticConnectionsRestLengthPtr,
+					_elasticConnectionsRestLength, this._buffersSizeMap
+							.get(BuffersEnum.ELASTIC_CONNECTIONS_REST_LENGTH));
 		}
 
 		_checkpointsMap.put(kernelCheckpoint, check);
@@ -1394,22 +2539,30 @@ public class SPHSolverService implements ISolver {
 
 	@Override
 	public void addWatchVariables(List<String> variableNames) {
+		checkOwner();
 		watchListVarNames.addAll(variableNames);
+		// before the first initialization there is nothing to resolve
+		// against yet, the table is then compiled on the first watched step
+		_watchTable = _scene != null ? compileWatchTable() : null;
 	}
 
 	@Override
 	public void startWatch() {
+		checkOwner();
 		watching = true;
 	}
 
 	@Override
 	public void stopWatch() {
+		checkOwner();
 		watching = false;
 	}
 
 	@Override
 	public void clearWatchVariables() {
+		checkOwner();
 		watchListVarNames.clear();
+		_watchTable = null;
 	}
 
 };
\ No newline at end of file
@@ -0,0 +1,171 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011, 2013 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+
+package org.geppetto.solver.sph;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.geppetto.core.model.state.AStateNode;
+import org.geppetto.core.model.state.CompositeStateNode;
+import org.geppetto.core.model.state.SimpleStateNode;
+import org.geppetto.core.model.values.AValue;
+import org.geppetto.core.model.values.ValuesFactory;
+
+/**
+ * Appends frames to the particle nodes of a model tree.
+ *
+ * The x, y, z and p leaves of the tree are resolved once into flat arrays
+ * of nodes and frame offsets, every update is then a loop over those arrays.
+ * Updates with more than PARALLEL_THRESHOLD leaves are split across cores.
+ * With a maximum number of values set each leaf keeps between that many and
+ * twice that many values, the oldest ones are dropped in one batch once the
+ * leaf is full so that trimming costs a constant per appended value.
+ */
+public class SPHStateTreeUpdater {
+
+	// leaves per fork/join task
+	static final int PARALLEL_THRESHOLD = 8192;
+
+	private static final String[] COORDINATES = { "x", "y", "z", "p" };
+
+	// shared by all the updaters, one worker per core
+	private static final ForkJoinPool _forkJoinPool = new ForkJoinPool();
+
+	private final CompositeStateNode _modelTree;
+	private final SimpleStateNode[] _nodes;
+	private final int[] _offsets;
+	private final int _maxValues;
+
+	/**
+	 * @param slots
+	 *            frame slot of every particle of the scene
+	 * @param maxValues
+	 *            values kept by each leaf, up to twice as many between
+	 *            trims, 0 for no limit
+	 */
+	public SPHStateTreeUpdater(CompositeStateNode modelTree, int[] slots,
+			int maxValues) {
+		_modelTree = modelTree;
+		_maxValues = maxValues;
+
+		List<SimpleStateNode> nodes = new ArrayList<SimpleStateNode>();
+		List<Integer> offsets = new ArrayList<Integer>();
+		for (AStateNode particle : modelTree.getChildren()) {
+			if (!particle.isArray()) {
+				continue;
+			}
+			int slot = slots[particle.getIndex()];
+			for (AStateNode pos : ((CompositeStateNode) particle).getChildren()) {
+				if (!(pos instanceof CompositeStateNode)) {
+					continue;
+				}
+				for (AStateNode leaf : ((CompositeStateNode) pos).getChildren()) {
+					for (int c = 0; c < COORDINATES.length; c++) {
+						if (COORDINATES[c].equals(leaf.getName())) {
+							nodes.add((SimpleStateNode) leaf);
+							offsets.add(slot * SPHFrame.POSITION_SIZE + c);
+						}
+					}
+				}
+			}
+		}
+
+		_nodes = nodes.toArray(new SimpleStateNode[nodes.size()]);
+		_offsets = new int[offsets.size()];
+		for (int i = 0; i < _offsets.length; i++) {
+			_offsets[i] = offsets.get(i);
+		}
+	}
+
+	public CompositeStateNode getModelTree() {
+		return _modelTree;
+	}
+
+	public void update(SPHFrame frame) {
+		float[] positions = frame.getPositions();
+		if (_nodes.length <= PARALLEL_THRESHOLD) {
+			update(positions, 0, _nodes.length);
+		} else {
+			_forkJoinPool.invoke(
+					new UpdateTask(positions, 0, _nodes.length));
+		}
+	}
+
+	private void update(float[] positions, int from, int to) {
+		for (int i = from; i < to; i++) {
+			_nodes[i].addValue(ValuesFactory.getFloatValue(positions[_offsets[i]]));
+			if (_maxValues > 0) {
+				trim(_nodes[i].getValues(), _maxValues);
+			}
+		}
+	}
+
+	/**
+	 * Keeps the last maxValues values once the list has twice as many.
+	 */
+	static void trim(List<AValue> values, int maxValues) {
+		int size = values.size();
+		if (size >= 2 * maxValues) {
+			values.subList(0, size - maxValues).clear();
+		}
+	}
+
+	private class UpdateTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final float[] _positions;
+		private final int _from;
+		private final int _to;
+
+		UpdateTask(float[] positions, int from, int to) {
+			_positions = positions;
+			_from = from;
+			_to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (_to - _from <= PARALLEL_THRESHOLD) {
+				update(_positions, _from, _to);
+			} else {
+				int middle = (_from + _to) >>> 1;
+				invokeAll(new UpdateTask(_positions, _from, middle),
+						new UpdateTask(_positions, middle, _to));
+			}
+		}
+	}
+}
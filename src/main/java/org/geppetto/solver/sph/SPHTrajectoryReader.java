@@ -0,0 +1,215 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011, 2013 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+
+package org.geppetto.solver.sph;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Random access to the frames of a trajectory file written by
+ * SPHTrajectoryWriter.
+ *
+ * Only the region holding the requested frame or particle range is memory
+ * mapped, so files much larger than the heap can be replayed or analysed.
+ * Files whose writer was never closed have no frame index, their whole
+ * frames are found from the frame size instead.
+ */
+public class SPHTrajectoryReader implements Closeable {
+
+	private final RandomAccessFile _file;
+	private final FileChannel _channel;
+	private final int _particleCount;
+	private final boolean _velocities;
+	private final int _frameCount;
+	private final int[] _particleIds;
+	private final long _framesOffset;
+	private final int _frameBytes;
+	// null when the file has no index
+	private final long[] _index;
+
+	public SPHTrajectoryReader(File file) throws IOException {
+		_file = new RandomAccessFile(file, "r");
+		_channel = _file.getChannel();
+		try {
+			if (_channel.size() < SPHTrajectoryWriter.HEADER_SIZE) {
+				throw new IOException(file + " is not an SPH trajectory file");
+			}
+			ByteBuffer header = map(0, SPHTrajectoryWriter.HEADER_SIZE);
+			if (header.getInt(0) != SPHTrajectoryWriter.MAGIC) {
+				throw new IOException(file + " is not an SPH trajectory file");
+			}
+			if (header.getInt(4) != SPHTrajectoryWriter.VERSION) {
+				throw new IOException(file + " has unsupported version "
+						+ header.getInt(4));
+			}
+			_particleCount = header.getInt(8);
+			_velocities = (header.getInt(12) & SPHTrajectoryWriter.FLAG_VELOCITIES) != 0;
+			long frameBytes = SPHTrajectoryWriter.getFrameBytes(
+					_particleCount, _velocities);
+			if (_particleCount < 0
+					|| frameBytes > SPHTrajectoryWriter.MAX_FRAME_BYTES) {
+				throw new IOException(file + " has an invalid particle count "
+						+ _particleCount);
+			}
+			_frameBytes = (int) frameBytes;
+			long frameCount = header.getLong(16);
+			long indexOffset = header.getLong(24);
+
+			_particleIds = new int[_particleCount];
+			map(SPHTrajectoryWriter.HEADER_SIZE, _particleCount * 4L)
+					.asIntBuffer().get(_particleIds);
+			_framesOffset = SPHTrajectoryWriter.HEADER_SIZE + _particleCount * 4L;
+
+			if (indexOffset == 0) {
+				// not closed, frames are contiguous and a partly written
+				// last one is left out
+				_frameCount = (int) ((_channel.size() - _framesOffset) / _frameBytes);
+				_index = null;
+			} else {
+				_frameCount = (int) frameCount;
+				_index = new long[_frameCount];
+				map(indexOffset, _frameCount * 8L).asLongBuffer().get(_index);
+			}
+		} catch (IOException e) {
+			_file.close();
+			throw e;
+		}
+	}
+
+	public int getFrameCount() {
+		return _frameCount;
+	}
+
+	public int getParticleCount() {
+		return _particleCount;
+	}
+
+	public boolean hasVelocities() {
+		return _velocities;
+	}
+
+	public int[] getParticleIds() {
+		return _particleIds;
+	}
+
+	public long getStep(int frame) throws IOException {
+		return map(getOffset(frame), 8).getLong(0);
+	}
+
+	/**
+	 * The whole frame, velocities included when the file has them.
+	 */
+	public SPHFrame getFrame(int frame) throws IOException {
+		long offset = getOffset(frame);
+		int size = _particleCount * SPHFrame.POSITION_SIZE;
+		ByteBuffer buffer = map(offset, _frameBytes);
+
+		long step = buffer.getLong(0);
+		float[] positions = new float[size];
+		buffer.position(8);
+		buffer.asFloatBuffer().get(positions);
+		float[] velocities = null;
+		if (_velocities) {
+			velocities = new float[size];
+			buffer.position(8 + size * 4);
+			buffer.asFloatBuffer().get(velocities);
+		}
+		return new SPHFrame(step, positions, velocities, _particleIds);
+	}
+
+	/**
+	 * Positions of count particles from the given frame slot on, four floats
+	 * each.
+	 */
+	public float[] getPositions(int frame, int from, int count)
+			throws IOException {
+		checkRange(from, count);
+		float[] positions = new float[count * SPHFrame.POSITION_SIZE];
+		map(getOffset(frame) + 8 + from * SPHFrame.POSITION_SIZE * 4L,
+				positions.length * 4L).asFloatBuffer().get(positions);
+		return positions;
+	}
+
+	/**
+	 * Velocities of count particles from the given frame slot on, four
+	 * floats each.
+	 */
+	public float[] getVelocities(int frame, int from, int count)
+			throws IOException {
+		if (!_velocities) {
+			throw new IllegalStateException(
+					"SPHTrajectoryReader - file has no velocities");
+		}
+		checkRange(from, count);
+		float[] velocities = new float[count * SPHFrame.POSITION_SIZE];
+		long offset = getOffset(frame) + 8 + (_particleCount + from)
+				* SPHFrame.POSITION_SIZE * 4L;
+		map(offset, velocities.length * 4L).asFloatBuffer().get(velocities);
+		return velocities;
+	}
+
+	@Override
+	public void close() throws IOException {
+		_file.close();
+	}
+
+	private long getOffset(int frame) {
+		if (frame < 0 || frame >= _frameCount) {
+			throw new IndexOutOfBoundsException("SPHTrajectoryReader - frame "
+					+ frame + " of " + _frameCount);
+		}
+		if (_index == null) {
+			return _framesOffset + frame * (long) _frameBytes;
+		}
+		return _index[frame];
+	}
+
+	private void checkRange(int from, int count) {
+		if (from < 0 || count < 0 || from + count > _particleCount) {
+			throw new IndexOutOfBoundsException(
+					"SPHTrajectoryReader - particles " + from + " to "
+							+ (from + count) + " of " + _particleCount);
+		}
+	}
+
+	private ByteBuffer map(long offset, long size) throws IOException {
+		return _channel.map(FileChannel.MapMode.READ_ONLY, offset, size)
+				.order(ByteOrder.LITTLE_ENDIAN);
+	}
+}
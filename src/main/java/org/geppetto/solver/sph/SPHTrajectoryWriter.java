@@ -0,0 +1,286 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011, 2013 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+
+package org.geppetto.solver.sph;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Streams the frames of a run to a trajectory file.
+ *
+ * Frames are handed over to a writer thread, so the step thread only waits
+ * when the writer falls more than QUEUE_CAPACITY frames behind. The writer
+ * gathers up to CHUNK_BYTES of frames (at least one frame) and appends them
+ * with a single FileChannel write. The frame index and the header are written on close,
+ * SPHTrajectoryReader still reads the frames flushed before a crash from a
+ * file that was never closed.
+ *
+ * Layout, little endian: a 64 bytes header (magic, version, particle count,
+ * flags, frame count, index offset, reserved), the particle ids, the frames
+ * (step, then x, y, z, type and, with velocities, vx, vy, vz, w of every
+ * particle) and the index holding the offset of every frame.
+ * SPHTrajectoryReader reads them back. Frames are mapped as a single
+ * ByteBuffer, so a frame is at most MAX_FRAME_BYTES long.
+ */
+public class SPHTrajectoryWriter implements Closeable {
+
+	private static Log logger = LogFactory.getLog(SPHTrajectoryWriter.class);
+
+	public static final int MAGIC = 0x54485053; // "SPHT"
+	public static final int VERSION = 1;
+	public static final int HEADER_SIZE = 64;
+	public static final int FLAG_VELOCITIES = 1;
+
+	static final int CHUNK_BYTES = 8 * 1024 * 1024;
+	static final long MAX_FRAME_BYTES = Integer.MAX_VALUE;
+	static final int QUEUE_CAPACITY = 64;
+
+	// queued by close() to stop the writer thread
+	private static final SPHFrame END = new SPHFrame(-1, null, null);
+
+	private final FileChannel _channel;
+	private final int _particleCount;
+	private final boolean _velocities;
+	private final int _frameBytes;
+	private final BlockingQueue<SPHFrame> _queue = new ArrayBlockingQueue<SPHFrame>(
+			QUEUE_CAPACITY);
+	private final Thread _thread;
+
+	// owned by the writer thread until it ends
+	private final ByteBuffer _chunk;
+	private long _position;
+	private long[] _index = new long[1024];
+	private int _frameCount = 0;
+
+	private volatile IOException _failure;
+	private boolean _closed = false;
+
+	public SPHTrajectoryWriter(File file, int[] particleIds, boolean velocities)
+			throws IOException {
+		_particleCount = particleIds.length;
+		_velocities = velocities;
+		long frameBytes = getFrameBytes(_particleCount, velocities);
+		if (frameBytes > MAX_FRAME_BYTES) {
+			throw new IllegalArgumentException("SPHTrajectoryWriter - "
+					+ _particleCount + " particles exceed the frame size limit");
+		}
+		_frameBytes = (int) frameBytes;
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(0);
+		_channel = raf.getChannel();
+
+		ByteBuffer ids = ByteBuffer.allocate(particleIds.length * 4).order(
+				ByteOrder.LITTLE_ENDIAN);
+		ids.asIntBuffer().put(particleIds);
+		writeFully(ids, HEADER_SIZE);
+		_position = HEADER_SIZE + ids.capacity();
+		writeHeader(0, 0);
+
+		int chunkFrames = Math.max(1, CHUNK_BYTES / _frameBytes);
+		_chunk = ByteBuffer.allocateDirect(chunkFrames * _frameBytes).order(
+				ByteOrder.LITTLE_ENDIAN);
+
+		_thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeFrames();
+			}
+		}, "SPH trajectory writer " + file.getName());
+		_thread.setDaemon(true);
+		_thread.start();
+	}
+
+	static long getFrameBytes(int particleCount, boolean velocities) {
+		return 8 + (long) particleCount * SPHFrame.POSITION_SIZE * 4
+				* (velocities ? 2 : 1);
+	}
+
+	/**
+	 * Queues a frame, blocks only if the writer is QUEUE_CAPACITY frames
+	 * behind. Throws if an earlier write failed.
+	 */
+	public void append(SPHFrame frame) throws IOException {
+		checkFailure();
+		if (_closed) {
+			throw new IOException("SPHTrajectoryWriter - writer is closed");
+		}
+		if (frame.getParticleCount() != _particleCount
+				|| (_velocities && frame.getVelocities() == null)) {
+			throw new IllegalArgumentException(
+					"SPHTrajectoryWriter - frame does not match the trajectory");
+		}
+		put(frame);
+	}
+
+	/**
+	 * Writes the frames still queued, the index and the header.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (_closed) {
+			return;
+		}
+		_closed = true;
+		put(END);
+		try {
+			_thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		try {
+			checkFailure();
+			ByteBuffer index = ByteBuffer.allocate(_frameCount * 8).order(
+					ByteOrder.LITTLE_ENDIAN);
+			index.asLongBuffer().put(_index, 0, _frameCount);
+			writeFully(index, _position);
+			writeHeader(_frameCount, _position);
+			_channel.force(false);
+		} finally {
+			_channel.close();
+		}
+	}
+
+	public int getFrameCount() {
+		return _frameCount;
+	}
+
+	private void put(SPHFrame frame) throws IOException {
+		try {
+			_queue.put(frame);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("SPHTrajectoryWriter - interrupted");
+		}
+	}
+
+	private void writeFrames() {
+		try {
+			while (true) {
+				SPHFrame frame = _queue.take();
+				if (frame == END) {
+					break;
+				}
+				addToChunk(frame);
+				// write as soon as the chunk is full or the producer is
+				// idle, so that a crash loses as little as possible
+				if (!_chunk.hasRemaining() || _queue.isEmpty()) {
+					flushChunk();
+				}
+			}
+			flushChunk();
+		} catch (IOException e) {
+			logger.error("SPHTrajectoryWriter - write failed", e);
+			_failure = e;
+			// keep draining so that producers never block on a dead writer
+			drain();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void addToChunk(SPHFrame frame) {
+		if (_frameCount == _index.length) {
+			_index = Arrays.copyOf(_index, _index.length * 2);
+		}
+		_index[_frameCount++] = _position + _chunk.position();
+
+		_chunk.putLong(frame.getStep());
+		_chunk.asFloatBuffer().put(frame.getPositions());
+		_chunk.position(_chunk.position() + frame.getPositions().length * 4);
+		if (_velocities) {
+			_chunk.asFloatBuffer().put(frame.getVelocities());
+			_chunk.position(_chunk.position() + frame.getVelocities().length
+					* 4);
+		}
+	}
+
+	private void flushChunk() throws IOException {
+		_chunk.flip();
+		int bytes = _chunk.remaining();
+		writeFully(_chunk, _position);
+		_position += bytes;
+		_chunk.clear();
+	}
+
+	private void drain() {
+		try {
+			while (_queue.take() != END) {
+				// dropped
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void writeHeader(int frameCount, long indexOffset)
+			throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(
+				ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC);
+		header.putInt(VERSION);
+		header.putInt(_particleCount);
+		header.putInt(_velocities ? FLAG_VELOCITIES : 0);
+		header.putLong(frameCount);
+		header.putLong(indexOffset);
+		header.clear();
+		writeFully(header, 0);
+	}
+
+	private void writeFully(ByteBuffer buffer, long position)
+			throws IOException {
+		while (buffer.hasRemaining()) {
+			position += _channel.write(buffer, position);
+		}
+	}
+
+	private void checkFailure() throws IOException {
+		if (_failure != null) {
+			throw new IOException("SPHTrajectoryWriter - write failed",
+					_failure);
+		}
+	}
+}
@@ -0,0 +1,267 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011, 2013 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+
+
+package org.geppetto.solver.sph;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.geppetto.core.model.state.AStateNode;
+import org.geppetto.core.model.state.CompositeStateNode;
+import org.geppetto.core.model.state.SimpleStateNode;
+import org.geppetto.core.model.values.ValuesFactory;
+
+/**
+ * Watch list of a solver resolved into a table of particle, buffer,
+ * component and watch tree leaf.
+ *
+ * Watched variables are names like particle[3].position.x. They are parsed
+ * once, when the table is compiled, and bound once to the leaves of a watch
+ * tree, which is built by path lookup. Every update is then a loop over
+ * flat arrays. Names that are not watchable variables of the solver are
+ * left out, so are names without a particle index.
+ */
+public class SPHWatchTable {
+
+	private static final String[] COMPONENTS = { "x", "y", "z" };
+
+	private final String[] _names;
+	private final int[] _particleIds;
+	private final BuffersEnum[] _buffers;
+	private final int[] _components;
+	private final int[] _offsets;
+	private final int _maxValues;
+
+	private CompositeStateNode _watchTree;
+	private SimpleStateNode[] _nodes;
+
+	/**
+	 * @param watchablePaths
+	 *            watchable variable paths, without array indices
+	 * @param maxValues
+	 *            values kept by each leaf, up to twice as many between
+	 *            trims, 0 for no limit
+	 */
+	public SPHWatchTable(List<String> watchNames,
+			Collection<String> watchablePaths, int particleCount, int maxValues) {
+		_maxValues = maxValues;
+
+		Set<String> watchable = new HashSet<String>(watchablePaths);
+		Set<String> seen = new HashSet<String>();
+		List<String> names = new ArrayList<String>();
+		List<int[]> entries = new ArrayList<int[]>();
+		List<BuffersEnum> buffers = new ArrayList<BuffersEnum>();
+		for (String name : watchNames) {
+			int open = name.indexOf('[');
+			int close = name.indexOf(']', open + 1);
+			if (open == -1 || close == -1 || !seen.add(name)) {
+				continue;
+			}
+			String path = name.substring(0, open) + name.substring(close + 1);
+			if (!watchable.contains(path)) {
+				continue;
+			}
+
+			int particleId;
+			try {
+				particleId = Integer.parseInt(name.substring(open + 1, close));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("SPHWatchTable - " + name
+						+ " has no valid particle index");
+			}
+			if (particleId < 0 || particleId >= particleCount) {
+				throw new IllegalArgumentException("SPHWatchTable - particle index of "
+						+ name + " is out of boundaries");
+			}
+
+			String[] tokens = path.split("\\.");
+			if (tokens.length < 2) {
+				continue;
+			}
+			int component = getComponent(tokens[tokens.length - 1]);
+			BuffersEnum buffer = getBuffer(tokens[tokens.length - 2]);
+			if (component == -1 || buffer == null) {
+				continue;
+			}
+
+			names.add(name);
+			entries.add(new int[] { particleId, component });
+			buffers.add(buffer);
+		}
+
+		int size = names.size();
+		_names = names.toArray(new String[size]);
+		_buffers = buffers.toArray(new BuffersEnum[size]);
+		_particleIds = new int[size];
+		_components = new int[size];
+		_offsets = new int[size];
+		for (int i = 0; i < size; i++) {
+			_particleIds[i] = entries.get(i)[0];
+			_components[i] = entries.get(i)[1];
+			_offsets[i] = _particleIds[i] * SPHFrame.POSITION_SIZE
+					+ _components[i];
+		}
+	}
+
+	private static int getComponent(String name) {
+		for (int c = 0; c < COMPONENTS.length; c++) {
+			if (COMPONENTS[c].equals(name)) {
+				return c;
+			}
+		}
+		return -1;
+	}
+
+	private static BuffersEnum getBuffer(String name) {
+		if (name.equals("position")) {
+			return BuffersEnum.POSITION;
+		} else if (name.equals("velocity")) {
+			return BuffersEnum.VELOCITY;
+		}
+		return null;
+	}
+
+	public int size() {
+		return _names.length;
+	}
+
+	public int getParticleId(int entry) {
+		return _particleIds[entry];
+	}
+
+	public BuffersEnum getBuffer(int entry) {
+		return _buffers[entry];
+	}
+
+	public int getComponent(int entry) {
+		return _components[entry];
+	}
+
+	/**
+	 * Leaf of the watch tree the table is bound to, null if not bound.
+	 */
+	public SimpleStateNode getNode(int entry) {
+		return _nodes == null ? null : _nodes[entry];
+	}
+
+	/**
+	 * True if any entry reads from the given buffer.
+	 */
+	public boolean isWatching(BuffersEnum buffer) {
+		for (BuffersEnum b : _buffers) {
+			if (b == buffer) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public CompositeStateNode getWatchTree() {
+		return _watchTree;
+	}
+
+	/**
+	 * Resolves the leaf of every entry in the watch tree, adding the nodes
+	 * that are missing. Nodes already in the tree are reused.
+	 */
+	public void bind(CompositeStateNode watchTree) {
+		Map<String, AStateNode> nodes = new HashMap<String, AStateNode>();
+		index(watchTree, "", nodes);
+
+		_nodes = new SimpleStateNode[_names.length];
+		for (int i = 0; i < _names.length; i++) {
+			_nodes[i] = getLeaf(watchTree, _names[i], nodes);
+		}
+		_watchTree = watchTree;
+	}
+
+	private static void index(CompositeStateNode node, String prefix,
+			Map<String, AStateNode> nodes) {
+		for (AStateNode child : node.getChildren()) {
+			String path = prefix + child.getName();
+			nodes.put(path, child);
+			if (child instanceof CompositeStateNode) {
+				index((CompositeStateNode) child, path + ".", nodes);
+			}
+		}
+	}
+
+	private static SimpleStateNode getLeaf(CompositeStateNode watchTree,
+			String name, Map<String, AStateNode> nodes) {
+		CompositeStateNode parent = watchTree;
+		int start = 0;
+		int dot;
+		while ((dot = name.indexOf('.', start)) != -1) {
+			String path = name.substring(0, dot);
+			AStateNode node = nodes.get(path);
+			if (node == null) {
+				node = new CompositeStateNode(name.substring(start, dot));
+				parent.addChild(node);
+				nodes.put(path, node);
+			}
+			parent = (CompositeStateNode) node;
+			start = dot + 1;
+		}
+
+		AStateNode leaf = nodes.get(name);
+		if (leaf == null) {
+			leaf = new SimpleStateNode(name.substring(start));
+			parent.addChild(leaf);
+			nodes.put(name, leaf);
+		}
+		return (SimpleStateNode) leaf;
+	}
+
+	/**
+	 * Appends the current value of every entry to its leaf. Buffers hold four
+	 * floats per particle, either may be null if no entry reads from it.
+	 */
+	public void update(FloatBuffer positions, FloatBuffer velocities) {
+		for (int i = 0; i < _nodes.length; i++) {
+			FloatBuffer source = _buffers[i] == BuffersEnum.VELOCITY ? velocities
+					: positions;
+			_nodes[i].addValue(ValuesFactory.getFloatValue(source
+					.get(_offsets[i])));
+			if (_maxValues > 0) {
+				SPHStateTreeUpdater.trim(_nodes[i].getValues(), _maxValues);
+			}
+		}
+	}
+}
@@ -52,16 +52,38 @@
 #define NEIGHBOR_MAP_ID( nm ) nm.x
 #define NEIGHBOR_MAP_DISTANCE( nm ) nm.y
 
+#define PARTICLE_TYPE( tn ) (int)( tn.w )
+
 #define DIVIDE( a, b ) native_divide( a, b )
 #define SQRT( x ) native_sqrt( x )
 #define DOT( a, b ) dot( a, b )
 
+// When the program is built with SPH_STATIC_CONSTANTS the simulation constants
+// are passed as build defines and override the matching kernel arguments, so
+// the compiler can fold them into the neighbor loops. Without the define the
+// values come from the kernel arguments and can be changed at runtime.
+#ifdef SPH_STATIC_CONSTANTS
+#define STATIC_CONSTANT( arg, value ) arg = ( value )
+#else
+#define STATIC_CONSTANT( arg, value )
+#endif
+
 #if 1
 #define SELECT( A, B, C ) select( A, B, (C) * 0xffffffff )
 #else
 #define SELECT( A, B, C ) C ? B : A
 #endif
 
+// Delta readback counts its records with a global atomic, which is core in
+// OpenCL 1.1 and an extension in 1.0. Without either compactMovedParticles is
+// left out and the rest of the program still builds on OpenCL 1.0 devices.
+#if defined( cl_khr_global_int32_base_atomics )
+#pragma OPENCL EXTENSION cl_khr_global_int32_base_atomics : enable
+#define SPH_DELTA_READBACK
+#elif __OPENCL_VERSION__ >= 110
+#define SPH_DELTA_READBACK
+#endif
+
 //#pragma OPENCL EXTENSION cl_amd_printf : enable
 //#pragma OPENCL EXTENSION cl_intel_printf : enable
 
@@ -338,6 +360,11 @@ __kernel void findNeighbors(
 							int PARTICLE_COUNT
 							)
 {
+	STATIC_CONSTANT( h, SPH_H );
+	STATIC_CONSTANT( hashGridCellSize, SPH_HASH_GRID_CELL_SIZE );
+	STATIC_CONSTANT( hashGridCellSizeInv, SPH_HASH_GRID_CELL_SIZE_INV );
+	STATIC_CONSTANT( simulationScale, SPH_SIMULATION_SCALE );
+
 	int id = get_global_id( 0 );
 	if( id >= PARTICLE_COUNT )return;
 	
@@ -466,6 +493,8 @@ __kernel void hashParticles(
 							int PARTICLE_COUNT
 							)
 {
+	STATIC_CONSTANT( hashGridCellSizeInv, SPH_HASH_GRID_CELL_SIZE_INV );
+
 	int id = get_global_id( 0 );
 	if( id >= PARTICLE_COUNT ) return;
 
@@ -623,6 +652,7 @@ __kernel void sortPostPass(
 						   __global float4 * velocity,
 						   __global float4 * sortedPosition,
 						   __global float4 * sortedVelocity,
+						   __global float4 * sortedTypeNormal,
 						   int PARTICLE_COUNT
 						   )
 {
@@ -633,14 +663,73 @@ __kernel void sortPostPass(
 	int serialId = PI_SERIAL_ID( spi );//get a particle Index
 	int cellId = PI_CELL_ID( spi );//get a cell Index
 	float4 position_ = position[ serialId ];//get position by serialId
-	POSITION_CELL_ID( position_ ) = (float)cellId;
 	float4 velocity_ = velocity[ serialId ];
+	// boundary particles keep their normal in velocity, pack it together with the particle
+	// type so that boundary handling needs a single sorted read per neighbor
+	float4 typeNormal_ = velocity_;
+	typeNormal_.w = position_.w;
+	POSITION_CELL_ID( position_ ) = (float)cellId;
 	sortedVelocity[ id ] = velocity_;//put velocity to sortedVelocity for right order according to particleIndex
 	sortedPosition[ id ] = position_;//put position to sortedVelocity for right order according to particleIndex
+	sortedTypeNormal[ id ] = typeNormal_;
 	
 	particleIndexBack[ serialId ] = id;
 }
 
+/** Gathers the selected particles into a compact output buffer, positions first
+ *  and, if requested, velocities right after them, so that only the selection
+ *  has to be read back to the host
+ */
+__kernel void gatherParticles(
+							  __global float4 * position,
+							  __global float4 * velocity,
+							  __global int * selection,
+							  __global float4 * output,
+							  int SELECTION_COUNT,
+							  int GATHER_VELOCITY
+							  )
+{
+	int id = get_global_id( 0 );
+	if( id >= SELECTION_COUNT ) return;
+	int particleId = selection[ id ];
+	output[ id ] = position[ particleId ];
+	if( GATHER_VELOCITY ) output[ SELECTION_COUNT + id ] = velocity[ particleId ];
+}
+
+#ifdef SPH_DELTA_READBACK
+/** Compacts the selected particles that moved more than epsilon away from the
+ *  position last sent for them into (slot, position) records, counted with an
+ *  atomic counter that has to be zeroed before the launch. The reference
+ *  positions follow the records sent, on keyframes they are all reset and
+ *  nothing is emitted.
+ */
+__kernel void compactMovedParticles(
+									__global float4 * position,
+									__global int * selection,
+									__global float4 * reference,
+									__global int * movedCount,
+									__global int * movedSlots,
+									__global float4 * movedPositions,
+									int SELECTION_COUNT,
+									float epsilonSquared,
+									int KEYFRAME
+									)
+{
+	int id = get_global_id( 0 );
+	if( id >= SELECTION_COUNT ) return;
+	float4 position_ = position[ selection[ id ] ];
+	if( !KEYFRAME ){
+		float4 displacement = position_ - reference[ id ];
+		displacement.w = 0.0f;
+		if( DOT( displacement, displacement ) <= epsilonSquared ) return;
+		int record = atomic_inc( movedCount );
+		movedSlots[ record ] = id;
+		movedPositions[ record ] = position_;
+	}
+	reference[ id ] = position_;
+}
+#endif
+
 //=================================
 // PCI SPH KERNELS BELOW
 //=================================
@@ -661,6 +750,15 @@ __kernel void pcisph_computeDensity(
 									 float delta,
 									 int PARTICLE_COUNT									 )
 {
+	STATIC_CONSTANT( Wpoly6Coefficient, SPH_W_POLY_6_COEFFICIENT );
+	STATIC_CONSTANT( gradWspikyCoefficient, SPH_GRAD_W_SPIKY_COEFFICIENT );
+	STATIC_CONSTANT( h, SPH_H );
+	STATIC_CONSTANT( mass, SPH_MASS );
+	STATIC_CONSTANT( rho0, SPH_RHO0 );
+	STATIC_CONSTANT( simulationScale, SPH_SIMULATION_SCALE );
+	STATIC_CONSTANT( stiffness, SPH_STIFFNESS );
+	STATIC_CONSTANT( delta, SPH_DELTA );
+
 	int id = get_global_id( 0 );
 	if( id >= PARTICLE_COUNT ) return;
 	
@@ -711,18 +809,26 @@ __kernel void pcisph_computeForcesAndInitPressure(
 								  float gravity_x,
 								  float gravity_y,
 								  float gravity_z,
-								  __global float4 * position,
-								  __global uint2 * particleIndex,
+								  __global float4 * sortedTypeNormal,
 								  int PARTICLE_COUNT
 								  )
 {
+	STATIC_CONSTANT( Wpoly6Coefficient, SPH_W_POLY_6_COEFFICIENT );
+	STATIC_CONSTANT( del2WviscosityCoefficient, SPH_DEL_2_W_VISCOSITY_COEFFICIENT );
+	STATIC_CONSTANT( h, SPH_H );
+	STATIC_CONSTANT( mass, SPH_MASS );
+	STATIC_CONSTANT( mu, SPH_MU );
+	STATIC_CONSTANT( simulationScale, SPH_SIMULATION_SCALE );
+	STATIC_CONSTANT( gravity_x, SPH_GRAVITY_X );
+	STATIC_CONSTANT( gravity_y, SPH_GRAVITY_Y );
+	STATIC_CONSTANT( gravity_z, SPH_GRAVITY_Z );
+
 	int id = get_global_id( 0 );
 	if( id >= PARTICLE_COUNT ) return;
 	
 	//track selected particle - indices are not shuffled anymore
 	id = particleIndexBack[id];
-	int id_source_particle = PI_SERIAL_ID( particleIndex[id] );
-	if((int)(position[ id_source_particle ].w) == BOUNDARY_PARTICLE){
+	if(PARTICLE_TYPE( sortedTypeNormal[ id ] ) == BOUNDARY_PARTICLE){
 		//FOR BOUNDARY PARTICLE WE SHOULDN'T COMPUTE ACCELERATION BECAUSE THEY DON'T MOVE
 		acceleration[ id ] = (float4)(0.0f, 0.0f, 0.0f, 0.0f );
 		acceleration[ PARTICLE_COUNT+id ] = (float4)(0.0f, 0.0f, 0.0f, 0.0f );
@@ -782,24 +888,55 @@ __kernel void pcisph_computeForcesAndInitPressure(
 	pressure[id] = 0.f;
 }
 
+// Acceleration of particle i caused by one spring, vect_r_ij is the vector
+// from the partner to i in simulation scale
+float4 elasticSpringAcceleration(
+								 float4 vect_r_ij,
+								 float r_ij_equilibrium,
+								 int muscle,
+								 __global float * muscle_activation_signal,
+								 int MUSCLE_COUNT
+								 )
+{
+	float k = 90000.f;// k - coefficient of elasticity
+	float r_ij = sqrt(DOT(vect_r_ij,vect_r_ij));
+	float4 result = (float4)( 0.0f, 0.0f, 0.0f, 0.0f );
+	
+	if(r_ij!=0.f)
+	{
+		result = -(vect_r_ij/r_ij) * (r_ij - r_ij_equilibrium) * k;
+		
+		//contractible spring, = muscle
+		if( muscle >= 0 && muscle < MUSCLE_COUNT && muscle_activation_signal[ muscle ] > 0.f )
+		{
+			result += -(vect_r_ij/r_ij) * muscle_activation_signal[ muscle ] * 300.f;
+		}
+	}
+	
+	return result;
+}
+
 __kernel void pcisph_computeElasticForces(
-										  __global float2 * neighborMap,
 										  __global float4 * sortedPosition,
-										  __global float4 * sortedVelocity,
 										  __global float4 * acceleration,
 										  __global uint * particleIndexBack,
-										  __global float4 * velocity,
 										  float h,
 										  float mass,
 										  float simulationScale,
 										  int numOfElasticParticle,
-										  __global float4 * elasticConnectionsData, 
+										  __global int * elasticConnectionsOffsets,
+										  __global int2 * elasticConnections,
+										  __global float * elasticConnectionsRestLength,
 										  int offset,
 										  __global float * muscle_activation_signal,
 										  int MUSCLE_COUNT,
 										  int PARTICLE_COUNT
 								  		  )
 {
+	STATIC_CONSTANT( h, SPH_H );
+	STATIC_CONSTANT( mass, SPH_MASS );
+	STATIC_CONSTANT( simulationScale, SPH_SIMULATION_SCALE );
+
 	// index of elastic particle among all elastic particles but this is not the real particle id
 	int index = get_global_id( 0 );
 	
@@ -807,76 +944,137 @@ __kernel void pcisph_computeElasticForces(
 		return;
 	}
 	
-	int nc = 0;
 	int id = particleIndexBack[index + offset];
-	int idx = index * NEIGHBOR_COUNT;
-	float r_ij_equilibrium, r_ij, delta_r_ij, v_i_cm_length;
-	float k = 90000.f;// k - coefficient of elasticity
+	// connections of this particle are stored in compressed sparse row layout:
+	// elasticConnections[c] = (partner particle id, muscle index), c in [first, last)
+	int first = elasticConnectionsOffsets[ index ];
+	int last = elasticConnectionsOffsets[ index + 1 ];
+	float4 position_i = sortedPosition[ id ];
 	float4 vect_r_ij;
-	float4 centerOfMassVelocity;
-	float4 velocity_i_cm;
-	float damping_coeff = 0.5f;
-	float check;
-	float4 proj_v_i_cm_on_r_ij;
-	float4 velocity_i = velocity[id];
-	float4 velocity_j;
+	float4 acceleration_i = (float4)( 0.0f, 0.0f, 0.0f, 0.0f );
+	int2 spring;
 	int jd;
-	int i;
+	int c;
 	
-	do
+	for( c = first; c < last; c++ )
 	{
-		if( (jd = (int)elasticConnectionsData[ idx + nc ].x) != NO_PARTICLE_ID )
-		{	
-			jd = particleIndexBack[jd];
-			velocity_j = velocity[ jd ];
-			
-			r_ij_equilibrium = elasticConnectionsData[ idx + nc ].y;//rij0
-			vect_r_ij = (sortedPosition[id] - sortedPosition[jd]) * simulationScale;
-			vect_r_ij.w = 0;
-			
-			r_ij = sqrt(DOT(vect_r_ij,vect_r_ij));
-			delta_r_ij = r_ij - r_ij_equilibrium;
-			
-			if(r_ij!=0.f)
-			{
-				acceleration[ id ] += -(vect_r_ij/r_ij) * delta_r_ij * k;
-	        	
-	        	//check all muscles
-	        	for(i=0;i<MUSCLE_COUNT;i++)
-				{
-		        	//contractible spring, = muscle
-		        	if((int)(elasticConnectionsData[idx+nc].z)==(i+1))
-					{
-						if(muscle_activation_signal[i]>0.f)
-						{
-							acceleration[ id ] += -(vect_r_ij/r_ij) * muscle_activation_signal[i] * 300.f;
-						}
-					}
-				}
-			}
-			
-			centerOfMassVelocity = (velocity_i + velocity_j)/2.f;
-			velocity_i_cm = velocity_i - centerOfMassVelocity;
-			
-			velocity_i_cm.w = 0.f;
-			v_i_cm_length = sqrt( DOT (velocity_i_cm,velocity_i_cm) );
-			
-			if((v_i_cm_length!=0)&&(r_ij!=0))
-			{
-				proj_v_i_cm_on_r_ij = vect_r_ij * DOT(velocity_i_cm,vect_r_ij)/(r_ij*r_ij);
-			}
-		}
-		else
-		{
-			// once we meet NO_PARTICLE_ID in the list of neighbours
-			// it means that all the rest till the end are also NO_PARTICLE_ID
-			break;
-		}
-	}while( ++nc < NEIGHBOR_COUNT );
+		spring = elasticConnections[ c ];
+		jd = particleIndexBack[ spring.x ];
+		
+		vect_r_ij = (position_i - sortedPosition[jd]) * simulationScale;
+		vect_r_ij.w = 0;
+		
+		// muscle indexes in the model start from 1
+		acceleration_i += elasticSpringAcceleration( vect_r_ij, elasticConnectionsRestLength[ c ], spring.y - 1, muscle_activation_signal, MUSCLE_COUNT );
+	}
+	
+	acceleration[ id ] += acceleration_i;
 	
 	return;
 }
 
+// Elastic substepping: springs are integrated several times per fluid step
+// on a private copy of elastic particle positions and velocities, laid out as
+// two halves (source and destination) of [ positions | velocities ]
+// indexed by elastic particle index.
+__kernel void pcisph_initElasticSubsteps(
+										 __global float4 * sortedPosition,
+										 __global float4 * sortedVelocity,
+										 __global uint * particleIndexBack,
+										 int numOfElasticParticle,
+										 __global float4 * elasticSubstepState
+										 )
+{
+	int index = get_global_id( 0 );
+	if(index>=numOfElasticParticle) return;
+	
+	int id = particleIndexBack[ index ];
+	elasticSubstepState[ index ] = sortedPosition[ id ];
+	elasticSubstepState[ numOfElasticParticle + index ] = sortedVelocity[ id ];
+}
+
+__kernel void pcisph_integrateElasticSubstep(
+											 __global float4 * sortedPosition,
+											 __global float4 * acceleration,
+											 __global uint * particleIndexBack,
+											 float simulationScale,
+											 float simulationScaleInv,
+											 float substepTimeStep,
+											 int numOfElasticParticle,
+											 __global int * elasticConnectionsOffsets,
+											 __global int2 * elasticConnections,
+											 __global float * elasticConnectionsRestLength,
+											 __global float * muscle_activation_signal,
+											 int MUSCLE_COUNT,
+											 __global float4 * elasticSubstepState,
+											 int source,
+											 int destination
+											 )
+{
+	STATIC_CONSTANT( simulationScale, SPH_SIMULATION_SCALE );
+	STATIC_CONSTANT( simulationScaleInv, SPH_SIMULATION_SCALE_INV );
+
+	int index = get_global_id( 0 );
+	if(index>=numOfElasticParticle) return;
+	
+	int id = particleIndexBack[ index ];
+	int first = elasticConnectionsOffsets[ index ];
+	int last = elasticConnectionsOffsets[ index + 1 ];
+	float4 position_i = elasticSubstepState[ source + index ];
+	float4 position_j;
+	float4 vect_r_ij;
+	// gravity, viscosity etc. are kept constant over the fluid step
+	float4 acceleration_i = acceleration[ id ];
+	int2 spring;
+	int c;
+	
+	acceleration_i.w = 0.f;
+	for( c = first; c < last; c++ )
+	{
+		spring = elasticConnections[ c ];
+		// springs attached to non elastic particles see them frozen at the fluid step position
+		position_j = ( spring.x < numOfElasticParticle ) ? elasticSubstepState[ source + spring.x ] : sortedPosition[ particleIndexBack[ spring.x ] ];
+		
+		vect_r_ij = (position_i - position_j) * simulationScale;
+		vect_r_ij.w = 0;
+		
+		acceleration_i += elasticSpringAcceleration( vect_r_ij, elasticConnectionsRestLength[ c ], spring.y - 1, muscle_activation_signal, MUSCLE_COUNT );
+	}
+	
+	// Semi-implicit Euler integration, same as pcisph_integrate
+	float4 newVelocity_ = elasticSubstepState[ source + numOfElasticParticle + index ] + substepTimeStep * acceleration_i;
+	float4 newPosition_ = position_i + substepTimeStep * simulationScaleInv * newVelocity_;
+	newPosition_.w = position_i.w;
+	
+	elasticSubstepState[ destination + index ] = newPosition_;
+	elasticSubstepState[ destination + numOfElasticParticle + index ] = newVelocity_;
+}
+
+// Turns the velocity change accumulated over the substeps into the
+// acceleration seen by the PCISPH loop for the whole fluid step. The loop only
+// uses it to predict densities, pcisph_integrate takes the final substep
+// positions and velocities as they are.
+__kernel void pcisph_finishElasticSubsteps(
+										   __global float4 * sortedVelocity,
+										   __global float4 * acceleration,
+										   __global uint * particleIndexBack,
+										   float timeStep,
+										   int numOfElasticParticle,
+										   __global float4 * elasticSubstepState,
+										   int source
+										   )
+{
+	STATIC_CONSTANT( timeStep, SPH_TIME_STEP );
+
+	int index = get_global_id( 0 );
+	if(index>=numOfElasticParticle) return;
+	
+	int id = particleIndexBack[ index ];
+	float4 acceleration_ = ( elasticSubstepState[ source + numOfElasticParticle + index ] - sortedVelocity[ id ] ) / timeStep;
+	acceleration_.w = 0.f;
+	acceleration[ id ] = acceleration_;
+}
+
 // Boundary handling, according to the following article:
 // M. Ihmsen et. al., Boundary Handling and Adaptive Time-stepping for PCISPH 
 // Proc. VRIPHYS, Copenhagen, Denmark, pp. 79-88, Nov 11-12, 2010.
@@ -889,10 +1087,8 @@ void calculateBoundaryParticleAffect(
 									 int id, 
 									 float r0, 
 									 __global float2 * neighborMap,
-									 __global uint * particleIndexBack,
-									 __global uint2 * particleIndex,
-									 __global float4 * position,
-									 __global float4 * velocity,
+									 __global float4 * sortedPosition,
+									 __global float4 * sortedTypeNormal,
 									 float4 * pos_,
 									 bool tangVel,
 									 float4 * vel
@@ -900,10 +1096,10 @@ void calculateBoundaryParticleAffect(
 {
 	//track selected particle (indices are not shuffled anymore)
 	int idx = id * NEIGHBOR_COUNT;
-	int id_source_particle = 0;
 	int nc = 0;
 	float4 n_c_i = (float4)(0.f,0.f,0.f,0.f); 
 	float4 n_b;
+	float4 position_b;
 	float w_c_ib = 0,f; 
 	float w_c_ib_sum = 0.f;
 	float w_c_ib_second_sum = 0.f;
@@ -917,14 +1113,14 @@ void calculateBoundaryParticleAffect(
 	{
 		if( (jd = NEIGHBOR_MAP_ID( neighborMap[ idx + nc ])) != NO_PARTICLE_ID )
 		{
-			id_source_particle = PI_SERIAL_ID( particleIndex[jd] );
-			if((int)position[id_source_particle].w == 3){
-				x_ib_norm  = ((*pos_).x - position[id_source_particle].x) * ((*pos_).x - position[id_source_particle].x);
-				x_ib_norm += ((*pos_).y - position[id_source_particle].y) * ((*pos_).y - position[id_source_particle].y);
-				x_ib_norm += ((*pos_).z - position[id_source_particle].z) * ((*pos_).z - position[id_source_particle].z);
+			n_b = sortedTypeNormal[jd];                         //ATTENTION! for boundary, non-moving particles velocity has no sense, but instead we need to store normal vector. sortPostPass copies it here next to the particle type.
+			if(PARTICLE_TYPE( n_b ) == BOUNDARY_PARTICLE){
+				position_b = sortedPosition[jd];                // boundary particles don't move so the sorted copy matches position
+				x_ib_norm  = ((*pos_).x - position_b.x) * ((*pos_).x - position_b.x);
+				x_ib_norm += ((*pos_).y - position_b.y) * ((*pos_).y - position_b.y);
+				x_ib_norm += ((*pos_).z - position_b.z) * ((*pos_).z - position_b.z);
 				x_ib_norm = SQRT(x_ib_norm);
 				w_c_ib = max(0.f,(r0-x_ib_norm)/r0);            //Ihmsen et. al., 2010, page 4, formula (10)
-				n_b = velocity[id_source_particle];             //ATTENTION! for boundary, non-moving particles velocity has no sense, but instead we need to store normal vector. We keep it in velocity data structure for memory economy.
 				n_c_i += n_b * w_c_ib;                          //Ihmsen et. al., 2010, page 4, formula (9)
 				w_c_ib_sum += w_c_ib;                           //Ihmsen et. al., 2010, page 4, formula (11), sum #1
 				w_c_ib_second_sum += w_c_ib * (r0 - x_ib_norm); //Ihmsen et. al., 2010, page 4, formula (11), sum #2
@@ -958,7 +1154,7 @@ __kernel void pcisph_predictPositions(
 									  __global float4 * acceleration,
 									  __global float4 * sortedPosition,
 									  __global float4 * sortedVelocity,
-									  __global uint2 * particleIndex,
+									  __global float4 * sortedTypeNormal,
 									  __global uint * particleIndexBack,
 									  float gravity_x,
 									  float gravity_y,
@@ -972,20 +1168,25 @@ __kernel void pcisph_predictPositions(
 									  float zmin,
 									  float zmax,
 									  float damping,
-									  __global float4 * position,
-									  __global float4 * velocity,
 									  float r0,
 									  __global float2 * neighborMap,
 									  int PARTICLE_COUNT
 									  )
 {
+	STATIC_CONSTANT( gravity_x, SPH_GRAVITY_X );
+	STATIC_CONSTANT( gravity_y, SPH_GRAVITY_Y );
+	STATIC_CONSTANT( gravity_z, SPH_GRAVITY_Z );
+	STATIC_CONSTANT( simulationScaleInv, SPH_SIMULATION_SCALE_INV );
+	STATIC_CONSTANT( timeStep, SPH_TIME_STEP );
+	STATIC_CONSTANT( damping, SPH_DAMPING );
+	STATIC_CONSTANT( r0, SPH_R0 );
+
 	int id = get_global_id( 0 );
 	if( id >= PARTICLE_COUNT ) return;
 	
 	id = particleIndexBack[id];
-	int id_source_particle = PI_SERIAL_ID( particleIndex[id] );
 	float4 position_ = sortedPosition[ id ];
-	if((int)(position[ id_source_particle ].w) == 3){
+	if(PARTICLE_TYPE( sortedTypeNormal[ id ] ) == BOUNDARY_PARTICLE){
 		//this line was missing (absent) and caused serions errors in program behavior
 		sortedPosition[PARTICLE_COUNT+id] = position_;
 		return;
@@ -999,7 +1200,7 @@ __kernel void pcisph_predictPositions(
 	float posTimeStep = timeStep * simulationScaleInv;			
 	float4 newPosition_ = position_ + posTimeStep * newVelocity_; //newPosition_.w = 0.f;
 
-	calculateBoundaryParticleAffect(id,r0,neighborMap,particleIndexBack,particleIndex,position,velocity,&newPosition_,false, &newVelocity_);
+	calculateBoundaryParticleAffect(id,r0,neighborMap,sortedPosition,sortedTypeNormal,&newPosition_,false, &newVelocity_);
 	// in current version sortedPosition array has double size, PARTICLE_COUNT*2, to store both x(t) and x*(t+1)
 	sortedPosition[PARTICLE_COUNT+id] = newPosition_;
 }
@@ -1021,6 +1222,15 @@ __kernel void pcisph_predictDensity(
 									 int PARTICLE_COUNT
 									 )
 {
+	STATIC_CONSTANT( Wpoly6Coefficient, SPH_W_POLY_6_COEFFICIENT );
+	STATIC_CONSTANT( gradWspikyCoefficient, SPH_GRAD_W_SPIKY_COEFFICIENT );
+	STATIC_CONSTANT( h, SPH_H );
+	STATIC_CONSTANT( mass, SPH_MASS );
+	STATIC_CONSTANT( rho0, SPH_RHO0 );
+	STATIC_CONSTANT( simulationScale, SPH_SIMULATION_SCALE );
+	STATIC_CONSTANT( stiffness, SPH_STIFFNESS );
+	STATIC_CONSTANT( delta, SPH_DELTA );
+
 	int id = get_global_id( 0 );
 	if( id >= PARTICLE_COUNT ) return;
 	
@@ -1083,6 +1293,15 @@ __kernel void pcisph_correctPressure(
 									 int PARTICLE_COUNT
 									 )
 {
+	STATIC_CONSTANT( Wpoly6Coefficient, SPH_W_POLY_6_COEFFICIENT );
+	STATIC_CONSTANT( gradWspikyCoefficient, SPH_GRAD_W_SPIKY_COEFFICIENT );
+	STATIC_CONSTANT( h, SPH_H );
+	STATIC_CONSTANT( mass, SPH_MASS );
+	STATIC_CONSTANT( rho0, SPH_RHO0 );
+	STATIC_CONSTANT( simulationScale, SPH_SIMULATION_SCALE );
+	STATIC_CONSTANT( stiffness, SPH_STIFFNESS );
+	STATIC_CONSTANT( delta, SPH_DELTA );
+
 	int id = get_global_id( 0 );
 	if( id >= PARTICLE_COUNT ) return;
 	
@@ -1117,18 +1336,25 @@ __kernel void pcisph_computePressureForceAcceleration(
 													  float simulationScale,
 													  __global float4 * acceleration,
 													  float rho0,
-													  __global float4 * position,
-													  __global uint2 * particleIndex,
+													  __global float4 * sortedTypeNormal,
 													  int PARTICLE_COUNT
 													  )
 {
+	STATIC_CONSTANT( CFLLimit, SPH_CFL_LIMIT );
+	STATIC_CONSTANT( del2WviscosityCoefficient, SPH_DEL_2_W_VISCOSITY_COEFFICIENT );
+	STATIC_CONSTANT( gradWspikyCoefficient, SPH_GRAD_W_SPIKY_COEFFICIENT );
+	STATIC_CONSTANT( h, SPH_H );
+	STATIC_CONSTANT( mass, SPH_MASS );
+	STATIC_CONSTANT( mu, SPH_MU );
+	STATIC_CONSTANT( simulationScale, SPH_SIMULATION_SCALE );
+	STATIC_CONSTANT( rho0, SPH_RHO0 );
+
 	int id = get_global_id( 0 );
 	if( id >= PARTICLE_COUNT ) return;
 	
 	id = particleIndexBack[id];//track selected particle (indices are not mixed anymore)
-	int id_source_particle = PI_SERIAL_ID( particleIndex[id] );
 	
-	if((int)(position[ id_source_particle ].w) == BOUNDARY_PARTICLE){
+	if(PARTICLE_TYPE( sortedTypeNormal[ id ] ) == BOUNDARY_PARTICLE){
 		acceleration[ PARTICLE_COUNT+id ] = 0.f;
 		return;
 	}
@@ -1201,9 +1427,21 @@ __kernel void pcisph_integrate(
 							   __global float * rho,
 							   float r0,
 							   __global float2 * neighborMap,
-							   int PARTICLE_COUNT
+							   __global float4 * sortedTypeNormal,
+							   int PARTICLE_COUNT,
+							   __global float4 * elasticSubstepState,
+							   int numOfElasticParticle,
+							   int elasticSubstepSource
 							   )
 {
+	STATIC_CONSTANT( gravity_x, SPH_GRAVITY_X );
+	STATIC_CONSTANT( gravity_y, SPH_GRAVITY_Y );
+	STATIC_CONSTANT( gravity_z, SPH_GRAVITY_Z );
+	STATIC_CONSTANT( simulationScaleInv, SPH_SIMULATION_SCALE_INV );
+	STATIC_CONSTANT( timeStep, SPH_TIME_STEP );
+	STATIC_CONSTANT( damping, SPH_DAMPING );
+	STATIC_CONSTANT( r0, SPH_R0 );
+
 	int id = get_global_id( 0 ); 
 	if(id>=PARTICLE_COUNT) return;
 	
@@ -1211,7 +1449,8 @@ __kernel void pcisph_integrate(
 	int id_source_particle = PI_SERIAL_ID( particleIndex[id] );
 	
 	float4 position_ = sortedPosition[ id ];
-	if((int)(position[ id_source_particle ].w) == BOUNDARY_PARTICLE){
+	float particleType = sortedTypeNormal[ id ].w;
+	if((int)particleType == BOUNDARY_PARTICLE){
 		return;
 	}
 	
@@ -1220,11 +1459,23 @@ __kernel void pcisph_integrate(
 	float4 acceleration_ = acceleration[ id ] + acceleration[ PARTICLE_COUNT+id ]; acceleration_.w = 0.f;
 	float4 velocity_ = sortedVelocity[ id ];
 
-	// Semi-implicit Euler integration 
-	float4 newVelocity_ = velocity_ + timeStep * acceleration_; //newVelocity_.w = 0.f;
-
 	float posTimeStep = timeStep * simulationScaleInv;			
-	float4 newPosition_ = position_ + posTimeStep * newVelocity_; //newPosition_.w = 0.f;
+	float4 newVelocity_;
+	float4 newPosition_;
+	// elastic particles are substepped when elasticSubstepSource >= 0: springs
+	// already moved them over the fluid step, only the pressure force of the
+	// PCISPH loop is left to apply. Positions and velocities both come from the
+	// substeps so that they stay consistent with each other.
+	bool substepped = elasticSubstepSource >= 0 && id_source_particle < numOfElasticParticle;
+	if( substepped ){
+		float4 pressureAcceleration = accelT; pressureAcceleration.w = 0.f;
+		newVelocity_ = elasticSubstepState[ elasticSubstepSource + numOfElasticParticle + id_source_particle ] + timeStep * pressureAcceleration;
+		newPosition_ = elasticSubstepState[ elasticSubstepSource + id_source_particle ] + posTimeStep * timeStep * pressureAcceleration;
+	}else{
+		// Semi-implicit Euler integration 
+		newVelocity_ = velocity_ + timeStep * acceleration_; //newVelocity_.w = 0.f;
+		newPosition_ = position_ + posTimeStep * newVelocity_; //newPosition_.w = 0.f;
+	}
 
 	if(newPosition_.x<xmin) newPosition_.x = xmin;
 	if(newPosition_.y<ymin) newPosition_.y = ymin;
@@ -1234,11 +1485,12 @@ __kernel void pcisph_integrate(
 	if(newPosition_.z>zmax-0.000001f) newPosition_.z = zmax-0.000001f;
 	// better replace 0.0000001 with smoothingRadius*0.001 or smth like this to keep this
 
-	float particleType = position[ id_source_particle ].w;
-	newVelocity_ = (velocity_ + newVelocity_) * 0.5f ;
-	calculateBoundaryParticleAffect(id,r0,neighborMap,particleIndexBack,particleIndex,position,velocity,&newPosition_, true, &newVelocity_);
+	if( !substepped ){
+		newVelocity_ = (velocity_ + newVelocity_) * 0.5f ;
+	}
+	calculateBoundaryParticleAffect(id,r0,neighborMap,sortedPosition,sortedTypeNormal,&newPosition_, true, &newVelocity_);
 	velocity[ id_source_particle ] = newVelocity_;
 	position[ id_source_particle ] = newPosition_;
 	position[ id_source_particle ].w = particleType;
 	// position[0..2] stores x,y,z; position[3] - for particle type
-}
\ No newline at end of file
+}
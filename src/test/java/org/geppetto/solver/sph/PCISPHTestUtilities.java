@@ -19,6 +19,36 @@ import org.geppetto.model.sph.x.Vector3DX;
 import org.geppetto.solver.sph.internal.FindNaNVisitor;
 
 public class PCISPHTestUtilities {
+	public static final int[] FRAME_PARTICLE_IDS = { 0, 1, 2, 5, 6 };
+	
+	/*
+	 * Value of the i-th position (or velocity) float of the frame of a step
+	 * */
+	public static float frameValue(long step, int i, boolean velocity)
+	{
+		return step * 1000 + i + (velocity ? 0.5f : 0f);
+	}
+	
+	/*
+	 * Frame of FRAME_PARTICLE_IDS with positions and velocities set to frameValue
+	 * */
+	public static SPHFrame createFrame(long step)
+	{
+		return createFrame(step, FRAME_PARTICLE_IDS);
+	}
+	
+	public static SPHFrame createFrame(long step, int[] particleIds)
+	{
+		float[] positions = new float[particleIds.length * SPHFrame.POSITION_SIZE];
+		float[] velocities = new float[positions.length];
+		for(int i = 0; i < positions.length; i++)
+		{
+			positions[i] = frameValue(step, i, false);
+			velocities[i] = frameValue(step, i, true);
+		}
+		return new SPHFrame(step, positions, velocities, particleIds);
+	}
+	
 	public static String readFile(String path) throws IOException
 	{
 		FileInputStream stream = new FileInputStream(new File(path));
@@ -0,0 +1,113 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011, 2013 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+
+package org.geppetto.solver.sph.internal;
+
+import junit.framework.Assert;
+
+import org.geppetto.solver.sph.ActivationSignalQueue;
+import org.junit.Test;
+
+public class ActivationSignalQueueTest {
+
+	@Test
+	public void testFramesComeOutInOrder() {
+		ActivationSignalQueue queue = new ActivationSignalQueue(4, 3);
+		float[] frame = new float[3];
+		
+		Assert.assertFalse("Empty queue returned a frame", queue.poll(frame));
+		
+		Assert.assertTrue(queue.offer(new float[] { 1f, 2f, 3f }));
+		Assert.assertTrue(queue.offer(new float[] { 4f }));
+		Assert.assertEquals(2, queue.size());
+		
+		Assert.assertTrue(queue.poll(frame));
+		Assert.assertEquals(1f, frame[0], 0f);
+		Assert.assertEquals(3f, frame[2], 0f);
+		
+		// short frames are padded with relaxed muscles
+		Assert.assertTrue(queue.poll(frame));
+		Assert.assertEquals(4f, frame[0], 0f);
+		Assert.assertEquals(0f, frame[1], 0f);
+		Assert.assertEquals(0f, frame[2], 0f);
+		
+		Assert.assertFalse(queue.poll(frame));
+	}
+	
+	@Test
+	public void testFullQueueRejectsFrames() {
+		// capacity is rounded up to a power of two
+		ActivationSignalQueue queue = new ActivationSignalQueue(3, 1);
+		for (int i = 0; i < 4; i++) {
+			Assert.assertTrue("Frame " + i + " was rejected", queue.offer(new float[] { i }));
+		}
+		Assert.assertFalse("Full queue accepted a frame", queue.offer(new float[] { 4f }));
+		
+		float[] frame = new float[1];
+		Assert.assertTrue(queue.poll(frame));
+		Assert.assertEquals(0f, frame[0], 0f);
+		Assert.assertTrue("Released slot was not reused", queue.offer(new float[] { 4f }));
+	}
+	
+	@Test
+	public void testProducerThread() throws Exception {
+		final int frames = 10000;
+		final ActivationSignalQueue queue = new ActivationSignalQueue(16, 2);
+		Thread producer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 0; i < frames; i++) {
+					while (!queue.offer(new float[] { i, -i })) {
+						Thread.yield();
+					}
+				}
+			}
+		});
+		producer.start();
+		
+		float[] frame = new float[2];
+		for (int i = 0; i < frames; i++) {
+			while (!queue.poll(frame)) {
+				Thread.yield();
+			}
+			Assert.assertEquals((float) i, frame[0], 0f);
+			Assert.assertEquals((float) -i, frame[1], 0f);
+		}
+		producer.join();
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testTooManyValues() {
+		new ActivationSignalQueue(4, 2).offer(new float[] { 1f, 2f, 3f });
+	}
+}
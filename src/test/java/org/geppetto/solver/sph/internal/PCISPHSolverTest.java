@@ -34,6 +34,7 @@
 package org.geppetto.solver.sph.internal;
 
 import java.net.URL;
+import java.util.Arrays;
 
 import junit.framework.Assert;
 
@@ -41,9 +42,14 @@ import org.geppetto.core.model.IModel;
 import org.geppetto.core.model.state.CompositeStateNode;
 import org.geppetto.core.model.state.StateTreeRoot;
 import org.geppetto.core.simulation.TimeConfiguration;
+import org.geppetto.model.sph.common.SPHConstants;
 import org.geppetto.model.sph.services.SPHModelInterpreterService;
 import org.geppetto.model.sph.x.SPHModelX;
+import org.geppetto.solver.sph.ActivationSignalQueue;
+import org.geppetto.solver.sph.BufferAllocationEnum;
 import org.geppetto.solver.sph.PCISPHTestUtilities;
+import org.geppetto.solver.sph.SPHFrame;
+import org.geppetto.solver.sph.SPHParticleSelection;
 import org.geppetto.solver.sph.SPHSolverService;
 import org.junit.Test;
 
@@ -203,4 +209,324 @@ public class PCISPHSolverTest
 		
 		Assert.assertTrue("Particle count doesn't match.", stateSet.getSubTree(StateTreeRoot.SUBTREE.MODEL_TREE).getChildren().size() == PCISPHTestUtilities.countNonBoundaryParticles((SPHModelX)model));
 	}
+
+	/*
+	 * Re-initializing with a smaller scene reuses the device buffers of the bigger one
+	 */
+	@Test
+	public void testReinitialize_ReusesBuffers() throws Exception
+	{
+		SPHModelInterpreterService modelInterpreter = new SPHModelInterpreterService();
+		SPHModelX bigModel = (SPHModelX) modelInterpreter.readModel(this.getClass().getResource("/sphModel_elastic_1575.xml"));
+		SPHModelX smallModel = (SPHModelX) modelInterpreter.readModel(this.getClass().getResource("/sphModel_15.xml"));
+		
+		SPHSolverService solver = new SPHSolverService();
+		solver.initialize(bigModel);
+		int particleCapacity = solver.getParticleCapacity();
+		int gridCellCapacity = solver.getGridCellCapacity();
+		Assert.assertTrue(particleCapacity >= bigModel.getParticles().size());
+		
+		solver.initialize(smallModel);
+		Assert.assertEquals(particleCapacity, solver.getParticleCapacity());
+		Assert.assertEquals(gridCellCapacity, solver.getGridCellCapacity());
+		
+		StateTreeRoot stateSet = solver.solve(new TimeConfiguration(0.1f, 5, 1));
+		PCISPHTestUtilities.checkStateTreeForNaN(stateSet, false);
+		Assert.assertTrue("Particle count doesn't match.", stateSet.getSubTree(StateTreeRoot.SUBTREE.MODEL_TREE).getChildren().size() == PCISPHTestUtilities.countNonBoundaryParticles(smallModel));
+	}
+
+	/*
+	 * Host pointer buffers give the same results as device buffers
+	 */
+	@Test
+	public void testSolve_HostPointer_VS_Device() throws Exception
+	{
+		URL url = this.getClass().getResource("/sphModel_small.xml");
+		SPHModelInterpreterService modelInterpreter = new SPHModelInterpreterService();
+		IModel model = modelInterpreter.readModel(url);
+		
+		int cycles = 20;
+		
+		SPHSolverService solver1 = new SPHSolverService();
+		solver1.setBufferAllocation(BufferAllocationEnum.DEVICE);
+		solver1.initialize(model);
+		long start = System.currentTimeMillis();
+		StateTreeRoot stateTree1 = solver1.solve(new TimeConfiguration(0.1f, cycles, 1));
+		System.out.println("device buffers: " + (System.currentTimeMillis() - start) + "ms");
+		
+		SPHSolverService solver2 = new SPHSolverService();
+		solver2.setBufferAllocation(BufferAllocationEnum.HOST_POINTER);
+		solver2.initialize(model);
+		start = System.currentTimeMillis();
+		StateTreeRoot stateTree2 = solver2.solve(new TimeConfiguration(0.1f, cycles, 1));
+		System.out.println("host pointer buffers: " + (System.currentTimeMillis() - start) + "ms");
+		
+		Assert.assertEquals(stateTree1.toString(), stateTree2.toString());
+	}
+
+	/*
+	 * Constants compiled into the program (-D SPH_STATIC_CONSTANTS) must give
+	 * the same state as constants passed as kernel arguments
+	 */
+	@Test
+	public void testSolve_StaticConstants_VS_KernelArguments() throws Exception
+	{
+		URL url = this.getClass().getResource("/sphModel_small.xml");
+		SPHModelInterpreterService modelInterpreter = new SPHModelInterpreterService();
+		IModel model = modelInterpreter.readModel(url);
+		
+		int cycles = 20;
+		
+		SPHSolverService solver1 = new SPHSolverService();
+		solver1.initialize(model);
+		long start = System.currentTimeMillis();
+		StateTreeRoot stateTree1 = solver1.solve(new TimeConfiguration(0.1f, cycles, 1));
+		System.out.println("kernel argument constants: " + (System.currentTimeMillis() - start) + "ms");
+		
+		SPHSolverService solver2 = new SPHSolverService();
+		solver2.setStaticConstants(true);
+		solver2.initialize(model);
+		start = System.currentTimeMillis();
+		StateTreeRoot stateTree2 = solver2.solve(new TimeConfiguration(0.1f, cycles, 1));
+		System.out.println("static constants: " + (System.currentTimeMillis() - start) + "ms");
+		
+		Assert.assertEquals(stateTree1.toString(), stateTree2.toString());
+		Assert.assertTrue(Arrays.equals(solver1.getFrame().getPositions(), solver2.getFrame().getPositions()));
+		Assert.assertTrue(Arrays.equals(solver1.getFrame().getVelocities(), solver2.getFrame().getVelocities()));
+	}
+
+	/*
+	 * With the state tree disabled steps only produce frames, the tree is built on request
+	 */
+	@Test
+	public void testSolve_FramesWithoutStateTree() throws Exception
+	{
+		URL url = this.getClass().getResource("/sphModel_small.xml");
+		SPHModelInterpreterService modelInterpreter = new SPHModelInterpreterService();
+		SPHModelX model = (SPHModelX) modelInterpreter.readModel(url);
+		
+		int cycles = 20;
+		
+		SPHSolverService solver1 = new SPHSolverService();
+		solver1.initialize(model);
+		StateTreeRoot stateTree1 = solver1.solve(new TimeConfiguration(0.1f, cycles, 1));
+		
+		SPHSolverService solver2 = new SPHSolverService();
+		solver2.setStateTreeEnabled(false);
+		solver2.initialize(model);
+		StateTreeRoot stateTree2 = solver2.solve(new TimeConfiguration(0.1f, cycles, 1));
+		Assert.assertTrue(stateTree2.getSubTree(StateTreeRoot.SUBTREE.MODEL_TREE).getChildren().isEmpty());
+		
+		SPHFrame frame1 = solver1.getFrame();
+		SPHFrame frame2 = solver2.getFrame();
+		Assert.assertEquals(cycles, frame2.getStep());
+		Assert.assertEquals(PCISPHTestUtilities.countNonBoundaryParticles(model), frame2.getParticleCount());
+		Assert.assertTrue(Arrays.equals(frame1.getPositions(), frame2.getPositions()));
+		
+		stateTree2 = solver2.getStateTree();
+		Assert.assertTrue("Particle count doesn't match.", stateTree2.getSubTree(StateTreeRoot.SUBTREE.MODEL_TREE).getChildren().size() == PCISPHTestUtilities.countNonBoundaryParticles(model));
+	}
+
+	/*
+	 * Frames of a selection must hold the same values as the full frames for
+	 * the selected particles
+	 */
+	@Test
+	public void testSolve_OutputSelection() throws Exception
+	{
+		URL url = this.getClass().getResource("/sphModel_small.xml");
+		SPHModelInterpreterService modelInterpreter = new SPHModelInterpreterService();
+		SPHModelX model = (SPHModelX) modelInterpreter.readModel(url);
+		
+		int cycles = 10;
+		
+		SPHSolverService solver1 = new SPHSolverService();
+		solver1.setStateTreeEnabled(false);
+		solver1.initialize(model);
+		solver1.solve(new TimeConfiguration(0.1f, cycles, 1));
+		SPHFrame frame1 = solver1.getFrame();
+		
+		// every other moving particle
+		int[] movingIds = frame1.getParticleIds();
+		int[] selectedIds = new int[(movingIds.length + 1) / 2];
+		for (int i = 0; i < selectedIds.length; i++) {
+			selectedIds[i] = movingIds[i * 2];
+		}
+		
+		SPHSolverService solver2 = new SPHSolverService();
+		solver2.setStateTreeEnabled(false);
+		solver2.setOutputSelection(SPHParticleSelection.byIds(selectedIds));
+		solver2.initialize(model);
+		solver2.solve(new TimeConfiguration(0.1f, cycles, 1));
+		SPHFrame frame2 = solver2.getFrame();
+		
+		Assert.assertTrue(Arrays.equals(selectedIds, frame2.getParticleIds()));
+		float[] positions1 = frame1.getPositions();
+		float[] positions2 = frame2.getPositions();
+		for (int i = 0; i < selectedIds.length; i++) {
+			for (int c = 0; c < SPHFrame.POSITION_SIZE; c++) {
+				Assert.assertEquals(positions1[i * 2 * SPHFrame.POSITION_SIZE + c], positions2[i * SPHFrame.POSITION_SIZE + c]);
+			}
+		}
+		
+		Assert.assertEquals(selectedIds.length, solver2.getStateTree().getSubTree(StateTreeRoot.SUBTREE.MODEL_TREE).getChildren().size());
+	}
+
+	/*
+	 * Frames rebuilt from deltas must match full readback exactly with a
+	 * zero epsilon and within epsilon otherwise
+	 */
+	@Test
+	public void testSolve_DeltaReadback() throws Exception
+	{
+		URL url = this.getClass().getResource("/sphModel_small.xml");
+		SPHModelInterpreterService modelInterpreter = new SPHModelInterpreterService();
+		SPHModelX model = (SPHModelX) modelInterpreter.readModel(url);
+		
+		int cycles = 12;
+		
+		SPHSolverService solver1 = new SPHSolverService();
+		solver1.setStateTreeEnabled(false);
+		solver1.initialize(model);
+		solver1.solve(new TimeConfiguration(0.1f, cycles, 1));
+		float[] positions1 = solver1.getFrame().getPositions();
+		
+		SPHSolverService solver2 = new SPHSolverService();
+		solver2.setStateTreeEnabled(false);
+		solver2.setDeltaReadback(0f, 5);
+		solver2.initialize(model);
+		solver2.solve(new TimeConfiguration(0.1f, cycles, 1));
+		Assert.assertTrue(Arrays.equals(positions1, solver2.getFrame().getPositions()));
+		
+		float epsilon = 0.01f;
+		SPHSolverService solver3 = new SPHSolverService();
+		solver3.setStateTreeEnabled(false);
+		solver3.setDeltaReadback(epsilon, 5);
+		solver3.initialize(model);
+		solver3.solve(new TimeConfiguration(0.1f, cycles, 1));
+		float[] positions3 = solver3.getFrame().getPositions();
+		Assert.assertEquals(positions1.length, positions3.length);
+		for (int i = 0; i < positions1.length; i++) {
+			Assert.assertTrue(Math.abs(positions1[i] - positions3[i]) <= epsilon);
+		}
+	}
+
+	/*
+	 * Stiff elastic springs stay stable at twice the fluid time step when
+	 * they are substepped
+	 */
+	@Test
+	public void testSolveElasticContractible_Substeps() throws Exception
+	{
+		URL url = this.getClass().getResource("/sphModel_elastic_contractible_7220.xml");
+		SPHModelInterpreterService modelInterpreter = new SPHModelInterpreterService();
+		SPHModelX model = (SPHModelX) modelInterpreter.readModel(url);
+		
+		SPHSolverService solver = new SPHSolverService();
+		solver.setTimeStep(SPHConstants.TIME_STEP * 2);
+		solver.setElasticSubsteps(4);
+		solver.initialize(model);
+		StateTreeRoot stateSet = solver.solve(new TimeConfiguration(0.1f, 20, 1));
+		
+		PCISPHTestUtilities.checkStateTreeForNaN(stateSet, false);
+		Assert.assertTrue("Particle count doesn't match.", stateSet.getSubTree(StateTreeRoot.SUBTREE.MODEL_TREE).getChildren().size() == PCISPHTestUtilities.countNonBoundaryParticles(model));
+	}
+	
+	/*
+	 * One substep takes the integration path used before substeps existed,
+	 * results must not depend on substeps having been configured before
+	 */
+	@Test
+	public void testSolveElastic_OneSubstepUnchanged() throws Exception
+	{
+		URL url = this.getClass().getResource("/sphModel_elastic_1575.xml");
+		SPHModelInterpreterService modelInterpreter = new SPHModelInterpreterService();
+		IModel model = modelInterpreter.readModel(url);
+		
+		int cycles = 20;
+		
+		SPHSolverService solver1 = new SPHSolverService();
+		solver1.initialize(model);
+		StateTreeRoot stateTree1 = solver1.solve(new TimeConfiguration(0.1f, cycles, 1));
+		
+		SPHSolverService solver2 = new SPHSolverService();
+		solver2.setElasticSubsteps(4);
+		solver2.setElasticSubsteps(1);
+		solver2.initialize(model);
+		StateTreeRoot stateTree2 = solver2.solve(new TimeConfiguration(0.1f, cycles, 1));
+		
+		Assert.assertEquals(stateTree1.toString(), stateTree2.toString());
+		Assert.assertTrue(Arrays.equals(solver1.getFrame().getPositions(), solver2.getFrame().getPositions()));
+	}
+	
+	/*
+	 * N elastic substeps of dt / N stay close to a run whose whole step is
+	 * dt / N, over the same simulated time
+	 */
+	@Test
+	public void testSolveElastic_SubstepsMatchSmallerTimeStep() throws Exception
+	{
+		URL url = this.getClass().getResource("/sphModel_elastic_1575.xml");
+		SPHModelInterpreterService modelInterpreter = new SPHModelInterpreterService();
+		SPHModelX model = (SPHModelX) modelInterpreter.readModel(url);
+		
+		int substeps = 2;
+		int cycles = 10;
+		
+		SPHSolverService substepped = new SPHSolverService();
+		substepped.setTimeStep(SPHConstants.TIME_STEP * substeps);
+		substepped.setElasticSubsteps(substeps);
+		substepped.initialize(model);
+		substepped.solve(new TimeConfiguration(0.1f, cycles, 1));
+		
+		SPHSolverService reference = new SPHSolverService();
+		reference.initialize(model);
+		reference.solve(new TimeConfiguration(0.1f, cycles * substeps, 1));
+		
+		SPHFrame frame = substepped.getFrame();
+		float[] positions = frame.getPositions();
+		float[] referencePositions = reference.getFrame().getPositions();
+		int[] ids = frame.getParticleIds();
+		int elastic = 0;
+		float maxDistance = 0f;
+		for (int slot = 0; slot < ids.length; slot++)
+		{
+			if (model.getParticles().get(ids[slot]).getPositionVector().getP() != SPHConstants.ELASTIC_TYPE)
+			{
+				continue;
+			}
+			elastic++;
+			for (int c = 0; c < 3; c++)
+			{
+				int i = slot * SPHFrame.POSITION_SIZE + c;
+				Assert.assertFalse(Float.isNaN(positions[i]));
+				maxDistance = Math.max(maxDistance, Math.abs(positions[i] - referencePositions[i]));
+			}
+		}
+		Assert.assertTrue("Scene has no elastic particles.", elastic > 0);
+		// the fluid part is still integrated at dt, so the runs are only
+		// expected to agree within a fraction of the particle spacing
+		Assert.assertTrue("Substepped elastic particles drifted " + maxDistance + " from the reference", maxDistance < SPHConstants.R0 * 0.5f);
+	}
+	
+	/*
+	 * Producers holding the activation queue keep feeding the solver when
+	 * a model with the same muscles is initialized again
+	 */
+	@Test
+	public void testActivationQueueKeptAcrossInitialize() throws Exception
+	{
+		URL url = this.getClass().getResource("/sphModel_elastic_contractible_7220.xml");
+		SPHModelInterpreterService modelInterpreter = new SPHModelInterpreterService();
+		SPHModelX model = (SPHModelX) modelInterpreter.readModel(url);
+		
+		SPHSolverService solver = new SPHSolverService();
+		solver.initialize(model);
+		ActivationSignalQueue queue = solver.getActivationSignalQueue();
+		Assert.assertTrue(queue.offer(new float[] { 1f }));
+		
+		solver.initialize(model);
+		Assert.assertSame(queue, solver.getActivationSignalQueue());
+		Assert.assertEquals(0, queue.size());
+	}
 }
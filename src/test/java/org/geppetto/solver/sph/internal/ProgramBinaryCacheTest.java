@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011, 2013 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+
+package org.geppetto.solver.sph.internal;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import junit.framework.Assert;
+
+import org.geppetto.solver.sph.ProgramBinaryCache;
+import org.junit.Test;
+
+import com.nativelibs4java.opencl.CLContext;
+import com.nativelibs4java.opencl.CLDevice;
+import com.nativelibs4java.opencl.CLProgram;
+import com.nativelibs4java.opencl.JavaCL;
+
+public class ProgramBinaryCacheTest {
+
+	private static final String SOURCE = "__kernel void increment(__global float * a) { a[get_global_id(0)] += 1.0f; }";
+
+	@Test
+	public void testKeyChanges() {
+		String key = ProgramBinaryCache.getKey("platform|vendor|device|OpenCL 1.2", "1.0", SOURCE, "");
+		Assert.assertEquals(key, ProgramBinaryCache.getKey("platform|vendor|device|OpenCL 1.2", "1.0", SOURCE, ""));
+		Assert.assertEquals(key, ProgramBinaryCache.getKey("platform|vendor|device|OpenCL 1.2", "1.0", SOURCE, null));
+
+		Assert.assertFalse(key.equals(ProgramBinaryCache.getKey("platform|vendor|device|OpenCL 1.2", "1.0", SOURCE, "-D SPH_STATIC_CONSTANTS")));
+		Assert.assertFalse(key.equals(ProgramBinaryCache.getKey("platform|vendor|device|OpenCL 1.2", "1.0", SOURCE + " ", "")));
+		Assert.assertFalse(key.equals(ProgramBinaryCache.getKey("platform|vendor|device|OpenCL 1.2", "1.1", SOURCE, "")));
+		Assert.assertFalse(key.equals(ProgramBinaryCache.getKey("platform|vendor|other|OpenCL 1.2", "1.0", SOURCE, "")));
+	}
+
+	@Test
+	public void testCorruptBinaryIsRebuilt() throws Exception {
+		File dir = Files.createTempDirectory("programs").toFile();
+		String previousDir = System.getProperty(ProgramBinaryCache.CACHE_DIR_PROPERTY);
+		System.setProperty(ProgramBinaryCache.CACHE_DIR_PROPERTY, dir.getPath());
+		CLContext context = JavaCL.createBestContext();
+		try {
+			CLDevice device = context.getDevices()[0];
+			String key = ProgramBinaryCache.getKey(device, SOURCE, "");
+			File binary = new File(dir, key + ".bin");
+			byte[] garbage = { 1, 2, 3, 4 };
+			Files.write(binary.toPath(), garbage);
+			ProgramBinaryCache.clear();
+
+			// the rejected binary is evicted and the program built from source
+			CLProgram program = ProgramBinaryCache.getProgram(context, device, SOURCE, "");
+			Assert.assertNotNull(program.createKernel("increment"));
+			Assert.assertTrue(!binary.exists() || !Arrays.equals(garbage, Files.readAllBytes(binary.toPath())));
+
+			// the memory tier is cleared on its own, the disk tier on request
+			ProgramBinaryCache.clear();
+			Assert.assertNotNull(ProgramBinaryCache.getProgram(context, device, SOURCE, "").createKernel("increment"));
+			ProgramBinaryCache.deleteDiskCache();
+			Assert.assertFalse(binary.exists());
+		} finally {
+			context.release();
+			ProgramBinaryCache.clear();
+			if (previousDir == null) {
+				System.clearProperty(ProgramBinaryCache.CACHE_DIR_PROPERTY);
+			} else {
+				System.setProperty(ProgramBinaryCache.CACHE_DIR_PROPERTY, previousDir);
+			}
+			dir.delete();
+		}
+	}
+}
@@ -109,6 +109,7 @@ public class RecordCheckpointsTest {
 		Assert.assertTrue("1st checkpoint: size of rho buffer doesn't match expected value", firstCheckPoint.rho.size() == bufferSize.get(BuffersEnum.RHO));
 		Assert.assertTrue("1st checkpoint: size of sortedPosition buffer doesn't match expected value", firstCheckPoint.sortedPosition.size() == bufferSize.get(BuffersEnum.SORTED_POSITION));
 		Assert.assertTrue("1st checkpoint: size of sortedVelocity buffer doesn't match expected value", firstCheckPoint.sortedVelocity.size() == bufferSize.get(BuffersEnum.SORTED_VELOCITY));
+		Assert.assertTrue("1st checkpoint: size of sortedTypeNormal buffer doesn't match expected value", firstCheckPoint.sortedTypeNormal.size() == bufferSize.get(BuffersEnum.SORTED_TYPE_NORMAL));
 		Assert.assertTrue("1st checkpoint: size of velocity buffer doesn't match expected value", firstCheckPoint.velocity.size() == bufferSize.get(BuffersEnum.VELOCITY));
 		// no elastic connections in the model loaded
 		Assert.assertTrue("1st checkpoint: elastic connections buffer recordings should be empty but they're not", firstCheckPoint.elasticConnections.isEmpty());
@@ -126,6 +127,7 @@ public class RecordCheckpointsTest {
 		Assert.assertTrue("Last checkpoint: size of rho buffer doesn't match expected value", lastCheckPoint.rho.size() == bufferSize.get(BuffersEnum.RHO));
 		Assert.assertTrue("Last checkpoint: size of sortedPosition buffer doesn't match expected value", lastCheckPoint.sortedPosition.size() == bufferSize.get(BuffersEnum.SORTED_POSITION));
 		Assert.assertTrue("Last checkpoint: size of sortedVelocity buffer doesn't match expected value", lastCheckPoint.sortedVelocity.size() == bufferSize.get(BuffersEnum.SORTED_VELOCITY));
+		Assert.assertTrue("Last checkpoint: size of sortedTypeNormal buffer doesn't match expected value", lastCheckPoint.sortedTypeNormal.size() == bufferSize.get(BuffersEnum.SORTED_TYPE_NORMAL));
 		Assert.assertTrue("Last checkpoint: size of velocity buffer doesn't match expected value", lastCheckPoint.velocity.size() == bufferSize.get(BuffersEnum.VELOCITY));
 		// no elastic connections in the model loaded
 		Assert.assertTrue("Last checkpoint: elastic connections buffer recordings should be empty but they're not", lastCheckPoint.elasticConnections.isEmpty());
@@ -168,6 +170,7 @@ public class RecordCheckpointsTest {
 		Assert.assertTrue("1st checkpoint: size of rho buffer doesn't match expected value", firstCheckPoint.rho.size() == bufferSize.get(BuffersEnum.RHO));
 		Assert.assertTrue("1st checkpoint: size of sortedPosition buffer doesn't match expected value", firstCheckPoint.sortedPosition.size() == bufferSize.get(BuffersEnum.SORTED_POSITION));
 		Assert.assertTrue("1st checkpoint: size of sortedVelocity buffer doesn't match expected value", firstCheckPoint.sortedVelocity.size() == bufferSize.get(BuffersEnum.SORTED_VELOCITY));
+		Assert.assertTrue("1st checkpoint: size of sortedTypeNormal buffer doesn't match expected value", firstCheckPoint.sortedTypeNormal.size() == bufferSize.get(BuffersEnum.SORTED_TYPE_NORMAL));
 		Assert.assertTrue("1st checkpoint: size of velocity buffer doesn't match expected value", firstCheckPoint.velocity.size() == bufferSize.get(BuffersEnum.VELOCITY));
 		// no elastic connections in the model loaded
 		Assert.assertTrue("1st checkpoint: elastic connections buffer recordings should be empty but they're not", firstCheckPoint.elasticConnections.isEmpty());
@@ -185,6 +188,7 @@ public class RecordCheckpointsTest {
 		Assert.assertTrue("Last checkpoint: size of rho buffer doesn't match expected value", lastCheckPoint.rho.size() == bufferSize.get(BuffersEnum.RHO));
 		Assert.assertTrue("Last checkpoint: size of sortedPosition buffer doesn't match expected value", lastCheckPoint.sortedPosition.size() == bufferSize.get(BuffersEnum.SORTED_POSITION));
 		Assert.assertTrue("Last checkpoint: size of sortedVelocity buffer doesn't match expected value", lastCheckPoint.sortedVelocity.size() == bufferSize.get(BuffersEnum.SORTED_VELOCITY));
+		Assert.assertTrue("Last checkpoint: size of sortedTypeNormal buffer doesn't match expected value", lastCheckPoint.sortedTypeNormal.size() == bufferSize.get(BuffersEnum.SORTED_TYPE_NORMAL));
 		Assert.assertTrue("Last checkpoint: size of velocity buffer doesn't match expected value", lastCheckPoint.velocity.size() == bufferSize.get(BuffersEnum.VELOCITY));
 		// no elastic connections in the model loaded
 		Assert.assertTrue("Last checkpoint: elastic connections buffer recordings should be empty but they're not", lastCheckPoint.elasticConnections.isEmpty());
@@ -223,8 +227,11 @@ public class RecordCheckpointsTest {
 		Assert.assertTrue("1st checkpoint: size of rho buffer doesn't match expected value", firstCheckPoint.rho.size() == bufferSize.get(BuffersEnum.RHO));
 		Assert.assertTrue("1st checkpoint: size of sortedPosition buffer doesn't match expected value", firstCheckPoint.sortedPosition.size() == bufferSize.get(BuffersEnum.SORTED_POSITION));
 		Assert.assertTrue("1st checkpoint: size of sortedVelocity buffer doesn't match expected value", firstCheckPoint.sortedVelocity.size() == bufferSize.get(BuffersEnum.SORTED_VELOCITY));
+		Assert.assertTrue("1st checkpoint: size of sortedTypeNormal buffer doesn't match expected value", firstCheckPoint.sortedTypeNormal.size() == bufferSize.get(BuffersEnum.SORTED_TYPE_NORMAL));
 		Assert.assertTrue("1st checkpoint: size of velocity buffer doesn't match expected value", firstCheckPoint.velocity.size() == bufferSize.get(BuffersEnum.VELOCITY));
+		Assert.assertTrue("1st checkpoint: size of elasticConnectionsOffsets buffer doesn't match expected value", firstCheckPoint.elasticConnectionsOffsets.size() == bufferSize.get(BuffersEnum.ELASTIC_CONNECTIONS_OFFSETS));
 		Assert.assertTrue("1st checkpoint: size of elasticConnections buffer doesn't match expected value", firstCheckPoint.elasticConnections.size() == bufferSize.get(BuffersEnum.ELASTIC_CONNECTIONS));
+		Assert.assertTrue("1st checkpoint: size of elasticConnectionsRestLength buffer doesn't match expected value", firstCheckPoint.elasticConnectionsRestLength.size() == bufferSize.get(BuffersEnum.ELASTIC_CONNECTIONS_REST_LENGTH));
 		
 		// check buffer sizes at first and last checkpoints
 		PCISPHCheckPoint lastCheckPoint = checkpoints.get(KernelsEnum.INTEGRATE);
@@ -239,7 +246,10 @@ public class RecordCheckpointsTest {
 		Assert.assertTrue("Last checkpoint: size of rho buffer doesn't match expected value", lastCheckPoint.rho.size() == bufferSize.get(BuffersEnum.RHO));
 		Assert.assertTrue("Last checkpoint: size of sortedPosition buffer doesn't match expected value", lastCheckPoint.sortedPosition.size() == bufferSize.get(BuffersEnum.SORTED_POSITION));
 		Assert.assertTrue("Last checkpoint: size of sortedVelocity buffer doesn't match expected value", lastCheckPoint.sortedVelocity.size() == bufferSize.get(BuffersEnum.SORTED_VELOCITY));
+		Assert.assertTrue("Last checkpoint: size of sortedTypeNormal buffer doesn't match expected value", lastCheckPoint.sortedTypeNormal.size() == bufferSize.get(BuffersEnum.SORTED_TYPE_NORMAL));
 		Assert.assertTrue("Last checkpoint: size of velocity buffer doesn't match expected value", lastCheckPoint.velocity.size() == bufferSize.get(BuffersEnum.VELOCITY));
+		Assert.assertTrue("Last checkpoint: size of elasticConnectionsOffsets buffer doesn't match expected value", lastCheckPoint.elasticConnectionsOffsets.size() == bufferSize.get(BuffersEnum.ELASTIC_CONNECTIONS_OFFSETS));
 		Assert.assertTrue("Last checkpoint: size of elasticConnections buffer doesn't match expected value", lastCheckPoint.elasticConnections.size() == bufferSize.get(BuffersEnum.ELASTIC_CONNECTIONS));
+		Assert.assertTrue("Last checkpoint: size of elasticConnectionsRestLength buffer doesn't match expected value", lastCheckPoint.elasticConnectionsRestLength.size() == bufferSize.get(BuffersEnum.ELASTIC_CONNECTIONS_REST_LENGTH));
 	}
 }
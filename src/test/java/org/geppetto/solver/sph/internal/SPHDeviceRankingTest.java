@@ -0,0 +1,73 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011, 2013 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+
+package org.geppetto.solver.sph.internal;
+
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.geppetto.solver.sph.HardwareProfileEnum;
+import org.geppetto.solver.sph.SPHDeviceRanking;
+import org.geppetto.solver.sph.SPHDeviceRanking.DeviceScore;
+import org.junit.Test;
+
+public class SPHDeviceRankingTest {
+
+	@Test
+	public void testRankingIsSortedFastestFirst() {
+		List<DeviceScore> ranking = SPHDeviceRanking.getRanking();
+		Assert.assertFalse(ranking.isEmpty());
+		for (int i = 0; i < ranking.size(); i++) {
+			DeviceScore score = ranking.get(i);
+			Assert.assertTrue(score.getBandwidth() > 0);
+			Assert.assertTrue(score.getLaunchLatency() > 0);
+			if (i > 0) {
+				Assert.assertTrue(ranking.get(i - 1).getReferenceStepTime() <= score.getReferenceStepTime());
+			}
+		}
+		Assert.assertEquals(ranking.get(0).getDevice(), SPHDeviceRanking.selectDevice(HardwareProfileEnum.AUTO));
+	}
+
+	@Test
+	public void testExplicitSelection() {
+		List<DeviceScore> ranking = SPHDeviceRanking.getRanking();
+		DeviceScore slowest = ranking.get(ranking.size() - 1);
+		try {
+			System.setProperty(SPHDeviceRanking.DEVICE_PROPERTY, slowest.getPlatformIndex() + ":" + slowest.getDeviceIndex());
+			Assert.assertEquals(slowest.getDevice(), SPHDeviceRanking.selectDevice(HardwareProfileEnum.AUTO));
+		} finally {
+			System.clearProperty(SPHDeviceRanking.DEVICE_PROPERTY);
+		}
+	}
+}
@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011, 2013 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+
+package org.geppetto.solver.sph.internal;
+
+import java.net.URL;
+
+import junit.framework.Assert;
+
+import org.geppetto.core.model.IModel;
+import org.geppetto.core.simulation.TimeConfiguration;
+import org.geppetto.model.sph.services.SPHModelInterpreterService;
+import org.geppetto.solver.sph.HardwareProfileEnum;
+import org.geppetto.solver.sph.PCISPHTestUtilities;
+import org.geppetto.solver.sph.SPHDeviceRuntime;
+import org.geppetto.solver.sph.SPHSolverService;
+import org.junit.Test;
+
+public class SPHDeviceRuntimeTest {
+
+	@Test
+	public void testSolversShareContextUntilLastDispose() throws Exception {
+		// solvers left over by other tests must not hold the runtime
+		SPHDeviceRuntime.shutdown();
+
+		SPHSolverService solver1 = new SPHSolverService(HardwareProfileEnum.AUTO);
+		SPHSolverService solver2 = new SPHSolverService(HardwareProfileEnum.AUTO);
+		SPHDeviceRuntime runtime = solver1.getDeviceRuntime();
+		Assert.assertSame(runtime, solver2.getDeviceRuntime());
+		Assert.assertEquals(2, runtime.getSolverCount());
+		Assert.assertSame(runtime.getContext(), solver2.getDeviceRuntime().getContext());
+		Assert.assertSame(runtime.getProgram(""), solver2.getDeviceRuntime().getProgram(""));
+
+		solver1.dispose();
+		Assert.assertNull(solver1.getDeviceRuntime());
+		Assert.assertEquals(1, runtime.getSolverCount());
+		Assert.assertFalse(runtime.isReleased());
+
+		// the remaining solver still runs on the shared context
+		URL url = this.getClass().getResource("/sphModel_15.xml");
+		IModel model = new SPHModelInterpreterService().readModel(url);
+		solver2.initialize(model);
+		PCISPHTestUtilities.checkStateTreeForNaN(solver2.solve(new TimeConfiguration(0.1f, 1, 1)), false);
+
+		solver2.dispose();
+		Assert.assertEquals(0, runtime.getSolverCount());
+		Assert.assertTrue(runtime.isReleased());
+
+		// disposing twice does not release the runtime again
+		solver2.dispose();
+
+		// the next solver gets a fresh context
+		SPHSolverService solver3 = new SPHSolverService(HardwareProfileEnum.AUTO);
+		Assert.assertNotSame(runtime, solver3.getDeviceRuntime());
+		Assert.assertFalse(solver3.getDeviceRuntime().isReleased());
+		solver3.dispose();
+	}
+}
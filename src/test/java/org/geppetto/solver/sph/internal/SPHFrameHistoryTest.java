@@ -0,0 +1,102 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011, 2013 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+
+package org.geppetto.solver.sph.internal;
+
+import junit.framework.Assert;
+
+import org.geppetto.solver.sph.PCISPHTestUtilities;
+import org.geppetto.solver.sph.SPHFrame;
+import org.geppetto.solver.sph.SPHFrameHistory;
+import org.geppetto.solver.sph.SPHFrameSpillStore;
+import org.junit.Test;
+
+public class SPHFrameHistoryTest {
+
+	@Test
+	public void testKeepsLastFrames() {
+		SPHFrameHistory history = new SPHFrameHistory(4, PCISPHTestUtilities.FRAME_PARTICLE_IDS, false);
+		for (int step = 0; step < 10; step++) {
+			history.add(PCISPHTestUtilities.createFrame(step));
+		}
+
+		Assert.assertEquals(4, history.size());
+		Assert.assertEquals(0, history.getSpilledCount());
+		Assert.assertNull(history.getFrame(5));
+		for (int step = 6; step < 10; step++) {
+			SPHFrame kept = history.getFrame(step);
+			Assert.assertEquals(step, kept.getStep());
+			Assert.assertEquals(PCISPHTestUtilities.frameValue(step, 5, false),
+					kept.getPositions()[5]);
+		}
+	}
+
+	@Test
+	public void testSpillsEvictedFrames() {
+		SPHFrameHistory history = new SPHFrameHistory(4, PCISPHTestUtilities.FRAME_PARTICLE_IDS, true);
+		for (int step = 0; step < 10; step++) {
+			history.add(PCISPHTestUtilities.createFrame(step));
+		}
+
+		Assert.assertEquals(4, history.size());
+		Assert.assertEquals(6, history.getSpilledCount());
+		for (int step = 0; step < 10; step++) {
+			SPHFrame kept = history.getFrame(step);
+			Assert.assertEquals(PCISPHTestUtilities.frameValue(step, 11, false),
+					kept.getPositions()[11]);
+		}
+		Assert.assertNull(history.getFrame(10));
+
+		history.clear();
+		Assert.assertEquals(0, history.size());
+		Assert.assertNull(history.getFrame(0));
+	}
+
+	@Test
+	public void testSpillStoreEvictsOldestFrames() {
+		// four bytes short of five frames, one frame per chunk
+		SPHFrameSpillStore store = new SPHFrameSpillStore(4, 76);
+		float[] data = new float[4];
+		for (int step = 0; step < 10; step++) {
+			data[0] = step;
+			store.add(step, data, 0);
+		}
+
+		Assert.assertEquals(4, store.size());
+		Assert.assertEquals(64, store.getByteCount());
+		Assert.assertNull(store.get(5));
+		for (int step = 6; step < 10; step++) {
+			Assert.assertEquals((float) step, store.get(step)[0]);
+		}
+	}
+}
@@ -0,0 +1,129 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011, 2013 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+
+package org.geppetto.solver.sph.internal;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.geppetto.solver.sph.BackpressurePolicyEnum;
+import org.geppetto.solver.sph.PCISPHTestUtilities;
+import org.geppetto.solver.sph.SPHFrame;
+import org.geppetto.solver.sph.SPHFrameListener;
+import org.geppetto.solver.sph.SPHFramePublisher;
+import org.junit.Test;
+
+public class SPHFramePublisherTest {
+
+	private static final int FRAMES = 50;
+
+	/*
+	 * Collects steps, waiting on a gate before the first one to simulate a
+	 * slow client
+	 */
+	private static class SlowListener implements SPHFrameListener {
+		final List<Long> steps = new CopyOnWriteArrayList<Long>();
+		final CountDownLatch gate = new CountDownLatch(1);
+		final CountDownLatch last = new CountDownLatch(1);
+
+		@Override
+		public void frameReady(SPHFrame frame) {
+			try {
+				gate.await();
+			} catch (InterruptedException e) {
+				return;
+			}
+			steps.add(frame.getStep());
+			if (frame.getStep() == FRAMES - 1) {
+				last.countDown();
+			}
+		}
+	}
+
+	private static SlowListener publish(BackpressurePolicyEnum policy) throws InterruptedException {
+		SPHFramePublisher publisher = new SPHFramePublisher();
+		final SlowListener listener = new SlowListener();
+		SPHFramePublisher.Subscription subscription = publisher.subscribe(listener, policy, 4, false);
+
+		if (policy == BackpressurePolicyEnum.BLOCK) {
+			// the producer waits for the client, which has to get going on its own
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						Thread.sleep(100);
+					} catch (InterruptedException e) {
+						// open the gate anyway
+					}
+					listener.gate.countDown();
+				}
+			}.start();
+		}
+		for (int step = 0; step < FRAMES; step++) {
+			publisher.publish(PCISPHTestUtilities.createFrame(step));
+		}
+		listener.gate.countDown();
+
+		Assert.assertTrue(listener.last.await(5, TimeUnit.SECONDS));
+		subscription.unsubscribe();
+		return listener;
+	}
+
+	@Test
+	public void testBlockDeliversEveryFrame() throws InterruptedException {
+		SlowListener listener = publish(BackpressurePolicyEnum.BLOCK);
+		Assert.assertEquals(FRAMES, listener.steps.size());
+		for (int i = 0; i < FRAMES; i++) {
+			Assert.assertEquals(Long.valueOf(i), listener.steps.get(i));
+		}
+	}
+
+	@Test
+	public void testDropOldestKeepsNewestFrames() throws InterruptedException {
+		SlowListener listener = publish(BackpressurePolicyEnum.DROP_OLDEST);
+		// the frame taken before the gate, then the last frames that fit in the queue
+		Assert.assertTrue(listener.steps.size() <= 1 + 4);
+		Assert.assertEquals(Long.valueOf(FRAMES - 1), listener.steps.get(listener.steps.size() - 1));
+	}
+
+	@Test
+	public void testConflateKeepsLatestFrame() throws InterruptedException {
+		SlowListener listener = publish(BackpressurePolicyEnum.CONFLATE);
+		Assert.assertTrue(listener.steps.size() <= 2);
+		Assert.assertEquals(Long.valueOf(FRAMES - 1), listener.steps.get(listener.steps.size() - 1));
+	}
+}
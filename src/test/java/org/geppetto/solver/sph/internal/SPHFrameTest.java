@@ -0,0 +1,73 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011, 2013 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+
+
+package org.geppetto.solver.sph.internal;
+
+import java.util.Arrays;
+
+import junit.framework.Assert;
+
+import org.geppetto.solver.sph.SPHFrame;
+import org.junit.Test;
+
+public class SPHFrameTest {
+
+	private static final int[] PARTICLE_IDS = { 2, 5, 9 };
+
+	@Test
+	public void testApplyDelta() {
+		float[] positions = { 0, 0, 0, 1, 1, 1, 1, 1, 2, 2, 2, 1 };
+		SPHFrame keyframe = new SPHFrame(4, positions, PARTICLE_IDS);
+		Assert.assertTrue(keyframe.isKeyframe());
+
+		SPHFrame delta = SPHFrame.delta(5, new float[] { 7, 8, 9, 1 },
+				new int[] { 9 });
+		Assert.assertFalse(delta.isKeyframe());
+		Assert.assertEquals(1, delta.getParticleCount());
+
+		SPHFrame applied = keyframe.apply(delta);
+		Assert.assertTrue(applied.isKeyframe());
+		Assert.assertEquals(5, applied.getStep());
+		Assert.assertTrue(Arrays.equals(new float[] { 0, 0, 0, 1, 1, 1, 1, 1,
+				7, 8, 9, 1 }, applied.getPositions()));
+		// the keyframe itself is left alone
+		Assert.assertEquals(2f, keyframe.getPositions()[8]);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testApplyDeltaOfUnknownParticle() {
+		SPHFrame keyframe = new SPHFrame(0, new float[12], PARTICLE_IDS);
+		keyframe.apply(SPHFrame.delta(1, new float[4], new int[] { 3 }));
+	}
+}
@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011, 2013 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+
+package org.geppetto.solver.sph.internal;
+
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.geppetto.solver.sph.SPHIndexSort;
+import org.junit.Test;
+
+public class SPHIndexSortTest {
+
+	@Test
+	public void testMatchesStableSortByCell() {
+		Random random = new Random(7);
+		int count = 5000;
+		// pairs past the count are left alone
+		IntBuffer pairs = IntBuffer.allocate(count * 2 + 4);
+		List<int[]> expected = new ArrayList<int[]>();
+		for (int particle = 0; particle < count; particle++) {
+			int cell = random.nextInt(300);
+			pairs.put(cell).put(particle);
+			expected.add(new int[] { cell, particle });
+		}
+		pairs.put(-7).put(-7).put(-7).put(-7);
+
+		Collections.sort(expected, new Comparator<int[]>() {
+			@Override
+			public int compare(int[] o1, int[] o2) {
+				return o1[0] < o2[0] ? -1 : (o1[0] > o2[0] ? 1 : 0);
+			}
+		});
+		SPHIndexSort.sort(pairs, count);
+
+		for (int i = 0; i < count; i++) {
+			Assert.assertEquals(expected.get(i)[0], pairs.get(2 * i));
+			Assert.assertEquals(expected.get(i)[1], pairs.get(2 * i + 1));
+		}
+		Assert.assertEquals(-7, pairs.get(count * 2 + 3));
+	}
+
+	@Test
+	public void testSortedAndSingleCell() {
+		IntBuffer pairs = IntBuffer.allocate(200);
+		for (int particle = 0; particle < 100; particle++) {
+			pairs.put(2 * particle, 3);
+			pairs.put(2 * particle + 1, particle);
+		}
+		SPHIndexSort.sort(pairs, 100);
+		for (int particle = 0; particle < 100; particle++) {
+			Assert.assertEquals(particle, pairs.get(2 * particle + 1));
+		}
+
+		SPHIndexSort.sort(pairs, 0);
+		SPHIndexSort.sort(pairs, 1);
+		Assert.assertEquals(0, pairs.get(1));
+	}
+}
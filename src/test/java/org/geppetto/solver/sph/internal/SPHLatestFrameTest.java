@@ -0,0 +1,129 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011, 2013 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+
+package org.geppetto.solver.sph.internal;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.Assert;
+
+import org.geppetto.solver.sph.PCISPHTestUtilities;
+import org.geppetto.solver.sph.SPHFrame;
+import org.geppetto.solver.sph.SPHLatestFrame;
+import org.junit.Test;
+
+public class SPHLatestFrameTest {
+
+	private static final int[] PARTICLE_IDS = new int[256];
+
+	@Test
+	public void testHeldFrameIsNeverRecycled() {
+		SPHLatestFrame latest = new SPHLatestFrame();
+		Assert.assertNull(latest.acquire());
+
+		latest.publish(PCISPHTestUtilities.createFrame(1, PARTICLE_IDS));
+		SPHLatestFrame.Slot held = latest.acquire();
+		for (int step = 2; step < 10; step++) {
+			latest.publish(PCISPHTestUtilities.createFrame(step, PARTICLE_IDS));
+		}
+		Assert.assertEquals(1, held.getFrame().getStep());
+		Assert.assertEquals(PCISPHTestUtilities.frameValue(1, 100, false),
+				held.getFrame().getPositions()[100]);
+		Assert.assertEquals(PCISPHTestUtilities.frameValue(1, 100, true),
+				held.getFrame().getVelocities()[100]);
+		held.release();
+
+		SPHLatestFrame.Slot slot = latest.acquire();
+		Assert.assertEquals(9, slot.getFrame().getStep());
+		slot.release();
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testDoubleReleaseFails() {
+		SPHLatestFrame latest = new SPHLatestFrame();
+		latest.publish(PCISPHTestUtilities.createFrame(1, PARTICLE_IDS));
+		SPHLatestFrame.Slot slot = latest.acquire();
+		slot.release();
+		slot.release();
+	}
+
+	@Test
+	public void testConcurrentReadersSeeWholeFrames() throws InterruptedException {
+		final SPHLatestFrame latest = new SPHLatestFrame();
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final AtomicReference<String> failure = new AtomicReference<String>();
+
+		Thread[] readers = new Thread[4];
+		for (int r = 0; r < readers.length; r++) {
+			readers[r] = new Thread() {
+				@Override
+				public void run() {
+					long lastStep = -1;
+					while (running.get()) {
+						SPHLatestFrame.Slot slot = latest.acquire();
+						if (slot == null) {
+							continue;
+						}
+						try {
+							SPHFrame frame = slot.getFrame();
+							float[] positions = frame.getPositions();
+							for (int i = 0; i < positions.length; i++) {
+								if (positions[i] != PCISPHTestUtilities.frameValue(
+										frame.getStep(), i, false)) {
+									failure.set("torn frame at step " + frame.getStep());
+								}
+							}
+							if (frame.getStep() < lastStep) {
+								failure.set("went back from step " + lastStep);
+							}
+							lastStep = frame.getStep();
+						} finally {
+							slot.release();
+						}
+					}
+				}
+			};
+			readers[r].start();
+		}
+
+		for (int step = 0; step < 20000; step++) {
+			latest.publish(PCISPHTestUtilities.createFrame(step, PARTICLE_IDS));
+		}
+		running.set(false);
+		for (Thread reader : readers) {
+			reader.join();
+		}
+		Assert.assertNull(failure.get());
+	}
+}
@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011, 2013 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+
+package org.geppetto.solver.sph.internal;
+
+import junit.framework.Assert;
+
+import org.geppetto.solver.sph.BuffersEnum;
+import org.geppetto.solver.sph.SPHMemoryPlan;
+import org.junit.Test;
+
+public class SPHMemoryPlanTest {
+
+	private static final long MB = 1024 * 1024;
+
+	@Test
+	public void testBuffersAreAligned() {
+		SPHMemoryPlan plan = new SPHMemoryPlan(64 * MB, 16 * MB, 128, 0);
+		plan.add(BuffersEnum.POSITION, 100);
+		plan.add(BuffersEnum.VELOCITY, 256);
+		plan.add(BuffersEnum.RHO, 4);
+
+		Assert.assertEquals(0, plan.getOffset(BuffersEnum.POSITION));
+		Assert.assertEquals(128, plan.getOffset(BuffersEnum.VELOCITY));
+		Assert.assertEquals(384, plan.getOffset(BuffersEnum.RHO));
+		Assert.assertEquals(388, plan.getTotalBytes());
+		Assert.assertEquals(64 * MB - 388, plan.getHeadroom());
+		Assert.assertTrue(plan.isArena());
+		plan.check();
+	}
+
+	@Test
+	public void testFallsBackToSeparateBuffers() {
+		SPHMemoryPlan plan = new SPHMemoryPlan(64 * MB, 16 * MB, 128, 0);
+		plan.add(BuffersEnum.POSITION, 10 * MB);
+		plan.add(BuffersEnum.VELOCITY, 10 * MB);
+
+		Assert.assertFalse(plan.isArena());
+		plan.check();
+	}
+
+	@Test
+	public void testNoArenaWithoutSubBuffers() {
+		SPHMemoryPlan plan = new SPHMemoryPlan(64 * MB, 16 * MB, 128, 0, false);
+		plan.add(BuffersEnum.POSITION, 100);
+		plan.add(BuffersEnum.VELOCITY, 256);
+
+		Assert.assertFalse(plan.isArena());
+		plan.check();
+
+		Assert.assertFalse(SPHMemoryPlan.isOpenCL11("OpenCL 1.0 CUDA"));
+		Assert.assertTrue(SPHMemoryPlan.isOpenCL11("OpenCL 1.1 "));
+		Assert.assertTrue(SPHMemoryPlan.isOpenCL11("OpenCL 2.0 AMD-APP (1800.8)"));
+		Assert.assertFalse(SPHMemoryPlan.isOpenCL11(null));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBufferOverMaxAllocation() {
+		SPHMemoryPlan plan = new SPHMemoryPlan(64 * MB, 16 * MB, 128, 0);
+		plan.add(BuffersEnum.POSITION, 20 * MB);
+		plan.check();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testOverGlobalMemory() {
+		SPHMemoryPlan plan = new SPHMemoryPlan(64 * MB, 16 * MB, 128, 50 * MB);
+		plan.add(BuffersEnum.POSITION, 10 * MB);
+		plan.add(BuffersEnum.VELOCITY, 10 * MB);
+		plan.check();
+	}
+}
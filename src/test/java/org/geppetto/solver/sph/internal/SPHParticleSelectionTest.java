@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011, 2013 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+
+
+package org.geppetto.solver.sph.internal;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+import junit.framework.Assert;
+
+import org.geppetto.model.sph.common.SPHConstants;
+import org.geppetto.solver.sph.SPHParticleSelection;
+import org.geppetto.solver.sph.SPHScene;
+import org.junit.Test;
+
+public class SPHParticleSelectionTest {
+
+	private static final float[] TYPES = { SPHConstants.BOUNDARY_TYPE,
+			SPHConstants.LIQUID_TYPE, SPHConstants.ELASTIC_TYPE,
+			SPHConstants.BOUNDARY_TYPE, SPHConstants.ELASTIC_TYPE,
+			SPHConstants.LIQUID_TYPE };
+
+	private static SPHScene scene() {
+		float[] positions = new float[TYPES.length * SPHScene.POSITION_SIZE];
+		for (int i = 0; i < TYPES.length; i++) {
+			positions[i * SPHScene.POSITION_SIZE + 3] = TYPES[i];
+		}
+		return new SPHScene("selection", 0, 1, 0, 1, 0, 1, 0,
+				FloatBuffer.wrap(positions),
+				FloatBuffer.wrap(new float[positions.length]),
+				FloatBuffer.wrap(new float[0]));
+	}
+
+	@Test
+	public void testMovingLeavesOutBoundary() {
+		int[] ids = SPHParticleSelection.moving().resolve(scene());
+		Assert.assertTrue(Arrays.equals(new int[] { 1, 2, 4, 5 }, ids));
+	}
+
+	@Test
+	public void testByType() {
+		int[] ids = SPHParticleSelection.byType(SPHConstants.ELASTIC_TYPE)
+				.resolve(scene());
+		Assert.assertTrue(Arrays.equals(new int[] { 2, 4 }, ids));
+	}
+
+	@Test
+	public void testByIdsSortedAndUnique() {
+		int[] ids = SPHParticleSelection.byIds(5, 0, 5, 3).resolve(scene());
+		Assert.assertTrue(Arrays.equals(new int[] { 0, 3, 5 }, ids));
+	}
+
+	@Test
+	public void testByMask() {
+		boolean[] mask = { false, true, false, true };
+		int[] ids = SPHParticleSelection.byMask(mask).resolve(scene());
+		Assert.assertTrue(Arrays.equals(new int[] { 1, 3 }, ids));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testIdOutsideScene() {
+		SPHParticleSelection.byIds(6).resolve(scene());
+	}
+}
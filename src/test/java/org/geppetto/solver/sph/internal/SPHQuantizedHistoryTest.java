@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011, 2013 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+
+package org.geppetto.solver.sph.internal;
+
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.geppetto.solver.sph.SPHFrame;
+import org.geppetto.solver.sph.SPHQuantizedHistory;
+import org.junit.Test;
+
+public class SPHQuantizedHistoryTest {
+
+	private static final int PARTICLES = 1000;
+	private static final int FRAMES = 100;
+
+	@Test
+	public void testRandomAccessWithinResolution() {
+		int[] ids = new int[PARTICLES];
+		for (int i = 0; i < PARTICLES; i++) {
+			ids[i] = i * 2;
+		}
+
+		// particles drifting a little at every step, well within the bounds
+		Random random = new Random(7);
+		float[][] frames = new float[FRAMES][];
+		float[] positions = new float[PARTICLES * SPHFrame.POSITION_SIZE];
+		for (int i = 0; i < PARTICLES; i++) {
+			positions[i * 4] = 1 + random.nextFloat() * 98;
+			positions[i * 4 + 1] = 1 + random.nextFloat() * 48;
+			positions[i * 4 + 2] = 1 + random.nextFloat() * 18;
+			positions[i * 4 + 3] = i % 2 == 0 ? 1.1f : 2.1f;
+		}
+
+		SPHQuantizedHistory history = new SPHQuantizedHistory(ids, 0, 100, 0, 50, 0, 20);
+		for (int f = 0; f < FRAMES; f++) {
+			for (int i = 0; i < PARTICLES; i++) {
+				for (int c = 0; c < 3; c++) {
+					positions[i * 4 + c] += (random.nextFloat() - 0.5f) * 0.01f;
+				}
+			}
+			frames[f] = positions.clone();
+			history.add(new SPHFrame(10 + f, frames[f], ids));
+		}
+
+		Assert.assertEquals(FRAMES, history.size());
+		float tolerance = history.getResolution() * 1.01f;
+		for (int f : new int[] { 0, 1, 31, 32, 33, 64, 99 }) {
+			SPHFrame frame = history.getFrame(f);
+			Assert.assertEquals(10 + f, frame.getStep());
+			Assert.assertSame(ids, frame.getParticleIds());
+			for (int i = 0; i < frames[f].length; i++) {
+				Assert.assertEquals(frames[f][i], frame.getPositions()[i], tolerance);
+			}
+		}
+		Assert.assertNotNull(history.getFrameAtStep(50));
+		Assert.assertNull(history.getFrameAtStep(10 + FRAMES));
+
+		// about a byte per coordinate, against 16 bytes per particle as floats and
+		// several times that as FloatValues in a state tree
+		long rawBytes = (long) FRAMES * PARTICLES * SPHFrame.POSITION_SIZE * 4;
+		Assert.assertTrue(history.getByteCount() * 4 < rawBytes);
+	}
+}
@@ -0,0 +1,148 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011, 2013 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+
+package org.geppetto.solver.sph.internal;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.FloatBuffer;
+import java.nio.file.Files;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.Assert;
+
+import org.geppetto.model.sph.services.SPHModelInterpreterService;
+import org.geppetto.model.sph.x.SPHModelX;
+import org.geppetto.solver.sph.SPHScene;
+import org.geppetto.solver.sph.SPHSceneFile;
+import org.junit.Test;
+
+public class SPHSceneFileTest {
+
+	@Test
+	public void testWriteAndRead() throws Exception {
+		float[] positions = { 1f, 2f, 3f, 3.1f, 4f, 5f, 6f, 2.1f };
+		float[] velocities = { 0f, 0.5f, 0f, 3.1f, 0f, -0.5f, 0f, 2.1f };
+		float[] connections = { 1f, 0.75f, 2f };
+		SPHScene scene = new SPHScene("test", 0f, 10f, -1f, 11f, 0f, 12f, 3, FloatBuffer.wrap(positions), FloatBuffer.wrap(velocities), FloatBuffer.wrap(connections));
+		
+		File file = File.createTempFile("scene", SPHSceneFile.EXTENSION);
+		file.deleteOnExit();
+		SPHSceneFile.write(scene, file);
+		Assert.assertEquals(SPHSceneFile.HEADER_SIZE + (positions.length + velocities.length + connections.length) * 4, file.length());
+		
+		SPHScene read = SPHSceneFile.read(file);
+		Assert.assertEquals(file.getName().replace(SPHSceneFile.EXTENSION, ""), read.getId());
+		Assert.assertEquals(-1f, read.getYMin(), 0f);
+		Assert.assertEquals(12f, read.getZMax(), 0f);
+		Assert.assertEquals(3, read.getElasticBundles());
+		Assert.assertEquals(2, read.getParticleCount());
+		Assert.assertEquals(1, read.getConnectionCount());
+		for (int i = 0; i < positions.length; i++) {
+			Assert.assertEquals(positions[i], read.getPositions().get(i), 0f);
+			Assert.assertEquals(velocities[i], read.getVelocities().get(i), 0f);
+		}
+		for (int i = 0; i < connections.length; i++) {
+			Assert.assertEquals(connections[i], read.getConnections().get(i), 0f);
+		}
+	}
+	
+	@Test
+	public void testConvertModel() throws Exception {
+		URL url = this.getClass().getResource("/sphModel_elastic_1575.xml");
+		SPHModelX model = (SPHModelX) new SPHModelInterpreterService().readModel(url);
+		
+		File file = File.createTempFile("sphModel_elastic_1575", SPHSceneFile.EXTENSION);
+		file.deleteOnExit();
+		SPHSceneFile.convert(url, file);
+		
+		SPHScene scene = SPHSceneFile.read(file);
+		Assert.assertEquals(model.getNumberOfParticles(), scene.getParticleCount());
+		Assert.assertEquals(model.getConnections().size(), scene.getConnectionCount());
+		Assert.assertEquals(model.getXMax(), scene.getXMax(), 0f);
+		for (int i = 0; i < scene.getParticleCount(); i++) {
+			Assert.assertEquals(model.getParticles().get(i).getPositionVector().getP(), scene.getPositions().get(i * SPHScene.POSITION_SIZE + 3), 0f);
+		}
+	}
+	
+	/*
+	 * Scenes packaged in a bundle or jar are not files, they are streamed
+	 */
+	@Test
+	public void testLoadFromJar() throws Exception {
+		float[] positions = { 1f, 2f, 3f, 3.1f, 4f, 5f, 6f, 2.1f };
+		float[] velocities = { 0f, 0.5f, 0f, 3.1f, 0f, -0.5f, 0f, 2.1f };
+		float[] connections = { 1f, 0.75f, 2f };
+		SPHScene scene = new SPHScene("test", 0f, 10f, -1f, 11f, 0f, 12f, 3, FloatBuffer.wrap(positions), FloatBuffer.wrap(velocities), FloatBuffer.wrap(connections));
+		
+		File file = File.createTempFile("scene", SPHSceneFile.EXTENSION);
+		file.deleteOnExit();
+		SPHSceneFile.write(scene, file);
+		File jar = File.createTempFile("scenes", ".jar");
+		jar.deleteOnExit();
+		ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar));
+		out.putNextEntry(new ZipEntry("scenes/worm" + SPHSceneFile.EXTENSION));
+		out.write(Files.readAllBytes(file.toPath()));
+		out.closeEntry();
+		out.close();
+		
+		SPHScene read = SPHSceneFile.load(new URL("jar:" + jar.toURI() + "!/scenes/worm" + SPHSceneFile.EXTENSION));
+		Assert.assertEquals("worm", read.getId());
+		Assert.assertEquals(12f, read.getZMax(), 0f);
+		Assert.assertEquals(3, read.getElasticBundles());
+		Assert.assertEquals(2, read.getParticleCount());
+		Assert.assertEquals(1, read.getConnectionCount());
+		for (int i = 0; i < positions.length; i++) {
+			Assert.assertEquals(positions[i], read.getPositions().get(i), 0f);
+			Assert.assertEquals(velocities[i], read.getVelocities().get(i), 0f);
+		}
+		for (int i = 0; i < connections.length; i++) {
+			Assert.assertEquals(connections[i], read.getConnections().get(i), 0f);
+		}
+	}
+	
+	@Test(expected = IOException.class)
+	public void testCorruptedFile() throws Exception {
+		File file = File.createTempFile("corrupted", SPHSceneFile.EXTENSION);
+		file.deleteOnExit();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.write(new byte[SPHSceneFile.HEADER_SIZE]);
+		raf.close();
+		
+		SPHSceneFile.read(file);
+	}
+}
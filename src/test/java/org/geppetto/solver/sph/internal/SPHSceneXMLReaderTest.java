@@ -0,0 +1,111 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011, 2013 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+
+package org.geppetto.solver.sph.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.URL;
+
+import junit.framework.Assert;
+
+import org.geppetto.model.sph.Connection;
+import org.geppetto.model.sph.services.SPHModelInterpreterService;
+import org.geppetto.model.sph.x.SPHModelX;
+import org.geppetto.solver.sph.SPHScene;
+import org.geppetto.solver.sph.SPHSceneXMLReader;
+import org.junit.Test;
+
+public class SPHSceneXMLReaderTest {
+
+	@Test
+	public void testMatchesModelInterpreter() throws Exception {
+		URL url = this.getClass().getResource("/sphModel_elastic_contractible_7220.xml");
+		SPHModelX model = (SPHModelX) new SPHModelInterpreterService().readModel(url);
+		SPHScene scene = SPHSceneXMLReader.read(url);
+		
+		Assert.assertEquals("sphModel_elastic_contractible_7220", scene.getId());
+		Assert.assertEquals(model.getXMin(), scene.getXMin(), 0f);
+		Assert.assertEquals(model.getXMax(), scene.getXMax(), 0f);
+		Assert.assertEquals(model.getYMax(), scene.getYMax(), 0f);
+		Assert.assertEquals(model.getZMax(), scene.getZMax(), 0f);
+		Assert.assertEquals(model.getElasticBundles().intValue(), scene.getElasticBundles());
+		Assert.assertEquals(model.getNumberOfParticles(), scene.getParticleCount());
+		Assert.assertEquals(model.getConnections().size(), scene.getConnectionCount());
+		
+		SPHScene flattened = SPHScene.fromModel(model);
+		for (int i = 0; i < scene.getParticleCount() * SPHScene.POSITION_SIZE; i++) {
+			Assert.assertEquals("Position mismatch at " + i, flattened.getPositions().get(i), scene.getPositions().get(i), 0f);
+			Assert.assertEquals("Velocity mismatch at " + i, flattened.getVelocities().get(i), scene.getVelocities().get(i), 0f);
+		}
+		
+		int index = 0;
+		for (Connection conn : model.getConnections()) {
+			Assert.assertEquals(conn.getP1(), scene.getConnections().get(index), 0f);
+			Assert.assertEquals(conn.getDistance(), scene.getConnections().get(index + 1), 0f);
+			Assert.assertEquals(conn.getMysteryValue(), scene.getConnections().get(index + 2), 0f);
+			index += SPHScene.CONNECTION_SIZE;
+		}
+	}
+	
+	@Test
+	public void testModelWithoutConnections() throws Exception {
+		URL url = this.getClass().getResource("/sphModel_15.xml");
+		SPHScene scene = SPHSceneXMLReader.read(url);
+		
+		Assert.assertEquals(311, scene.getParticleCount());
+		Assert.assertEquals(0, scene.getConnectionCount());
+		Assert.assertEquals(0, scene.getElasticBundles());
+		Assert.assertEquals(11.69f, scene.getXMax(), 0f);
+	}
+	
+	@Test(expected = IOException.class)
+	public void testExternalEntitiesAreNotResolved() throws Exception {
+		File secret = File.createTempFile("secret", ".txt");
+		secret.deleteOnExit();
+		FileWriter writer = new FileWriter(secret);
+		try {
+			writer.write("12.5");
+		} finally {
+			writer.close();
+		}
+		
+		String xml = "<?xml version=\"1.0\"?>"
+				+ "<!DOCTYPE SPHModel [<!ENTITY ext SYSTEM \"" + secret.toURI() + "\">]>"
+				+ "<SPHModel xMax=\"1.0\"><connections><p1>&ext;</p1></connections></SPHModel>";
+		SPHScene scene = SPHSceneXMLReader.read(new ByteArrayInputStream(xml.getBytes("UTF-8")), "xxe");
+		Assert.assertFalse(scene.getConnections().get(0) == 12.5f);
+	}
+}
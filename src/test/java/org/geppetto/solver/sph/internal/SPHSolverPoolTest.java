@@ -0,0 +1,224 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011, 2013 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+
+package org.geppetto.solver.sph.internal;
+
+import java.net.URL;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.Assert;
+
+import org.geppetto.core.model.state.StateTreeRoot;
+import org.geppetto.core.simulation.TimeConfiguration;
+import org.geppetto.model.sph.common.SPHConstants;
+import org.geppetto.model.sph.services.SPHModelInterpreterService;
+import org.geppetto.model.sph.x.SPHModelX;
+import org.geppetto.solver.sph.BufferAllocationEnum;
+import org.geppetto.solver.sph.HardwareProfileEnum;
+import org.geppetto.solver.sph.PCISPHTestUtilities;
+import org.geppetto.solver.sph.SPHParticleSelection;
+import org.geppetto.solver.sph.SPHSolverPool;
+import org.geppetto.solver.sph.SPHSolverService;
+import org.junit.Test;
+
+public class SPHSolverPoolTest {
+
+	@Test
+	public void testDisposeChecksSolverBackIn() throws Exception {
+		SPHSolverPool pool = new SPHSolverPool(HardwareProfileEnum.GPU, 1, 2, 1024, 4096);
+		Assert.assertEquals(1, pool.getIdleCount());
+		
+		SPHModelInterpreterService modelInterpreter = new SPHModelInterpreterService();
+		URL url = this.getClass().getResource("/sphModel_15.xml");
+		SPHModelX model = (SPHModelX) modelInterpreter.readModel(url);
+		
+		SPHSolverService solver = pool.acquire();
+		Assert.assertEquals(0, pool.getIdleCount());
+		solver.initialize(model);
+		StateTreeRoot stateSet = solver.solve(new TimeConfiguration(0.1f, 1, 1));
+		PCISPHTestUtilities.checkStateTreeForNaN(stateSet, false);
+		solver.dispose();
+		Assert.assertEquals(1, pool.getIdleCount());
+		
+		// the same solver comes back and runs a different scene on the same buffers
+		SPHSolverService reused = pool.acquire();
+		Assert.assertSame(solver, reused);
+		url = this.getClass().getResource("/sphModel_elastic_1575.xml");
+		model = (SPHModelX) modelInterpreter.readModel(url);
+		reused.initialize(model);
+		stateSet = reused.solve(new TimeConfiguration(0.1f, 1, 1));
+		PCISPHTestUtilities.checkStateTreeForNaN(stateSet, false);
+		Assert.assertTrue("Particle count doesn't match.", stateSet.getChildren().size() == PCISPHTestUtilities.countNonBoundaryParticles(model));
+		
+		// a second concurrent session gets a fresh solver
+		SPHSolverService other = pool.acquire();
+		Assert.assertNotSame(reused, other);
+		Assert.assertEquals(2, pool.getSolverCount());
+		
+		reused.dispose();
+		other.dispose();
+		Assert.assertEquals(1, pool.getIdleCount());
+		Assert.assertEquals(1, pool.getSolverCount());
+		pool.shutdown();
+		Assert.assertEquals(0, pool.getIdleCount());
+	}
+
+	@Test
+	public void testDisposeRestoresDefaults() throws Exception {
+		SPHSolverPool pool = new SPHSolverPool(HardwareProfileEnum.GPU, 1, 1024, 4096);
+		
+		SPHModelInterpreterService modelInterpreter = new SPHModelInterpreterService();
+		URL url = this.getClass().getResource("/sphModel_15.xml");
+		SPHModelX model = (SPHModelX) modelInterpreter.readModel(url);
+		
+		SPHSolverService solver = pool.acquire();
+		BufferAllocationEnum defaultAllocation = solver.getBufferAllocation();
+		solver.setStaticConstants(true);
+		solver.setTimeStep(SPHConstants.TIME_STEP * 2);
+		solver.setElasticSubsteps(4);
+		solver.setDeltaReadback(0.01f, 5);
+		solver.setOutputSelection(SPHParticleSelection.byIds(0, 1));
+		solver.setBufferAllocation(defaultAllocation == BufferAllocationEnum.DEVICE ? BufferAllocationEnum.HOST_POINTER : BufferAllocationEnum.DEVICE);
+		solver.initialize(model);
+		solver.solve(new TimeConfiguration(0.1f, 1, 1));
+		solver.dispose();
+		
+		SPHSolverService reused = pool.acquire();
+		Assert.assertSame(solver, reused);
+		Assert.assertFalse(reused.isStaticConstants());
+		Assert.assertEquals(SPHConstants.TIME_STEP, reused.getTimeStep());
+		Assert.assertEquals(1, reused.getElasticSubsteps());
+		Assert.assertFalse(reused.isDeltaReadback());
+		
+		// the next session sees all moving particles again
+		reused.initialize(model);
+		Assert.assertEquals(PCISPHTestUtilities.countNonBoundaryParticles(model), reused.getFrame().getParticleCount());
+		Assert.assertEquals(defaultAllocation, reused.getBufferAllocation());
+		Assert.assertTrue(reused.getParticleCapacity() >= 1024);
+		
+		reused.dispose();
+		pool.shutdown();
+	}
+	
+	@Test
+	public void testDisposeTwice() throws Exception {
+		SPHSolverPool pool = new SPHSolverPool(HardwareProfileEnum.GPU, 2, 1024, 4096);
+		
+		SPHSolverService solver = pool.acquire();
+		Assert.assertEquals(1, pool.getIdleCount());
+		solver.dispose();
+		solver.dispose();
+		Assert.assertEquals(2, pool.getIdleCount());
+		
+		// the solver is handed out once only
+		Assert.assertNotSame(pool.acquire(), pool.acquire());
+		pool.shutdown();
+	}
+	
+	@Test
+	public void testConcurrentSessionsNeverShareSolvers() throws Exception {
+		final SPHSolverPool pool = new SPHSolverPool(HardwareProfileEnum.GPU, 1, 2, 1024, 4096);
+		final Set<SPHSolverService> inUse = Collections.newSetFromMap(new ConcurrentHashMap<SPHSolverService, Boolean>());
+		final AtomicReference<String> failure = new AtomicReference<String>();
+		
+		Thread[] sessions = new Thread[2];
+		for (int t = 0; t < sessions.length; t++) {
+			sessions[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < 50; i++) {
+							SPHSolverService solver = pool.acquire();
+							if (!inUse.add(solver)) {
+								failure.set("solver handed out twice");
+							}
+							if (pool.getSolverCount() > 2) {
+								failure.set("pool grew past its maximum size");
+							}
+							solver.startWatch();
+							solver.stopWatch();
+							inUse.remove(solver);
+							solver.dispose();
+						}
+					} catch (Exception e) {
+						failure.set(e.toString());
+					}
+				}
+			};
+			sessions[t].start();
+		}
+		for (Thread session : sessions) {
+			session.join();
+		}
+		Assert.assertNull(failure.get());
+		pool.shutdown();
+	}
+	
+	@Test
+	public void testDisposedSolverRefusesOldThread() throws Exception {
+		final SPHSolverPool pool = new SPHSolverPool(HardwareProfileEnum.GPU, 1, 1024, 4096);
+		SPHSolverService solver = pool.acquire();
+		solver.dispose();
+		
+		// another thread gets the same solver, like a thread scoped bean
+		// of a different request thread would
+		final AtomicReference<SPHSolverService> other = new AtomicReference<SPHSolverService>();
+		Thread session = new Thread() {
+			@Override
+			public void run() {
+				try {
+					other.set(pool.acquire());
+				} catch (Exception e) {
+					// other stays null
+				}
+			}
+		};
+		session.start();
+		session.join();
+		Assert.assertSame(solver, other.get());
+		
+		try {
+			solver.startWatch();
+			Assert.fail("disposed solver used by its old thread");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		// disposing again from the old thread does not check it back in
+		solver.dispose();
+		Assert.assertEquals(0, pool.getIdleCount());
+		pool.shutdown();
+	}
+}
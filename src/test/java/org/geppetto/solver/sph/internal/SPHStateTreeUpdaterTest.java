@@ -0,0 +1,185 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011, 2013 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+
+package org.geppetto.solver.sph.internal;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.geppetto.core.model.state.CompositeStateNode;
+import org.geppetto.core.model.state.SimpleStateNode;
+import org.geppetto.core.model.values.AValue;
+import org.geppetto.core.model.values.ValuesFactory;
+import org.geppetto.model.sph.services.SPHModelInterpreterService;
+import org.geppetto.solver.sph.PCISPHTestUtilities;
+import org.geppetto.solver.sph.SPHFrame;
+import org.geppetto.solver.sph.SPHStateTreeUpdater;
+import org.junit.Test;
+
+public class SPHStateTreeUpdaterTest {
+
+	private static final String[] COORDINATES = { "x", "y", "z", "p" };
+
+	/*
+	 * Particle nodes as the solver creates them, one value per leaf
+	 */
+	private static CompositeStateNode createTree(int[] particleIds) {
+		CompositeStateNode modelTree = new CompositeStateNode("MODEL_TREE");
+		for (int id : particleIds) {
+			CompositeStateNode particle = new CompositeStateNode(SPHModelInterpreterService.getParticleId(id));
+			modelTree.addChild(particle);
+			CompositeStateNode pos = new CompositeStateNode("pos");
+			particle.addChild(pos);
+			for (String coordinate : COORDINATES) {
+				SimpleStateNode leaf = new SimpleStateNode(coordinate);
+				leaf.addValue(ValuesFactory.getFloatValue(-1));
+				pos.addChild(leaf);
+			}
+		}
+		return modelTree;
+	}
+
+	/*
+	 * Frame slot of every scene particle, -1 for the ones out of the frame
+	 */
+	private static int[] createSlots(int[] frameParticleIds, int sceneParticles) {
+		int[] slots = new int[sceneParticles];
+		Arrays.fill(slots, -1);
+		for (int slot = 0; slot < frameParticleIds.length; slot++) {
+			slots[frameParticleIds[slot]] = slot;
+		}
+		return slots;
+	}
+
+	private static List<AValue> getValues(CompositeStateNode modelTree, int particle, int coordinate) {
+		CompositeStateNode pos = (CompositeStateNode) ((CompositeStateNode) modelTree.getChildren().get(particle)).getChildren().get(0);
+		return ((SimpleStateNode) pos.getChildren().get(coordinate)).getValues();
+	}
+
+	private static String lastValue(CompositeStateNode modelTree, int particle, int coordinate) {
+		List<AValue> values = getValues(modelTree, particle, coordinate);
+		return values.get(values.size() - 1).getStringValue();
+	}
+
+	@Test
+	public void testLeavesFollowParticleOffsets() {
+		// the tree lists the particles in another order than the frame
+		int[] treeIds = { 6, 2, 0, 5, 1 };
+		CompositeStateNode modelTree = createTree(treeIds);
+		int[] slots = createSlots(PCISPHTestUtilities.FRAME_PARTICLE_IDS, 7);
+
+		SPHStateTreeUpdater updater = new SPHStateTreeUpdater(modelTree, slots, 0);
+		updater.update(PCISPHTestUtilities.createFrame(3));
+
+		for (int particle = 0; particle < treeIds.length; particle++) {
+			int slot = slots[treeIds[particle]];
+			for (int c = 0; c < COORDINATES.length; c++) {
+				float expected = PCISPHTestUtilities.frameValue(3, slot * SPHFrame.POSITION_SIZE + c, false);
+				Assert.assertEquals(Float.toString(expected), lastValue(modelTree, particle, c));
+				Assert.assertEquals(2, getValues(modelTree, particle, c).size());
+			}
+		}
+	}
+
+	@Test
+	public void testTrimAtTwiceTheHistory() {
+		CompositeStateNode modelTree = createTree(PCISPHTestUtilities.FRAME_PARTICLE_IDS);
+		int[] slots = createSlots(PCISPHTestUtilities.FRAME_PARTICLE_IDS, 7);
+		SPHStateTreeUpdater updater = new SPHStateTreeUpdater(modelTree, slots, 3);
+
+		// the leaves start with one value and grow up to 5
+		for (int step = 1; step < 5; step++) {
+			updater.update(PCISPHTestUtilities.createFrame(step));
+		}
+		Assert.assertEquals(5, getValues(modelTree, 0, 0).size());
+
+		// the sixth value drops the oldest three
+		updater.update(PCISPHTestUtilities.createFrame(5));
+		List<AValue> values = getValues(modelTree, 0, 0);
+		Assert.assertEquals(3, values.size());
+		Assert.assertEquals(Float.toString(PCISPHTestUtilities.frameValue(3, 0, false)), values.get(0).getStringValue());
+		Assert.assertEquals(Float.toString(PCISPHTestUtilities.frameValue(5, 0, false)), values.get(2).getStringValue());
+	}
+
+	/*
+	 * 3000 particles have 12000 leaves, above the parallel threshold; three
+	 * trees of 1000 particles are updated serially
+	 */
+	@Test
+	public void testParallelMatchesSerial() {
+		int particles = 3000;
+		int[] frameIds = new int[particles];
+		for (int i = 0; i < particles; i++) {
+			// scene ids in another order than the frame slots
+			frameIds[i] = particles - 1 - i;
+		}
+		int[] slots = createSlots(frameIds, particles);
+
+		int[] treeIds = new int[particles];
+		for (int i = 0; i < particles; i++) {
+			treeIds[i] = (i * 7) % particles;
+		}
+		CompositeStateNode parallelTree = createTree(treeIds);
+		SPHStateTreeUpdater parallel = new SPHStateTreeUpdater(parallelTree, slots, 2);
+
+		int parts = 3;
+		int partSize = particles / parts;
+		CompositeStateNode[] serialTrees = new CompositeStateNode[parts];
+		SPHStateTreeUpdater[] serial = new SPHStateTreeUpdater[parts];
+		for (int part = 0; part < parts; part++) {
+			serialTrees[part] = createTree(Arrays.copyOfRange(treeIds, part * partSize, (part + 1) * partSize));
+			serial[part] = new SPHStateTreeUpdater(serialTrees[part], slots, 2);
+		}
+
+		for (int step = 1; step <= 5; step++) {
+			SPHFrame frame = PCISPHTestUtilities.createFrame(step, frameIds);
+			parallel.update(frame);
+			for (SPHStateTreeUpdater updater : serial) {
+				updater.update(frame);
+			}
+		}
+
+		for (int particle = 0; particle < particles; particle++) {
+			for (int c = 0; c < COORDINATES.length; c++) {
+				List<AValue> expected = getValues(serialTrees[particle / partSize], particle % partSize, c);
+				List<AValue> actual = getValues(parallelTree, particle, c);
+				Assert.assertEquals(expected.size(), actual.size());
+				for (int i = 0; i < expected.size(); i++) {
+					Assert.assertEquals(expected.get(i).getStringValue(), actual.get(i).getStringValue());
+				}
+			}
+		}
+	}
+}
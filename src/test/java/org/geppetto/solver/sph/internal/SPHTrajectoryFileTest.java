@@ -0,0 +1,156 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011, 2013 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+
+package org.geppetto.solver.sph.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+
+import junit.framework.Assert;
+
+import org.geppetto.solver.sph.PCISPHTestUtilities;
+import org.geppetto.solver.sph.SPHFrame;
+import org.geppetto.solver.sph.SPHTrajectoryReader;
+import org.geppetto.solver.sph.SPHTrajectoryWriter;
+import org.junit.Test;
+
+public class SPHTrajectoryFileTest {
+
+	private static final int FRAMES = 100;
+
+	@Test
+	public void testWriteAndReadFrames() throws IOException {
+		File file = File.createTempFile("trajectory", ".spht");
+		file.deleteOnExit();
+
+		SPHTrajectoryWriter writer = new SPHTrajectoryWriter(file, PCISPHTestUtilities.FRAME_PARTICLE_IDS, true);
+		for (int step = 1; step <= FRAMES; step++) {
+			writer.append(PCISPHTestUtilities.createFrame(step));
+		}
+		writer.close();
+		Assert.assertEquals(FRAMES, writer.getFrameCount());
+
+		SPHTrajectoryReader reader = new SPHTrajectoryReader(file);
+		try {
+			Assert.assertEquals(FRAMES, reader.getFrameCount());
+			Assert.assertEquals(PCISPHTestUtilities.FRAME_PARTICLE_IDS.length, reader.getParticleCount());
+			Assert.assertTrue(reader.hasVelocities());
+			Assert.assertEquals(6, reader.getParticleIds()[4]);
+
+			for (int f : new int[] { 0, 15, 16, 17, 99 }) {
+				SPHFrame frame = reader.getFrame(f);
+				Assert.assertEquals(f + 1, frame.getStep());
+				Assert.assertEquals(f + 1, reader.getStep(f));
+				for (int i = 0; i < frame.getPositions().length; i++) {
+					Assert.assertEquals(PCISPHTestUtilities.frameValue(f + 1, i, false), frame.getPositions()[i], 0f);
+					Assert.assertEquals(PCISPHTestUtilities.frameValue(f + 1, i, true), frame.getVelocities()[i], 0f);
+				}
+			}
+
+			// particles 2 and 3 of frame 50
+			float[] positions = reader.getPositions(50, 2, 2);
+			float[] velocities = reader.getVelocities(50, 2, 2);
+			Assert.assertEquals(8, positions.length);
+			for (int i = 0; i < positions.length; i++) {
+				Assert.assertEquals(PCISPHTestUtilities.frameValue(51, 8 + i, false), positions[i], 0f);
+				Assert.assertEquals(PCISPHTestUtilities.frameValue(51, 8 + i, true), velocities[i], 0f);
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	@Test
+	public void testReadUnclosedFile() throws IOException {
+		File file = File.createTempFile("trajectory", ".spht");
+		file.deleteOnExit();
+
+		SPHTrajectoryWriter writer = new SPHTrajectoryWriter(file, PCISPHTestUtilities.FRAME_PARTICLE_IDS, true);
+		for (int step = 1; step <= FRAMES; step++) {
+			writer.append(PCISPHTestUtilities.createFrame(step));
+		}
+		writer.close();
+
+		// what a crash leaves: the initial header, no index and half of
+		// the last frame
+		int frameBytes = 8 + PCISPHTestUtilities.FRAME_PARTICLE_IDS.length * SPHFrame.POSITION_SIZE * 4 * 2;
+		long framesEnd = SPHTrajectoryWriter.HEADER_SIZE + PCISPHTestUtilities.FRAME_PARTICLE_IDS.length * 4 + FRAMES
+				* (long) frameBytes;
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(16);
+			raf.write(new byte[16]);
+			raf.setLength(framesEnd - frameBytes / 2);
+		} finally {
+			raf.close();
+		}
+
+		SPHTrajectoryReader reader = new SPHTrajectoryReader(file);
+		try {
+			Assert.assertEquals(FRAMES - 1, reader.getFrameCount());
+			SPHFrame frame = reader.getFrame(FRAMES - 2);
+			Assert.assertEquals(FRAMES - 1, frame.getStep());
+			Assert.assertEquals(PCISPHTestUtilities.frameValue(FRAMES - 1, 7, true), frame.getVelocities()[7], 0f);
+		} finally {
+			reader.close();
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testNotATrajectory() throws IOException {
+		File file = File.createTempFile("trajectory", ".spht");
+		file.deleteOnExit();
+		new SPHTrajectoryReader(file);
+	}
+
+	/*
+	 * 100M particles with velocities need 3.2GB frames, more than a mapped
+	 * frame can hold
+	 */
+	@Test(expected = IOException.class)
+	public void testParticleCountBeyondFormat() throws IOException {
+		File file = File.createTempFile("trajectory", ".spht");
+		file.deleteOnExit();
+		ByteBuffer header = ByteBuffer.allocate(SPHTrajectoryWriter.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(SPHTrajectoryWriter.MAGIC);
+		header.putInt(SPHTrajectoryWriter.VERSION);
+		header.putInt(100000000);
+		header.putInt(SPHTrajectoryWriter.FLAG_VELOCITIES);
+		Files.write(file.toPath(), header.array());
+		new SPHTrajectoryReader(file);
+	}
+}
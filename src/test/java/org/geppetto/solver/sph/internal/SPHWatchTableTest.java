@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011, 2013 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+
+
+package org.geppetto.solver.sph.internal;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.geppetto.core.model.state.CompositeStateNode;
+import org.geppetto.core.model.values.AValue;
+import org.geppetto.solver.sph.BuffersEnum;
+import org.geppetto.solver.sph.SPHWatchTable;
+import org.junit.Test;
+
+public class SPHWatchTableTest {
+
+	private static final List<String> WATCHABLE = Arrays.asList(
+			"particle.position.x", "particle.position.y",
+			"particle.position.z", "particle.velocity.x",
+			"particle.velocity.y", "particle.velocity.z");
+
+	private static FloatBuffer values(float base) {
+		float[] values = new float[3 * 4];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = base + i;
+		}
+		return FloatBuffer.wrap(values);
+	}
+
+	private static float lastValue(SPHWatchTable table, int entry) {
+		List<AValue> values = table.getNode(entry).getValues();
+		return Float.parseFloat(values.get(values.size() - 1).getStringValue());
+	}
+
+	@Test
+	public void testCompile() {
+		SPHWatchTable table = new SPHWatchTable(Arrays.asList(
+				"particle[1].position.x", "particle[2].velocity.z",
+				"particle[1].position.x", "particle.position.y",
+				"muscle[0].activation"), WATCHABLE, 3, 0);
+
+		Assert.assertEquals(2, table.size());
+		Assert.assertEquals(1, table.getParticleId(0));
+		Assert.assertEquals(BuffersEnum.POSITION, table.getBuffer(0));
+		Assert.assertEquals(0, table.getComponent(0));
+		Assert.assertEquals(2, table.getParticleId(1));
+		Assert.assertEquals(BuffersEnum.VELOCITY, table.getBuffer(1));
+		Assert.assertEquals(2, table.getComponent(1));
+		Assert.assertTrue(table.isWatching(BuffersEnum.VELOCITY));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testParticleOutOfBoundaries() {
+		new SPHWatchTable(Arrays.asList("particle[3].position.x"), WATCHABLE,
+				3, 0);
+	}
+
+	@Test
+	public void testBindAndUpdate() {
+		SPHWatchTable table = new SPHWatchTable(Arrays.asList(
+				"particle[1].position.x", "particle[1].position.y",
+				"particle[2].velocity.z"), WATCHABLE, 3, 2);
+		CompositeStateNode watchTree = new CompositeStateNode("WATCH_TREE");
+		table.bind(watchTree);
+
+		// particle[1] and particle[2], position and x, y shared
+		Assert.assertEquals(2, watchTree.getChildren().size());
+		CompositeStateNode particle = (CompositeStateNode) watchTree
+				.getChildren().get(0);
+		Assert.assertEquals("particle[1]", particle.getName());
+		Assert.assertEquals(1, particle.getChildren().size());
+		Assert.assertEquals(2, ((CompositeStateNode) particle.getChildren()
+				.get(0)).getChildren().size());
+
+		for (int step = 0; step < 3; step++) {
+			table.update(values(step * 100), values(step * 100 + 50));
+		}
+		// leaves are trimmed once they hold twice the limit
+		Assert.assertEquals(3, table.getNode(0).getValues().size());
+		table.update(values(300), values(350));
+		Assert.assertEquals(2, table.getNode(0).getValues().size());
+		Assert.assertEquals(304f, lastValue(table, 0));
+		Assert.assertEquals(305f, lastValue(table, 1));
+		Assert.assertEquals(360f, lastValue(table, 2));
+
+		// a second table over the same tree reuses its nodes
+		SPHWatchTable other = new SPHWatchTable(Arrays.asList(
+				"particle[1].position.x"), WATCHABLE, 3, 0);
+		other.bind(watchTree);
+		Assert.assertSame(table.getNode(0), other.getNode(0));
+		Assert.assertEquals(2, watchTree.getChildren().size());
+	}
+}
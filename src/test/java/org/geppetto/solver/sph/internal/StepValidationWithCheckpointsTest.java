@@ -43,6 +43,7 @@ import junit.framework.Assert;
 
 import org.geppetto.core.simulation.TimeConfiguration;
 import org.geppetto.model.sph.Vector3D;
+import org.geppetto.model.sph.common.SPHConstants;
 import org.geppetto.model.sph.services.SPHModelInterpreterService;
 import org.geppetto.model.sph.x.SPHModelX;
 import org.geppetto.solver.sph.BuffersEnum;
@@ -356,35 +357,51 @@ public class StepValidationWithCheckpointsTest {
         			mismatchingValuesPerBuffers.put(entry.getKey(), rho_mismatches);
 		            break;
 		        case ELASTIC_CONNECTIONS:  
-		        	// liquid scene has no elastic connections - log files are empty
-		        	List<Float> el_calculatedValues = checkpoint_values.elasticConnections;
+		        	// reference logs hold NEIGHBOR_COUNT padded slots per elastic particle (partner, rest length, muscle),
+		        	// the solver keeps connections in compressed sparse row layout
+		        	List<Integer> el_offsets = checkpoint_values.elasticConnectionsOffsets;
+		        	List<Integer> el_calculatedValues = checkpoint_values.elasticConnections;
+		        	List<Float> el_restLengths = checkpoint_values.elasticConnectionsRestLength;
+		        	String[] el_referenceValues = checkpointReferenceValuesMap.get(entry.getKey());
 		        	int el_mismatches = 0;
-		        	Assert.assertTrue(dimensions.get(entry.getKey()).intValue() == checkpointReferenceValuesMap.get(entry.getKey()).length * 4);
-		        	j=0;
-		        	for(int i = 0; i < dimensions.get(entry.getKey()); i = i + 4)
-		        	{	
-		        		// get vector from ref values
-		        		Vector3D el_vector = get3DVector(checkpointReferenceValuesMap.get(entry.getKey())[j]);
-		        		
-		        		// it sucks, but all the if statements are separate to facilitate debugging
-		        		if(el_vector.getX().floatValue() != el_calculatedValues.get(i).floatValue()) 
-		        		{
-		        			el_mismatches++;
-		        		}
-		        		if(el_vector.getY().floatValue() != el_calculatedValues.get(i + 1).floatValue()) 
+		        	Assert.assertTrue(dimensions.get(BuffersEnum.ELASTIC_CONNECTIONS_OFFSETS).intValue() == el_referenceValues.length / SPHConstants.NEIGHBOR_COUNT + 1);
+		        	for(int row = 0; row < el_offsets.size() - 1; row++)
+		        	{
+		        		int c = el_offsets.get(row);
+		        		for(int nc = 0; nc < SPHConstants.NEIGHBOR_COUNT; nc++)
+		        		{
+		        			// get vector from ref values
+		        			Vector3D el_vector = get3DVector(el_referenceValues[row * SPHConstants.NEIGHBOR_COUNT + nc]);
+		        			if((int) el_vector.getX().floatValue() == -1)
+		        			{
+		        				break;
+		        			}
+		        			if(c >= el_offsets.get(row + 1))
+		        			{
+		        				el_mismatches++;
+		        				break;
+		        			}
+		        			
+		        			// it sucks, but all the if statements are separate to facilitate debugging
+		        			if((int) el_vector.getX().floatValue() != el_calculatedValues.get(c * 2).intValue()) 
+		        			{
+		        				el_mismatches++;
+		        			}
+		        			if(el_vector.getY().floatValue() != el_restLengths.get(c).floatValue()) 
+		        			{
+		        				el_mismatches++;
+		        			}
+		        			if((int) el_vector.getZ().floatValue() != el_calculatedValues.get(c * 2 + 1).intValue()) 
+		        			{
+		        				el_mismatches++;
+		        			}
+		        			
+		        			c++;
+		        		}
+		        		if(c != el_offsets.get(row + 1))
 		        		{
 		        			el_mismatches++;
 		        		}
-		        		if(el_vector.getZ().floatValue() != el_calculatedValues.get(i + 2).floatValue()) 
-		        		{
-		        			el_mismatches++;
-		        		}
-		        		if(el_vector.getP().floatValue() != el_calculatedValues.get(i + 3).floatValue()) 
-		        		{
-		        			el_mismatches++;
-		        		}
-		        		
-		        		j++;
 		        	}
 		        	// record mismatch
         			mismatchingValuesPerBuffers.put(entry.getKey(), el_mismatches);